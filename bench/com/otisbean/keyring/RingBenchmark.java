@@ -0,0 +1,807 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *     
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import net.iharder.Base64;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Micro benchmarks for the hot paths in Ring and Item: crypto, key
+ * derivation, load/validate, export/save, lock/unlock and CSV export.
+ *
+ * Run with "ant bench".  Each case is warmed up, then timed op by op, and
+ * reported as throughput, latency percentiles and bytes allocated per op
+ * (by the benchmark thread).  Whole-ring cases are run against synthetic
+ * rings of each size in bench.sizes.  Cases that write a keyring also
+ * report the size of what they wrote.
+ *
+ * System properties:
+ *   bench.sizes   comma separated ring sizes (default 1000,100000,1000000)
+ *   bench.warmup  warmup time per case in ms (default 2000)
+ *   bench.time    measurement time per case in ms (default 5000)
+ *   bench.filter  only run cases whose name contains this
+ *
+ * @author Dirk Bergstrom
+ */
+public class RingBenchmark {
+
+	static final char[] PASSWORD = "benchmark password".toCharArray();
+
+	private static long warmupMillis = Long.getLong("bench.warmup", 2000);
+	private static long measureMillis = Long.getLong("bench.time", 5000);
+	private static String filter = System.getProperty("bench.filter", "");
+
+	/**
+	 * A single benchmark.  setup() is called once per ring size (or once,
+	 * for cases that don't depend on the size), then op() repeatedly.
+	 */
+	static abstract class Case {
+		final String name;
+		final boolean sized;
+		/** Size of the output of the last op(), or -1. */
+		long bytes = -1;
+
+		Case(String name, boolean sized) {
+			this.name = name;
+			this.sized = sized;
+		}
+
+		void setup(int size) throws Exception {
+		}
+
+		abstract void op() throws Exception;
+
+		void teardown() throws Exception {
+		}
+	}
+
+	/**
+	 * Build a Ring with the given number of items.  Items share a handful
+	 * of pre-encrypted payloads, since encrypting a million of them one by
+	 * one would make setup take longer than the benchmarks.
+	 */
+	@SuppressWarnings("unchecked")
+	static Ring syntheticRing(int size) throws Exception {
+		return syntheticRing(size, false);
+	}
+
+	/**
+	 * As syntheticRing(size), but if distinct is true every Item gets its
+	 * own random cryptext, as in a real keyring, instead of one of a few
+	 * shared ones (which compress unrealistically well).  The random
+	 * cryptext doesn't decrypt to anything.
+	 */
+	@SuppressWarnings("unchecked")
+	static Ring syntheticRing(int size, boolean distinct) throws Exception {
+		Ring ring = new Ring(PASSWORD);
+		String[] payloads = new String[64];
+		for (int i = 0; i < payloads.length; i++) {
+			Item tmp = new Item(ring, "user" + i, "pass-" + i + "-x7Gq!",
+					"https://example.com/login/" + i, "Some notes about account " + i,
+					"tmp" + i, 0);
+			payloads[i] = tmp.getEncryptedData();
+		}
+		for (int i = 0; i < 20; i++) {
+			ring.categoryIdForName("Category " + i);
+		}
+		long now = System.currentTimeMillis();
+		Random random = new Random(size);
+		for (int i = 0; i < size; i++) {
+			JSONObject raw = new JSONObject();
+			raw.put("title", "Item " + i);
+			raw.put("category", (long) (i % 21));
+			raw.put("created", now - i * 1000L);
+			raw.put("viewed", now - i * 500L);
+			raw.put("changed", now - i * 700L);
+			String payload = payloads[i % payloads.length];
+			if (distinct) {
+				byte[] crypt = new byte[payload.length() * 3 / 4];
+				random.nextBytes(crypt);
+				payload = Base64.encodeBytes(crypt);
+			}
+			raw.put("encrypted_data", payload);
+			ring.addItem(new Item(ring, raw));
+		}
+		return ring;
+	}
+
+	/**
+	 * Counts what's written to it, and throws it away.
+	 */
+	static class CountingOutputStream extends OutputStream {
+		long count;
+
+		public void write(int b) {
+			count++;
+		}
+
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+
+	/**
+	 * Save a ring of distinct Items, compressed or not.
+	 */
+	static Case distinctSave(String name, final boolean compress) {
+		return new Case(name, true) {
+			Ring ring;
+			File file;
+			void setup(int size) throws Exception {
+				ring = syntheticRing(size, true);
+				ring.setCompression(compress);
+				file = tempFile(".json");
+			}
+			void op() throws Exception {
+				ring.save(file.getPath(), false);
+				bytes = file.length();
+			}
+			void teardown() {
+				ring = null;
+				file.delete();
+			}
+		};
+	}
+
+	/**
+	 * Load and validate a ring of distinct Items, compressed or not.
+	 */
+	static Case distinctLoad(String name, final boolean compress) {
+		return new Case(name, true) {
+			File file;
+			void setup(int size) throws Exception {
+				file = tempFile(".json");
+				Ring ring = syntheticRing(size, true);
+				ring.setCompression(compress);
+				ring.save(file.getPath(), false);
+				bytes = file.length();
+			}
+			void op() throws Exception {
+				Ring ring = new Ring();
+				ring.load(file.getPath());
+				if (! ring.validatePassword(PASSWORD)) {
+					throw new Exception("Password didn't validate");
+				}
+			}
+			void teardown() {
+				file.delete();
+			}
+		};
+	}
+
+	/**
+	 * Write the form encoded body that save() uploads to a URL, for a ring
+	 * of distinct Items, compressed or not.
+	 */
+	static Case distinctUpload(String name, final boolean compress) {
+		return new Case(name, true) {
+			Ring ring;
+			void setup(int size) throws Exception {
+				ring = syntheticRing(size, true);
+				ring.setCompression(compress);
+			}
+			void op() throws Exception {
+				CountingOutputStream wire = new CountingOutputStream();
+				wire.write("data=".getBytes("US-ASCII"));
+				OutputStream body = new FormEncodingOutputStream(wire);
+				ring.writeExport(body, false);
+				body.flush();
+				bytes = wire.count;
+			}
+			void teardown() {
+				ring = null;
+			}
+		};
+	}
+
+	/**
+	 * Write a ring's export data through an AtomicFileOutputStream, with
+	 * or without forcing it (and the rename) to disk.
+	 */
+	static Case atomicWrite(String name, final boolean sync) {
+		return new Case(name, true) {
+			Ring ring;
+			File file;
+			void setup(int size) throws Exception {
+				ring = syntheticRing(size);
+				file = tempFile(".json");
+			}
+			void op() throws Exception {
+				AtomicFileOutputStream os = new AtomicFileOutputStream(file, false, sync);
+				ring.writeExport(os, false);
+				os.close();
+				bytes = file.length();
+			}
+			void teardown() {
+				ring = null;
+				file.delete();
+			}
+		};
+	}
+
+	static File tempFile(String suffix) throws Exception {
+		File f = File.createTempFile("keyring-bench", suffix);
+		f.deleteOnExit();
+		return f;
+	}
+
+	static List<Case> cases() {
+		List<Case> cases = new ArrayList<Case>();
+
+		cases.add(new Case("Ring.encrypt", false) {
+			Ring ring;
+			String data = "{\"username\":\"someone\",\"pass\":\"p4ssw0rd\"," +
+				"\"url\":\"https://example.com/\",\"notes\":\"\"}";
+			void setup(int size) throws Exception {
+				ring = new Ring(PASSWORD);
+			}
+			void op() throws Exception {
+				ring.encrypt(data, Ring.ITEM_SALT_LENGTH);
+			}
+		});
+
+		cases.add(new Case("Ring.decrypt", false) {
+			Ring ring;
+			String crypted;
+			void setup(int size) throws Exception {
+				ring = new Ring(PASSWORD);
+				crypted = ring.encrypt("{\"username\":\"someone\",\"pass\":\"p4ssw0rd\"," +
+					"\"url\":\"https://example.com/\",\"notes\":\"\"}", Ring.ITEM_SALT_LENGTH);
+			}
+			void op() throws Exception {
+				ring.decrypt(crypted);
+			}
+		});
+
+		cases.add(new Case("Ring.encrypt(byte[])", false) {
+			Ring ring;
+			byte[] data;
+			byte[] out;
+			void setup(int size) throws Exception {
+				ring = new Ring(PASSWORD);
+				data = ("{\"username\":\"someone\",\"pass\":\"p4ssw0rd\"," +
+					"\"url\":\"https://example.com/\",\"notes\":\"\"}").getBytes("UTF-8");
+				out = new byte[Ring.encryptedLength(data.length, Ring.ITEM_SALT_LENGTH)];
+			}
+			void op() throws Exception {
+				ring.encrypt(data, 0, data.length, Ring.ITEM_SALT_LENGTH, out, 0);
+			}
+		});
+
+		cases.add(new Case("Ring.decrypt(byte[])", false) {
+			Ring ring;
+			byte[] crypted;
+			byte[] out;
+			void setup(int size) throws Exception {
+				ring = new Ring(PASSWORD);
+				crypted = ring.encrypt("{\"username\":\"someone\",\"pass\":\"p4ssw0rd\"," +
+					"\"url\":\"https://example.com/\",\"notes\":\"\"}",
+					Ring.ITEM_SALT_LENGTH).getBytes("US-ASCII");
+				out = new byte[Ring.maxDecryptedLength(crypted.length)];
+			}
+			void op() throws Exception {
+				ring.decrypt(crypted, 0, crypted.length, out, 0);
+			}
+		});
+
+		/* The same small Item payload through a bare Blowfish cipher, with
+		 * and without a key schedule per call: the difference is what the
+		 * per-thread pre-initialized ciphers in CryptContext save on every
+		 * Item lock and unlock. */
+		cases.add(new Case("Blowfish init+doFinal", false) {
+			Cipher cipher;
+			SecretKeySpec key;
+			IvParameterSpec iv = new IvParameterSpec(new byte[8]);
+			byte[] data = new byte[80];
+			void setup(int size) throws Exception {
+				cipher = Cipher.getInstance("Blowfish/CFB64/NoPadding");
+				key = new SecretKeySpec(new byte[43], "Blowfish");
+			}
+			void op() throws Exception {
+				cipher.init(Cipher.ENCRYPT_MODE, key, iv);
+				cipher.doFinal(data, 0, data.length, data, 0);
+			}
+		});
+
+		cases.add(new Case("Blowfish doFinal", false) {
+			Cipher cipher;
+			byte[] data = new byte[80];
+			void setup(int size) throws Exception {
+				cipher = Cipher.getInstance("Blowfish/CFB64/NoPadding");
+				cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(new byte[43], "Blowfish"),
+						new IvParameterSpec(new byte[8]));
+			}
+			void op() throws Exception {
+				cipher.doFinal(data, 0, data.length, data, 0);
+			}
+		});
+
+		cases.add(new Case("Ring.initCipher", false) {
+			Ring ring;
+			void setup(int size) throws Exception {
+				ring = new Ring(PASSWORD);
+			}
+			void op() throws Exception {
+				ring.initCipher(PASSWORD);
+			}
+		});
+
+		cases.add(new Case("Item.unlock", false) {
+			Item item;
+			void setup(int size) throws Exception {
+				Ring ring = new Ring(PASSWORD);
+				item = new Item(ring, "someone", "p4ssw0rd", "https://example.com/",
+						"", "title", 0);
+			}
+			void op() throws Exception {
+				item.unlock();
+				// Unchanged, so this just drops the plaintext
+				item.lock();
+			}
+		});
+
+		cases.add(new Case("Item.lock", false) {
+			Item item;
+			void setup(int size) throws Exception {
+				Ring ring = new Ring(PASSWORD);
+				item = new Item(ring, "someone", "p4ssw0rd", "https://example.com/",
+						"", "title", 0);
+				item.unlock();
+			}
+			void op() throws Exception {
+				item.setNotes("changed");
+				item.lock();
+				item.unlock();
+			}
+		});
+
+		cases.add(new Case("Ring.load+validatePassword", true) {
+			File file;
+			void setup(int size) throws Exception {
+				file = tempFile(".json");
+				syntheticRing(size).save(file.getPath(), false);
+			}
+			void op() throws Exception {
+				Ring ring = new Ring();
+				ring.load(file.getPath());
+				if (! ring.validatePassword(PASSWORD)) {
+					throw new Exception("Password didn't validate");
+				}
+			}
+			void teardown() {
+				file.delete();
+			}
+		});
+
+		cases.add(new Case("lazy load+validate+getItem", true) {
+			File file;
+			void setup(int size) throws Exception {
+				file = tempFile(".json");
+				syntheticRing(size).save(file.getPath(), false);
+			}
+			void op() throws Exception {
+				Ring ring = new Ring();
+				ring.setLazyLoading(true);
+				ring.load(file.getPath());
+				if (! ring.validatePassword(PASSWORD)) {
+					throw new Exception("Password didn't validate");
+				}
+				ring.getItem("Item 7");
+			}
+			void teardown() {
+				file.delete();
+			}
+		});
+
+		cases.add(new Case("binary load+validatePassword", true) {
+			File file;
+			void setup(int size) throws Exception {
+				file = tempFile(".krb");
+				Ring ring = syntheticRing(size);
+				ring.setBinaryFormat(true);
+				ring.save(file.getPath(), false);
+			}
+			void op() throws Exception {
+				Ring ring = new Ring();
+				ring.load(file.getPath());
+				if (! ring.validatePassword(PASSWORD)) {
+					throw new Exception("Password didn't validate");
+				}
+			}
+			void teardown() {
+				file.delete();
+			}
+		});
+
+		cases.add(new Case("segmented load+validate+getItems", true) {
+			File file;
+			void setup(int size) throws Exception {
+				file = tempFile(".json");
+				Ring ring = syntheticRing(size);
+				ring.setSegmentSize(Ring.DEFAULT_SEGMENT_SIZE);
+				ring.save(file.getPath(), false);
+			}
+			void op() throws Exception {
+				Ring ring = new Ring();
+				ring.load(file.getPath());
+				if (! ring.validatePassword(PASSWORD)) {
+					throw new Exception("Password didn't validate");
+				}
+				ring.getItems();
+			}
+			void teardown() {
+				file.delete();
+			}
+		});
+
+		cases.add(new Case("segmented load+validate+getItem", true) {
+			File file;
+			void setup(int size) throws Exception {
+				file = tempFile(".json");
+				Ring ring = syntheticRing(size);
+				ring.setSegmentSize(Ring.DEFAULT_SEGMENT_SIZE);
+				ring.save(file.getPath(), false);
+			}
+			void op() throws Exception {
+				Ring ring = new Ring();
+				ring.load(file.getPath());
+				if (! ring.validatePassword(PASSWORD)) {
+					throw new Exception("Password didn't validate");
+				}
+				ring.getItem("Item 7");
+			}
+			void teardown() {
+				file.delete();
+			}
+		});
+
+		cases.add(new Case("Ring.getExportData", true) {
+			Ring ring;
+			void setup(int size) throws Exception {
+				ring = syntheticRing(size);
+			}
+			void op() throws Exception {
+				ring.getExportData(false);
+			}
+			void teardown() {
+				ring = null;
+			}
+		});
+
+		cases.add(new Case("Ring.save", true) {
+			Ring ring;
+			File file;
+			void setup(int size) throws Exception {
+				ring = syntheticRing(size);
+				file = tempFile(".json");
+			}
+			void op() throws Exception {
+				ring.save(file.getPath(), false);
+				bytes = file.length();
+			}
+			void teardown() {
+				ring = null;
+				file.delete();
+			}
+		});
+
+		cases.add(new Case("Ring.save in place", true) {
+			Ring ring;
+			File file;
+			void setup(int size) throws Exception {
+				ring = syntheticRing(size);
+				ring.setAtomicSaves(false);
+				file = tempFile(".json");
+			}
+			void op() throws Exception {
+				ring.save(file.getPath(), false);
+				bytes = file.length();
+			}
+			void teardown() {
+				ring = null;
+				file.delete();
+			}
+		});
+
+		// What the fsyncs in an atomic save cost
+		cases.add(atomicWrite("AtomicFileOutputStream fsync", true));
+		cases.add(atomicWrite("AtomicFileOutputStream no fsync", false));
+
+		cases.add(new Case("Ring.save with backup", true) {
+			Ring ring;
+			File file;
+			void setup(int size) throws Exception {
+				ring = syntheticRing(size);
+				ring.setKeepBackup(true);
+				file = tempFile(".json");
+			}
+			void op() throws Exception {
+				ring.save(file.getPath(), false);
+				bytes = file.length();
+			}
+			void teardown() {
+				ring = null;
+				file.delete();
+				new File(file.getPath() + AtomicFileOutputStream.BACKUP_SUFFIX).delete();
+			}
+		});
+
+		cases.add(new Case("Ring.save binary", true) {
+			Ring ring;
+			File file;
+			void setup(int size) throws Exception {
+				ring = syntheticRing(size);
+				ring.setBinaryFormat(true);
+				file = tempFile(".krb");
+			}
+			void op() throws Exception {
+				ring.save(file.getPath(), false);
+				bytes = file.length();
+			}
+			void teardown() {
+				ring = null;
+				file.delete();
+			}
+		});
+
+		cases.add(distinctSave("save distinct", false));
+		cases.add(distinctSave("save distinct deflate", true));
+		cases.add(distinctLoad("load distinct", false));
+		cases.add(distinctLoad("load distinct deflate", true));
+		cases.add(distinctUpload("upload body distinct", false));
+		cases.add(distinctUpload("upload body distinct deflate", true));
+
+		cases.add(new Case("Sync.run, 10 edits", true) {
+			Ring base;
+			Ring local;
+			Ring remote;
+			int round;
+			void setup(int size) throws Exception {
+				File file = tempFile(".json");
+				syntheticRing(size).save(file.getPath(), false);
+				base = new Ring();
+				base.load(file.getPath(), PASSWORD);
+				local = new Ring();
+				local.load(file.getPath(), PASSWORD);
+				remote = new Ring();
+				remote.load(file.getPath(), PASSWORD);
+				file.delete();
+			}
+			void op() throws Exception {
+				round++;
+				for (int i = 0; i < 5; i++) {
+					local.getItem("Item " + i).setPass("local " + round);
+					remote.getItem("Item " + (i + 5)).setPass("remote " + round);
+				}
+				new Sync(base, local, remote).run();
+			}
+			void teardown() {
+				base = local = remote = null;
+			}
+		});
+
+		cases.add(new Case("Ring.exportToCSV", true) {
+			Ring ring;
+			File file;
+			void setup(int size) throws Exception {
+				ring = syntheticRing(size);
+				file = tempFile(".csv");
+			}
+			void op() throws Exception {
+				ring.exportToCSV(file.getPath());
+			}
+			void teardown() {
+				ring = null;
+				file.delete();
+			}
+		});
+
+		cases.add(new Case("SearchIndex build", true) {
+			Ring ring;
+			void setup(int size) throws Exception {
+				ring = syntheticRing(size);
+			}
+			void op() throws Exception {
+				new SearchIndex(ring).close();
+			}
+			void teardown() {
+				ring = null;
+			}
+		});
+
+		// One keystroke per op, as if typing each query in turn
+		cases.add(new Case("SearchIndex.search typing", true) {
+			SearchIndex index;
+			String[] queries = { "item 4217", "ITEM 99", "m 12", "tem 5 ", "nothing" };
+			int query;
+			int length;
+			void setup(int size) throws Exception {
+				index = new SearchIndex(syntheticRing(size));
+			}
+			void op() throws Exception {
+				if (length == queries[query].length()) {
+					query = (query + 1) % queries.length;
+					length = 0;
+				}
+				bytes = index.search(queries[query].substring(0, ++length)).size();
+			}
+			void teardown() {
+				index.close();
+				index = null;
+			}
+		});
+
+		// Every query unrelated to the last, so the index is used each time
+		cases.add(new Case("SearchIndex.search cold", true) {
+			SearchIndex index;
+			String[] queries = { "e", "item", "4217", "m 1", "99", "nothing" };
+			int query;
+			void setup(int size) throws Exception {
+				index = new SearchIndex(syntheticRing(size));
+			}
+			void op() throws Exception {
+				query = (query + 1) % queries.length;
+				bytes = index.search(queries[query]).size();
+			}
+			void teardown() {
+				index.close();
+				index = null;
+			}
+		});
+
+		// Everything decrypted, as after an export, then the timeout fires
+		cases.add(new Case("Ring.unlockAll+relock", true) {
+			Ring ring;
+			Collection<Item> items;
+			void setup(int size) throws Exception {
+				ring = syntheticRing(size);
+				ring.getPlaintextCache().setMaxItems(Integer.MAX_VALUE);
+				items = ring.getItems();
+			}
+			void op() throws Exception {
+				ring.unlockAll(items, null);
+				ring.relock();
+			}
+			void teardown() {
+				ring = null;
+				items = null;
+			}
+		});
+
+		return cases;
+	}
+
+	/**
+	 * Allocation counter for the current thread, if the JVM has one.
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+					Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	private static void run(Case c, int size) throws Exception {
+		c.setup(size);
+		try {
+			// Warm up
+			long end = System.currentTimeMillis() + warmupMillis;
+			do {
+				c.op();
+			} while (System.currentTimeMillis() < end);
+
+			// Measure
+			long[] times = new long[1024];
+			int n = 0;
+			long alloc = allocatedBytes();
+			long start = System.nanoTime();
+			end = System.currentTimeMillis() + measureMillis;
+			do {
+				long t0 = System.nanoTime();
+				c.op();
+				long t1 = System.nanoTime();
+				if (n == times.length) {
+					times = Arrays.copyOf(times, n * 2);
+				}
+				times[n++] = t1 - t0;
+			} while (System.currentTimeMillis() < end);
+			long elapsed = System.nanoTime() - start;
+			if (alloc >= 0) {
+				alloc = (allocatedBytes() - alloc) / n;
+			}
+			report(c.name, c.sized ? size : -1, n, elapsed, Arrays.copyOf(times, n),
+					alloc, c.bytes);
+		} finally {
+			c.teardown();
+		}
+	}
+
+	private static void report(String name, int size, int n, long elapsed,
+			long[] times, long allocPerOp, long bytes) {
+		Arrays.sort(times);
+		System.out.println(String.format(Locale.US,
+				"%-28s %9s %8d %12.1f %11s %11s %11s %11s %12s %11s",
+				name, size < 0 ? "-" : Integer.toString(size), n,
+				n / (elapsed / 1e9), micros(percentile(times, 50)),
+				micros(percentile(times, 90)), micros(percentile(times, 99)),
+				micros(times[n - 1]), allocPerOp < 0 ? "n/a" : Long.toString(allocPerOp),
+				bytes < 0 ? "-" : Long.toString(bytes)));
+	}
+
+	private static long percentile(long[] sorted, int p) {
+		int i = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+	}
+
+	private static String micros(long nanos) {
+		return String.format(Locale.US, "%.1f", nanos / 1000.0);
+	}
+
+	static int[] sizes() {
+		String[] parts = System.getProperty("bench.sizes", "1000,100000,1000000").split(",");
+		int[] sizes = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			sizes[i] = Integer.parseInt(parts[i].trim());
+		}
+		return sizes;
+	}
+
+	public static void main(String[] args) throws Exception {
+		// Ring logs to stderr, which would swamp the results
+		System.setErr(new java.io.PrintStream(new java.io.OutputStream() {
+			public void write(int b) {
+			}
+		}));
+		System.out.println(String.format(Locale.US,
+				"%-28s %9s %8s %12s %11s %11s %11s %11s %12s %11s",
+				"benchmark", "items", "ops", "ops/s", "p50 us", "p90 us",
+				"p99 us", "max us", "alloc B/op", "bytes"));
+		int[] sizes = sizes();
+		for (Case c : cases()) {
+			if (! c.name.contains(filter)) {
+				continue;
+			}
+			if (c.sized) {
+				for (int size : sizes) {
+					run(c, size);
+				}
+			} else {
+				run(c, 0);
+			}
+		}
+	}
+}
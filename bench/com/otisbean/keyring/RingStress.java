@@ -0,0 +1,223 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *     
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Stress test for a Ring shared between threads: many threads at once add,
+ * replace, remove and look up Items, read their (encrypted) contents,
+ * encrypt and decrypt, create categories and export, all against the same
+ * Ring, and check that every answer is consistent.
+ *
+ * Every Item's username is derived from its title, so whichever thread's
+ * copy of an Item wins, a lookup can tell if it got a broken one.  The
+ * plaintext cache is kept small, so Items are being relocked by one
+ * thread while another is reading them.
+ *
+ * Run with "ant stress".  Exits non-zero on the first few failures.
+ *
+ * System properties:
+ *   stress.threads  number of threads (default 16)
+ *   stress.seconds  how long to run (default 10)
+ *   stress.items    number of distinct titles (default 2000)
+ *
+ * @author Dirk Bergstrom
+ */
+public class RingStress {
+
+	private static final String[] OPS = { "getItem", "addItem", "removeItem",
+		"encrypt/decrypt", "category", "getItems", "export" };
+	private static final int GET = 0;
+	private static final int ADD = 1;
+	private static final int REMOVE = 2;
+	private static final int CRYPT = 3;
+	private static final int CATEGORY = 4;
+	private static final int ITEMS = 5;
+	private static final int EXPORT = 6;
+
+	private static final int CATEGORIES = 50;
+
+	private static Ring ring;
+	private static int titles;
+	private static AtomicLongArray counts = new AtomicLongArray(OPS.length);
+	private static Queue<String> failures = new ConcurrentLinkedQueue<String>();
+
+	public static void main(String[] args) throws Exception {
+		// Ring logs to stderr, which would swamp the results; but not
+		// anything that goes wrong setting up
+		PrintStream err = System.err;
+		System.setErr(new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+		}));
+		boolean ok;
+		try {
+			ok = stress();
+		} finally {
+			System.setErr(err);
+		}
+		System.exit(ok ? 0 : 1);
+	}
+
+	/**
+	 * @return True if nothing went wrong.
+	 */
+	private static boolean stress() throws Exception {
+		int threads = Integer.getInteger("stress.threads", 16);
+		long seconds = Long.getLong("stress.seconds", 10);
+		titles = Integer.getInteger("stress.items", 2000);
+
+		ring = new Ring(RingBenchmark.PASSWORD);
+		ring.getPlaintextCache().setMaxItems(100);
+		for (int i = 0; i < titles; i += 2) {
+			ring.addItem(newItem(i));
+		}
+
+		final long end = System.currentTimeMillis() + seconds * 1000;
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final long seed = t;
+			workers[t] = new Thread(new Runnable() {
+				public void run() {
+					Random random = new Random(seed);
+					try {
+						start.await();
+						while (System.currentTimeMillis() < end && failures.size() < 10) {
+							step(random);
+						}
+					} catch (Throwable e) {
+						failures.add(Thread.currentThread().getName() + ": " + e);
+					}
+				}
+			}, "stress-" + t);
+			workers[t].start();
+		}
+		start.countDown();
+		for (Thread w : workers) {
+			w.join();
+		}
+		check();
+
+		System.out.println(String.format(Locale.US, "%d threads, %d s, %d titles",
+				threads, seconds, titles));
+		for (int i = 0; i < OPS.length; i++) {
+			System.out.println(String.format(Locale.US, "  %-16s %10d", OPS[i],
+					counts.get(i)));
+		}
+		System.out.println(ring.getPlaintextCache());
+		for (String f : failures) {
+			System.out.println("FAILED " + f);
+		}
+		System.out.println(failures.isEmpty() ? "OK" : failures.size() + " failures");
+		return failures.isEmpty();
+	}
+
+	private static String title(int i) {
+		return "Item " + i;
+	}
+
+	private static String username(String title) {
+		return "user of " + title;
+	}
+
+	private static Item newItem(int i) throws Exception {
+		String title = title(i);
+		return new Item(ring, username(title), "pass " + i, "https://example.com/" + i,
+				"", title, ring.categoryIdForName("Category " + (i % CATEGORIES)));
+	}
+
+	private static void step(Random random) throws Exception {
+		int op = random.nextInt(100);
+		if (op < 40) {
+			op = GET;
+			String title = title(random.nextInt(titles));
+			Item item = ring.getItem(title);
+			if (null != item) {
+				expect(title.equals(item.getTitle()), "getItem(" + title +
+						") got " + item.getTitle());
+				String user = item.getUsername();
+				expect(username(title).equals(user), title + " has username " + user);
+			}
+		} else if (op < 60) {
+			op = ADD;
+			ring.addItem(newItem(random.nextInt(titles)));
+		} else if (op < 75) {
+			op = REMOVE;
+			ring.removeItem(title(random.nextInt(titles)));
+		} else if (op < 90) {
+			op = CRYPT;
+			String plain = "secret " + random.nextLong();
+			String crypted = ring.encrypt(plain, Ring.DB_SALT_LENGTH);
+			// The salt comes back too
+			String decrypted = ring.decrypt(crypted);
+			expect(decrypted.length() == Ring.DB_SALT_LENGTH + plain.length() &&
+					decrypted.endsWith(plain), "decrypt(encrypt(" + plain + ")) = " +
+					decrypted);
+		} else if (op < 97) {
+			op = CATEGORY;
+			String name = "Category " + random.nextInt(CATEGORIES * 2);
+			int id = ring.categoryIdForName(name);
+			String back = ring.categoryNameForId(id);
+			expect(name.equals(back), name + " got id " + id + ", which is " + back);
+		} else if (op < 99) {
+			op = ITEMS;
+			for (Item item : ring.getItems()) {
+				expect(null != item.getTitle(), "Item without a title");
+			}
+		} else {
+			op = EXPORT;
+			RingBenchmark.CountingOutputStream os = new RingBenchmark.CountingOutputStream();
+			ring.writeExport(os, false);
+			expect(os.count > 0, "Empty export");
+		}
+		counts.incrementAndGet(op);
+	}
+
+	/**
+	 * Once the threads are done, every Item must be filed under its own
+	 * title, and decrypt to what was put in it.
+	 */
+	private static void check() throws Exception {
+		int n = 0;
+		for (Item item : ring.getItems()) {
+			String title = item.getTitle();
+			expect(ring.getItem(title) == item, title + " isn't filed under its title");
+			expect(username(title).equals(item.getUsername()), title +
+					" has username " + item.getUsername());
+			n++;
+		}
+		expect(n <= titles, n + " Items from " + titles + " titles");
+	}
+
+	private static void expect(boolean ok, String failure) {
+		if (! ok) {
+			failures.add(Thread.currentThread().getName() + ": " + failure);
+		}
+	}
+}
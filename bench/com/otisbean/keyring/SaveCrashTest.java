@@ -0,0 +1,189 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *     
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+/**
+ * Fault injection for atomic saves: kills saves part way through, and
+ * checks that the keyring survives every one.
+ *
+ * Run with "ant crashtest".  Each trial starts a child JVM which loads
+ * the keyring, adds an Item and saves.  A watcher thread in the child
+ * halts the JVM, as abruptly as kill -9, once the temp file being written
+ * reaches a random offset (some offsets are past the end, so those saves
+ * finish).  The keyring must then load, with every Item, and hold the new
+ * Item exactly when the save finished.  Exits non-zero if it doesn't.
+ *
+ * System properties:
+ *   crashtest.trials  number of saves to kill (default 40)
+ *   crashtest.size    items in the keyring (default 20000)
+ *
+ * @author Dirk Bergstrom
+ */
+public class SaveCrashTest {
+
+	private static final String NAME = "keyring.json";
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && "child".equals(args[0])) {
+			child(new File(args[1]), Long.parseLong(args[2]), args[3]);
+			return;
+		}
+		// Ring logs to stderr, which would swamp the results; but not
+		// anything that goes wrong setting up
+		PrintStream err = System.err;
+		System.setErr(new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+		}));
+		boolean ok;
+		try {
+			ok = crashTest();
+		} finally {
+			System.setErr(err);
+		}
+		System.exit(ok ? 0 : 1);
+	}
+
+	/**
+	 * @return True if every keyring survived.
+	 */
+	private static boolean crashTest() throws Exception {
+		int trials = Integer.getInteger("crashtest.trials", 40);
+		int size = Integer.getInteger("crashtest.size", 20000);
+
+		File dir = RingBenchmark.tempFile(".dir");
+		dir.delete();
+		dir.mkdir();
+		File file = new File(dir, NAME);
+		File log = new File(dir, "child.log");
+		RingBenchmark.syntheticRing(size).save(file.getPath(), false);
+		System.out.println("Keyring of " + size + " items, " + file.length() +
+				" bytes");
+
+		Random random = new Random();
+		int items = size;
+		int killed = 0;
+		int failures = 0;
+		long minOffset = Long.MAX_VALUE;
+		long maxOffset = 0;
+		for (int trial = 0; trial < trials; trial++) {
+			// A tenth of the saves get to finish
+			long offset = (long) (random.nextDouble() * file.length() * 1.1);
+			String title = "Crash trial " + trial;
+			ProcessBuilder pb = new ProcessBuilder(
+					new File(System.getProperty("java.home"), "bin/java").getPath(),
+					"-cp", System.getProperty("java.class.path"),
+					SaveCrashTest.class.getName(), "child", file.getPath(),
+					Long.toString(offset), title);
+			pb.redirectErrorStream(true);
+			pb.redirectOutput(ProcessBuilder.Redirect.to(log));
+			int status = pb.start().waitFor();
+			boolean finished = status == 0;
+			if (! finished && status != 1) {
+				throw new Exception("Trial " + trial + " failed before saving, see " + log);
+			}
+
+			// What the killed save left behind
+			for (File f : dir.listFiles()) {
+				if (f.getName().startsWith(NAME + ".") && f.getName().endsWith(".tmp")) {
+					minOffset = Math.min(minOffset, f.length());
+					maxOffset = Math.max(maxOffset, f.length());
+					f.delete();
+				}
+			}
+
+			String problem = null;
+			try {
+				Ring ring = new Ring();
+				ring.load(file.getPath());
+				if (! ring.validatePassword(RingBenchmark.PASSWORD)) {
+					problem = "password doesn't validate";
+				} else {
+					boolean saved = null != ring.getItem(title);
+					int expected = saved ? items + 1 : items;
+					if (finished && ! saved) {
+						problem = "finished save is missing";
+					} else if (ring.getItems().size() != expected) {
+						problem = ring.getItems().size() + " items, expected " + expected;
+					} else {
+						items = expected;
+						if (! saved) {
+							killed++;
+						}
+					}
+				}
+			} catch (Exception e) {
+				problem = e.toString();
+			}
+			if (null != problem) {
+				failures++;
+				System.out.println("Trial " + trial + " (kill at " + offset +
+						"): " + problem);
+			}
+		}
+		System.out.println(trials + " trials, " + killed + " saves killed (" +
+				(killed > 0 ? "temp files of " + minOffset + " to " + maxOffset +
+				" bytes" : "none") + "), " + (trials - killed) + " finished, " +
+				failures + " failures");
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+		return failures == 0;
+	}
+
+	/**
+	 * Add an Item and save, halting once the temp file reaches offset.
+	 */
+	private static void child(final File file, final long offset, String title)
+			throws Exception {
+		Ring ring = new Ring();
+		ring.load(file.getPath());
+		if (! ring.validatePassword(RingBenchmark.PASSWORD)) {
+			throw new Exception("Password didn't validate");
+		}
+		ring.addItem(new Item(ring, "someone", "p4ssw0rd", "https://example.com/",
+				"", title, 0));
+
+		Thread watcher = new Thread(new Runnable() {
+			public void run() {
+				File dir = file.getParentFile();
+				while (true) {
+					for (File f : dir.listFiles()) {
+						if (f.getName().startsWith(NAME + ".") &&
+								f.getName().endsWith(".tmp") && f.length() >= offset) {
+							Runtime.getRuntime().halt(1);
+						}
+					}
+					Thread.yield();
+				}
+			}
+		});
+		watcher.setDaemon(true);
+		watcher.start();
+		ring.save(file.getPath(), false);
+		System.exit(0);
+	}
+}
@@ -0,0 +1,210 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process HTTP server standing in for a keyring server, for the
+ * upload and URL cache tests.  It answers each request with the next
+ * Response in its script (the last one repeats), and remembers the
+ * requests it got.
+ *
+ * @author Dirk Bergstrom
+ */
+class StandInServer {
+
+	/**
+	 * Answers one request.
+	 */
+	interface Response {
+		void respond(HttpExchange x) throws IOException;
+	}
+
+	/**
+	 * What the server was sent.
+	 */
+	static class Request {
+		String method;
+		String path;
+		Headers headers;
+		byte[] body;
+	}
+
+	private HttpServer server;
+	// So a delayed answer doesn't hold up the next request
+	private ExecutorService executor = Executors.newCachedThreadPool();
+	// Guarded by this
+	private LinkedList<Response> script = new LinkedList<Response>();
+	private List<Request> requests = new ArrayList<Request>();
+
+	StandInServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange x) throws IOException {
+				Request r = new Request();
+				r.method = x.getRequestMethod();
+				r.path = x.getRequestURI().getPath();
+				r.headers = x.getRequestHeaders();
+				r.body = readAll(x.getRequestBody());
+				Response response;
+				synchronized (StandInServer.this) {
+					requests.add(r);
+					response = script.size() > 1 ? script.removeFirst() : script.peek();
+				}
+				try {
+					if (null == response) {
+						x.sendResponseHeaders(404, -1);
+					} else {
+						response.respond(x);
+					}
+				} finally {
+					x.close();
+				}
+			}
+		});
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * @return The URL of path on this server.
+	 */
+	URL url(String path) throws IOException {
+		return new URL("http", "127.0.0.1", server.getAddress().getPort(), path);
+	}
+
+	/**
+	 * Answer the coming requests with these, in order, and forget the
+	 * requests so far.
+	 */
+	synchronized void script(Response... responses) {
+		script = new LinkedList<Response>(Arrays.asList(responses));
+		requests.clear();
+	}
+
+	synchronized List<Request> requests() {
+		return new ArrayList<Request>(requests);
+	}
+
+	void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @return A URL on a port nothing is listening on.
+	 */
+	static URL refusedUrl(String path) throws IOException {
+		ServerSocket s = new ServerSocket(0);
+		int port = s.getLocalPort();
+		s.close();
+		return new URL("http", "127.0.0.1", port, path);
+	}
+
+	/**
+	 * Answer with the given status and body.
+	 */
+	static Response status(int status, String body) {
+		return send(status, body.getBytes(), new String[0]);
+	}
+
+	/**
+	 * Answer with the given status and body, and headers as name, value,
+	 * name, value...
+	 */
+	static Response send(final int status, final byte[] body,
+			final String... headers) {
+		return new Response() {
+			public void respond(HttpExchange x) throws IOException {
+				for (int i = 0; i + 1 < headers.length; i += 2) {
+					x.getResponseHeaders().set(headers[i], headers[i + 1]);
+				}
+				if (0 == body.length) {
+					x.sendResponseHeaders(status, -1);
+					return;
+				}
+				x.sendResponseHeaders(status, body.length);
+				x.getResponseBody().write(body);
+			}
+		};
+	}
+
+	/**
+	 * Announce all of body, but only send the first half of it.
+	 */
+	static Response truncated(final byte[] body, final String... headers) {
+		return new Response() {
+			public void respond(HttpExchange x) throws IOException {
+				for (int i = 0; i + 1 < headers.length; i += 2) {
+					x.getResponseHeaders().set(headers[i], headers[i + 1]);
+				}
+				x.sendResponseHeaders(200, body.length);
+				OutputStream out = x.getResponseBody();
+				out.write(body, 0, body.length / 2);
+				out.flush();
+				// Closing the exchange now drops the connection
+			}
+		};
+	}
+
+	/**
+	 * Wait before answering with response.
+	 */
+	static Response delayed(final long millis, final Response response) {
+		return new Response() {
+			public void respond(HttpExchange x) throws IOException {
+				try {
+					Thread.sleep(millis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				response.respond(x);
+			}
+		};
+	}
+
+	static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int n;
+		while ((n = in.read(buf)) > 0) {
+			out.write(buf, 0, n);
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,210 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Saves a keyring to a StandInServer, and checks that Uploader sends it
+ * the way the server expects, and retries (or doesn't) as it should.
+ *
+ * Run with "ant uploadtest".  Exits non-zero if anything is wrong.
+ *
+ * System properties:
+ *   uploadtest.size  items in the keyring (default 3000)
+ *
+ * @author Dirk Bergstrom
+ */
+public class UploadTest {
+
+	private static final int ATTEMPTS = 3;
+	private static final int READ_TIMEOUT = 500;
+
+	public static void main(String[] args) throws Exception {
+		// Ring logs to stderr, which would swamp the results; but not
+		// anything that goes wrong setting up
+		PrintStream err = System.err;
+		System.setErr(new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+		}));
+		boolean ok;
+		try {
+			ok = uploadTest();
+		} finally {
+			System.setErr(err);
+		}
+		System.exit(ok ? 0 : 1);
+	}
+
+	/**
+	 * @return True if every check passed.
+	 */
+	private static boolean uploadTest() throws Exception {
+		int size = Integer.getInteger("uploadtest.size", 3000);
+		Ring ring = RingBenchmark.syntheticRing(size);
+		ring.setUploadRetries(ATTEMPTS, 50);
+		ring.setUploadTimeouts(2000, READ_TIMEOUT);
+		StandInServer server = new StandInServer();
+		URL url = server.url("/upload");
+		int failures = 0;
+		try {
+			failures += check("plain body reloads",
+					reloads(server, ring, false, size));
+			failures += check("gzipped body reloads",
+					reloads(server, ring, true, size));
+			ring.setGzipUploads(false);
+
+			server.script(StandInServer.status(503, ""),
+					StandInServer.status(503, ""), ok());
+			failures += check("503, 503, OK succeeds on the third attempt",
+					succeeds(server, ring, url, ATTEMPTS));
+
+			server.script(StandInServer.delayed(READ_TIMEOUT * 3, ok()), ok());
+			failures += check("read timeout is retried",
+					succeeds(server, ring, url, 2));
+
+			server.script(StandInServer.status(200, "ERROR: no such keyring\n"));
+			failures += check("ERROR: fails after one attempt",
+					fails(server, ring, url, 1));
+
+			server.script(StandInServer.status(400, "Bad request\n"));
+			failures += check("400 fails after one attempt",
+					fails(server, ring, url, 1));
+
+			server.script(StandInServer.status(500, ""));
+			failures += check("500 fails after " + ATTEMPTS + " attempts",
+					fails(server, ring, url, ATTEMPTS));
+
+			failures += check("refused connection fails",
+					fails(null, ring, StandInServer.refusedUrl("/upload"), 0));
+		} finally {
+			server.stop();
+		}
+		System.out.println(failures == 0 ? "OK" : failures + " failures");
+		return failures == 0;
+	}
+
+	private static StandInServer.Response ok() {
+		return StandInServer.status(200, "OK\n");
+	}
+
+	/**
+	 * @return 1 if problem isn't null, after saying how name went.
+	 */
+	private static int check(String name, String problem) {
+		System.out.println(name + ": " + (null == problem ? "ok" : "FAILED, " + problem));
+		return null == problem ? 0 : 1;
+	}
+
+	/**
+	 * Upload ring, and load what the server got.
+	 *
+	 * @return What's wrong, or null if it has every Item.
+	 */
+	private static String reloads(StandInServer server, Ring ring, boolean gzip,
+			int size) throws Exception {
+		ring.setGzipUploads(gzip);
+		server.script(ok());
+		ring.save(server.url("/upload").toString(), false);
+		List<StandInServer.Request> requests = server.requests();
+		if (requests.size() != 1) {
+			return requests.size() + " requests";
+		}
+		StandInServer.Request r = requests.get(0);
+		if (! "chunked".equalsIgnoreCase(r.headers.getFirst("Transfer-Encoding"))) {
+			return "not sent chunked";
+		}
+		byte[] body = r.body;
+		if (gzip) {
+			if (! "gzip".equals(r.headers.getFirst("Content-Encoding"))) {
+				return "no Content-Encoding: gzip";
+			}
+			body = StandInServer.readAll(new GZIPInputStream(
+					new ByteArrayInputStream(body)));
+		}
+		String form = new String(body, "US-ASCII");
+		if (! form.startsWith("data=")) {
+			return "no data field";
+		}
+		File f = RingBenchmark.tempFile(".json");
+		OutputStream out = new FileOutputStream(f);
+		try {
+			out.write(URLDecoder.decode(form.substring(5), "UTF-8").getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		Ring copy = new Ring();
+		if (! copy.load(f.getPath(), RingBenchmark.PASSWORD)) {
+			return "password doesn't validate";
+		}
+		if (copy.getItems().size() != size) {
+			return copy.getItems().size() + " items, expected " + size;
+		}
+		System.out.println("  " + r.body.length + " bytes sent");
+		return null;
+	}
+
+	/**
+	 * @return What's wrong, or null if uploading to url worked, in the
+	 * given number of attempts.
+	 */
+	private static String succeeds(StandInServer server, Ring ring, URL url,
+			int attempts) {
+		try {
+			ring.save(url.toString(), false);
+		} catch (Exception e) {
+			return "failed after " + server.requests().size() + " attempts: " + e;
+		}
+		return attempts(server, attempts);
+	}
+
+	/**
+	 * @param server Where url is, or null if it's nowhere.
+	 * @return What's wrong, or null if uploading to url failed with an
+	 * IOException, after the given number of attempts.
+	 */
+	private static String fails(StandInServer server, Ring ring, URL url,
+			int attempts) {
+		try {
+			ring.save(url.toString(), false);
+			return "succeeded";
+		} catch (IOException e) {
+			System.out.println("  " + e.getMessage());
+		} catch (Exception e) {
+			return "failed with " + e;
+		}
+		return null == server ? null : attempts(server, attempts);
+	}
+
+	private static String attempts(StandInServer server, int expected) {
+		int n = server.requests().size();
+		return n == expected ? null : n + " attempts, expected " + expected;
+	}
+}
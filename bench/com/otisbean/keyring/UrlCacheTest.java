@@ -0,0 +1,297 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * Loads keyrings from a StandInServer through the URL cache, and checks
+ * that the cache is used, refreshed and left alone when it should be.
+ *
+ * Run with "ant urlcachetest".  Exits non-zero if anything is wrong.
+ *
+ * System properties:
+ *   urlcachetest.size  items in the keyring (default 3000)
+ *
+ * @author Dirk Bergstrom
+ */
+public class UrlCacheTest {
+
+	private static final int READ_TIMEOUT = 500;
+	private static final String ETAG = "\"v1\"";
+	private static final String LAST_MODIFIED = "Sat, 17 Oct 2026 10:00:00 GMT";
+
+	public static void main(String[] args) throws Exception {
+		// Ring logs to stderr, which would swamp the results; but not
+		// anything that goes wrong setting up
+		PrintStream err = System.err;
+		System.setErr(new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+		}));
+		boolean ok;
+		try {
+			ok = urlCacheTest();
+		} finally {
+			System.setErr(err);
+		}
+		System.exit(ok ? 0 : 1);
+	}
+
+	/**
+	 * @return True if every check passed.
+	 */
+	private static boolean urlCacheTest() throws Exception {
+		int size = Integer.getInteger("urlcachetest.size", 3000);
+		byte[] v1 = keyringBytes(size);
+		byte[] v2 = keyringBytes(size + 1);
+
+		File dir = RingBenchmark.tempFile(".dir");
+		dir.delete();
+		dir.mkdir();
+		StandInServer server = new StandInServer();
+		URL url = server.url("/keyring.json");
+		StandInServer.Response v1Response = StandInServer.send(200, v1,
+				"ETag", ETAG, "Last-Modified", LAST_MODIFIED);
+		int failures = 0;
+		try {
+			server.script(v1Response);
+			failures += check("first load downloads and caches",
+					load(dir, url, size, 0, 0, 1));
+			File data = only(dir, ".data");
+			File meta = only(dir, ".meta");
+			if (null == data || null == meta) {
+				failures += check("one cached copy", "files are " +
+						Arrays.asList(dir.list()));
+				return false;
+			}
+
+			server.script(StandInServer.status(304, ""));
+			String problem = load(dir, url, size, 1, 0, 0);
+			if (null == problem) {
+				StandInServer.Request r = server.requests().get(0);
+				if (! ETAG.equals(r.headers.getFirst("If-None-Match")) ||
+						! LAST_MODIFIED.equals(r.headers.getFirst("If-Modified-Since"))) {
+					problem = "not a conditional GET";
+				}
+			}
+			failures += check("304 uses the cached copy", problem);
+
+			server.script(StandInServer.status(503, ""));
+			failures += check("503 uses the cached copy",
+					load(dir, url, size, 0, 1, 0));
+
+			server.script(StandInServer.delayed(READ_TIMEOUT * 4, v1Response));
+			long start = System.currentTimeMillis();
+			problem = load(dir, url, size, 0, 1, 0);
+			long took = System.currentTimeMillis() - start;
+			if (null == problem && took >= READ_TIMEOUT * 3) {
+				problem = "took " + took + " ms, read timeout is " + READ_TIMEOUT;
+			}
+			failures += check("timeout uses the cached copy, after the configured read timeout",
+					problem);
+
+			server.script(StandInServer.truncated(v2, "ETag", "\"v2\""));
+			problem = null;
+			try {
+				load(dir, url, size + 1, 0, 0, 1);
+				problem = "truncated download loaded";
+			} catch (Exception e) {
+				// Expected
+			}
+			if (null == problem && ! Arrays.equals(v1, readFile(data))) {
+				problem = "cached copy replaced";
+			}
+			if (null == problem && ! ETAG.equals(readMeta(meta).getProperty("etag"))) {
+				problem = "cached headers replaced";
+			}
+			if (null == problem && dir.list().length != 2) {
+				problem = "files left behind: " + Arrays.asList(dir.list());
+			}
+			failures += check("partial download isn't cached", problem);
+
+			failures += check("credentials stay out of the cache",
+					credentials(server, dir, url, v1Response, size));
+		} finally {
+			server.stop();
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+		System.out.println(failures == 0 ? "OK" : failures + " failures");
+		return failures == 0;
+	}
+
+	/**
+	 * @return 1 if problem isn't null, after saying how name went.
+	 */
+	private static int check(String name, String problem) {
+		System.out.println(name + ": " + (null == problem ? "ok" : "FAILED, " + problem));
+		return null == problem ? 0 : 1;
+	}
+
+	/**
+	 * Load url through the cache in dir.
+	 *
+	 * @return What's wrong, or null if it loaded with size Items, and the
+	 * cache counted the given numbers of hits, offline hits and misses.
+	 */
+	private static String load(File dir, URL url, int size, long hits,
+			long offlineHits, long misses) throws Exception {
+		UrlCacheStats before = Ring.getUrlCacheStats();
+		Ring ring = new Ring();
+		ring.setUrlCacheDir(dir);
+		ring.setUploadTimeouts(2000, READ_TIMEOUT);
+		if (! ring.load(url.toString(), RingBenchmark.PASSWORD)) {
+			return "password doesn't validate";
+		}
+		if (ring.getItems().size() != size) {
+			return ring.getItems().size() + " items, expected " + size;
+		}
+		UrlCacheStats after = Ring.getUrlCacheStats();
+		long h = after.getHits() - before.getHits();
+		long o = after.getOfflineHits() - before.getOfflineHits();
+		long m = after.getMisses() - before.getMisses();
+		if (h != hits || o != offlineHits || m != misses) {
+			return h + " hits, " + o + " offline hits, " + m + " misses; expected " +
+					hits + ", " + offlineHits + ", " + misses;
+		}
+		return null;
+	}
+
+	/**
+	 * Load url with a user and password in it, over an entry cached under
+	 * the whole URL the way it used to be.
+	 *
+	 * @return What's wrong, or null if no trace of the credentials is left
+	 * in the cache, and the entry is keyed by the bare URL.
+	 */
+	private static String credentials(StandInServer server, File dir, URL url,
+			StandInServer.Response response, int size) throws Exception {
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		URL withUser = new URL(url.toString().replace("://", "://alice:s3cret@"));
+		String old = sha256(withUser.toString());
+		writeFile(new File(dir, old + ".meta"), ("url=" + withUser + "\n").getBytes("UTF-8"));
+		writeFile(new File(dir, old + ".data"), new byte[0]);
+
+		server.script(response);
+		String problem = load(dir, withUser, size, 0, 0, 1);
+		if (null != problem) {
+			return problem;
+		}
+		server.script(StandInServer.status(304, ""));
+		problem = load(dir, withUser, size, 1, 0, 0);
+		if (null != problem) {
+			return "reload: " + problem;
+		}
+		if (dir.list().length != 2) {
+			return "files are " + Arrays.asList(dir.list());
+		}
+		for (File f : dir.listFiles()) {
+			String contents = new String(readFile(f), "ISO-8859-1");
+			if (contents.contains("alice") || contents.contains("s3cret")) {
+				return f.getName() + " holds the credentials";
+			}
+			if (f.getName().startsWith(old)) {
+				return "old entry " + f.getName() + " is still there";
+			}
+		}
+		String cachedUrl = readMeta(only(dir, ".meta")).getProperty("url");
+		if (! url.toString().equals(cachedUrl)) {
+			return "cached URL is " + cachedUrl;
+		}
+		return null;
+	}
+
+	/**
+	 * @return The bytes of a keyring of size Items.
+	 */
+	private static byte[] keyringBytes(int size) throws Exception {
+		File f = RingBenchmark.tempFile(".json");
+		RingBenchmark.syntheticRing(size).save(f.getPath(), false);
+		return readFile(f);
+	}
+
+	/**
+	 * @return The one file in dir with the given suffix, or null.
+	 */
+	private static File only(File dir, String suffix) {
+		File found = null;
+		for (File f : dir.listFiles()) {
+			if (f.getName().endsWith(suffix)) {
+				if (null != found) {
+					return null;
+				}
+				found = f;
+			}
+		}
+		return found;
+	}
+
+	private static Properties readMeta(File meta) throws IOException {
+		Properties p = new Properties();
+		InputStream in = new FileInputStream(meta);
+		try {
+			p.load(in);
+		} finally {
+			in.close();
+		}
+		return p;
+	}
+
+	private static byte[] readFile(File f) throws IOException {
+		InputStream in = new FileInputStream(f);
+		try {
+			return StandInServer.readAll(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeFile(File f, byte[] bytes) throws IOException {
+		OutputStream out = new FileOutputStream(f);
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String sha256(String s) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : MessageDigest.getInstance("SHA-256").digest(s.getBytes("UTF-8"))) {
+			sb.append(String.format("%02x", b & 0xff));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,273 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.AclFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributeView;
+
+/**
+ * Replaces a file all at once.  Output goes to a temp file in the same
+ * directory, through a FileChannel; close() forces it to disk, renames it
+ * over the target with an atomic move, and forces the directory to disk
+ * so the rename sticks.  At every moment the target is either the old
+ * file or the whole new one.  A crash or a full disk part way through
+ * leaves the old file alone (and a stray temp file).  abort() throws the
+ * new data away.
+ *
+ * If the target is a symbolic link, the file it points to is the one
+ * replaced, and the link is left as it is.  The temp file is given the
+ * target's permissions (POSIX or ACL), so replacing a file doesn't change
+ * who may read it.
+ *
+ * Optionally the old file is first copied to target.bak (itself written
+ * the same way), so the previous version survives too.
+ *
+ * @author Dirk Bergstrom
+ */
+class AtomicFileOutputStream extends OutputStream {
+
+	static final String BACKUP_SUFFIX = ".bak";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private Path target;
+	private boolean backup;
+	private boolean sync;
+	private Path tmp;
+	private FileChannel channel;
+	private ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+	private boolean closed;
+
+	/**
+	 * @param backup If true, keep a copy of the old file as target.bak.
+	 */
+	AtomicFileOutputStream(File target, boolean backup) throws IOException {
+		this(target, backup, true);
+	}
+
+	/**
+	 * @param sync If false, skip forcing the data and the rename to disk,
+	 * which gives up on surviving a power failure (for benchmarks).
+	 */
+	AtomicFileOutputStream(File target, boolean backup, boolean sync)
+			throws IOException {
+		Path path = target.toPath().toAbsolutePath();
+		if (Files.exists(path)) {
+			// Replace what a symbolic link points to, not the link
+			path = path.toRealPath();
+		}
+		this.target = path;
+		this.backup = backup;
+		this.sync = sync;
+		tmp = Files.createTempFile(path.getParent(),
+				path.getFileName() + ".", TEMP_SUFFIX);
+		boolean ok = false;
+		try {
+			if (Files.exists(path)) {
+				copyPermissions(path, tmp);
+			}
+			channel = FileChannel.open(tmp, StandardOpenOption.WRITE);
+			ok = true;
+		} finally {
+			if (! ok) {
+				Files.deleteIfExists(tmp);
+			}
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (! buf.hasRemaining()) {
+			drain();
+		}
+		buf.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (len > buf.remaining()) {
+			drain();
+			if (len > buf.capacity()) {
+				writeFully(ByteBuffer.wrap(b, off, len));
+				return;
+			}
+		}
+		buf.put(b, off, len);
+	}
+
+	/**
+	 * Writes buffered data to the temp file.  Nothing reaches the target
+	 * until close().
+	 */
+	@Override
+	public void flush() throws IOException {
+		drain();
+	}
+
+	/**
+	 * Force the new data to disk and put it in place of the target.  If
+	 * that fails the temp file is removed and the target is untouched.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		boolean ok = false;
+		try {
+			drain();
+			if (sync) {
+				channel.force(true);
+			}
+			channel.close();
+			if (backup && Files.exists(target)) {
+				copy(target, target.resolveSibling(target.getFileName() +
+						BACKUP_SUFFIX), sync);
+			}
+			rename(tmp, target);
+			if (sync) {
+				syncDirectory(target.getParent());
+			}
+			ok = true;
+		} finally {
+			closed = true;
+			if (! ok) {
+				discard();
+			}
+		}
+	}
+
+	/**
+	 * Throw away what's been written, leaving the target as it was.
+	 */
+	void abort() {
+		if (! closed) {
+			closed = true;
+			discard();
+		}
+	}
+
+	private void drain() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		buf.flip();
+		writeFully(buf);
+		buf.clear();
+	}
+
+	private void writeFully(ByteBuffer b) throws IOException {
+		while (b.hasRemaining()) {
+			channel.write(b);
+		}
+	}
+
+	private void discard() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Going away anyway
+		}
+		try {
+			Files.deleteIfExists(tmp);
+		} catch (IOException e) {
+			// Leave it, then
+		}
+	}
+
+	/**
+	 * Atomically replace to with a copy of from, and its permissions.
+	 */
+	private static void copy(Path from, Path to, boolean sync) throws IOException {
+		AtomicFileOutputStream out = new AtomicFileOutputStream(to.toFile(),
+				false, sync);
+		FileChannel src = FileChannel.open(from, StandardOpenOption.READ);
+		try {
+			copyPermissions(from, out.tmp);
+			long size = src.size();
+			long done = 0;
+			while (done < size) {
+				done += src.transferTo(done, size - done, out.channel);
+			}
+			out.close();
+		} finally {
+			out.abort();
+			src.close();
+		}
+	}
+
+	/**
+	 * Give to the same POSIX permissions or ACL as from, whichever the
+	 * file system has.
+	 */
+	private static void copyPermissions(Path from, Path to) throws IOException {
+		FileStore store = Files.getFileStore(to);
+		if (store.supportsFileAttributeView(PosixFileAttributeView.class)) {
+			Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from));
+		} else if (store.supportsFileAttributeView(AclFileAttributeView.class)) {
+			AclFileAttributeView fromAcl = Files.getFileAttributeView(from,
+					AclFileAttributeView.class);
+			AclFileAttributeView toAcl = Files.getFileAttributeView(to,
+					AclFileAttributeView.class);
+			if (null != fromAcl && null != toAcl) {
+				toAcl.setAcl(fromAcl.getAcl());
+			}
+		}
+	}
+
+	private static void rename(Path from, Path to) throws IOException {
+		try {
+			Files.move(from, to, StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			// Only on odd file systems, since from is in the same directory
+			Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Force a directory's entries to disk, so a rename in it survives a
+	 * crash.  Not every platform (Windows) can open a directory; there
+	 * the move itself is as durable as it gets.
+	 */
+	private static void syncDirectory(Path dir) throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(dir, StandardOpenOption.READ);
+		} catch (IOException e) {
+			return;
+		}
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+}
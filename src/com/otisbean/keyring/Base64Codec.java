@@ -0,0 +1,254 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Base64 encoding and decoding between caller-supplied arrays, so that the
+ * per-item crypto doesn't allocate.  The output is the same as
+ * net.iharder.Base64's with NO_OPTIONS: standard alphabet, padded, no line
+ * breaks.  Decoding skips whitespace and stops at the first padded quartet,
+ * as iharder's does.
+ *
+ * @author Dirk Bergstrom
+ */
+final class Base64Codec {
+
+	private static final byte[] ALPHABET = {
+		'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M',
+		'N', 'O', 'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X', 'Y', 'Z',
+		'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l', 'm',
+		'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z',
+		'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', '+', '/'
+	};
+
+	private static final byte WHITE_SPACE = -5;
+	private static final byte EQUALS_SIGN = -1;
+	private static final byte BAD = -9;
+
+	private static final byte[] DECODABET = new byte[128];
+	static {
+		Arrays.fill(DECODABET, BAD);
+		for (int i = 0; i < ALPHABET.length; i++) {
+			DECODABET[ALPHABET[i]] = (byte) i;
+		}
+		DECODABET['='] = EQUALS_SIGN;
+		DECODABET[' '] = WHITE_SPACE;
+		DECODABET['\t'] = WHITE_SPACE;
+		DECODABET['\n'] = WHITE_SPACE;
+		DECODABET['\r'] = WHITE_SPACE;
+	}
+
+	private Base64Codec() {
+	}
+
+	/**
+	 * @return The number of bytes encode() writes for len bytes of input.
+	 */
+	static int encodedLength(int len) {
+		return (len + 2) / 3 * 4;
+	}
+
+	/**
+	 * @return The most bytes decode() can write for len characters of input.
+	 */
+	static int maxDecodedLength(int len) {
+		return len / 4 * 3;
+	}
+
+	/**
+	 * Encode len bytes of src, starting at off, into dst at dstOff.  dst
+	 * must have room for encodedLength(len) bytes.
+	 *
+	 * @return The number of bytes written.
+	 */
+	static int encode(byte[] src, int off, int len, byte[] dst, int dstOff) {
+		int end = off + len;
+		int d = dstOff;
+		int s = off;
+		for (; s + 2 < end; s += 3) {
+			int bits = (src[s] & 0xff) << 16 | (src[s + 1] & 0xff) << 8 | (src[s + 2] & 0xff);
+			dst[d++] = ALPHABET[bits >>> 18];
+			dst[d++] = ALPHABET[(bits >>> 12) & 0x3f];
+			dst[d++] = ALPHABET[(bits >>> 6) & 0x3f];
+			dst[d++] = ALPHABET[bits & 0x3f];
+		}
+		int left = end - s;
+		if (left > 0) {
+			int bits = (src[s] & 0xff) << 16 | (left == 2 ? (src[s + 1] & 0xff) << 8 : 0);
+			dst[d++] = ALPHABET[bits >>> 18];
+			dst[d++] = ALPHABET[(bits >>> 12) & 0x3f];
+			dst[d++] = left == 2 ? ALPHABET[(bits >>> 6) & 0x3f] : (byte) '=';
+			dst[d++] = '=';
+		}
+		return d - dstOff;
+	}
+
+	/**
+	 * Decode len characters of src, starting at off, into dst at dstOff.
+	 * dst must have room for maxDecodedLength(len) bytes.
+	 *
+	 * @return The number of bytes written.
+	 * @throws IOException If src has characters that aren't base64.
+	 */
+	static int decode(byte[] src, int off, int len, byte[] dst, int dstOff)
+			throws IOException {
+		Decoder dec = new Decoder(dst, dstOff);
+		for (int i = off; i < off + len; i++) {
+			if (dec.add(src[i], i)) {
+				break;
+			}
+		}
+		return dec.written();
+	}
+
+	/**
+	 * Decode a String of base64, as decode(byte[], ...).
+	 */
+	static int decode(String src, byte[] dst, int dstOff) throws IOException {
+		Decoder dec = new Decoder(dst, dstOff);
+		int len = src.length();
+		for (int i = 0; i < len; i++) {
+			if (dec.add(src.charAt(i), i)) {
+				break;
+			}
+		}
+		return dec.written();
+	}
+
+	/**
+	 * Base64 encodes whatever is written to it into the underlying stream,
+	 * a buffer at a time.  close() writes any padding and closes the
+	 * underlying stream.
+	 */
+	static class EncodingStream extends FilterOutputStream {
+		private final byte[] pending = new byte[3 * 1024];
+		private final byte[] encoded = new byte[4 * 1024];
+		private int count;
+
+		EncodingStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			pending[count++] = (byte) b;
+			if (count == pending.length) {
+				drain(false);
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				int n = Math.min(len, pending.length - count);
+				System.arraycopy(b, off, pending, count, n);
+				count += n;
+				off += n;
+				len -= n;
+				if (count == pending.length) {
+					drain(false);
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			drain(false);
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			drain(true);
+			out.close();
+		}
+
+		/**
+		 * Encode whole groups of three bytes, or everything if last.
+		 */
+		private void drain(boolean last) throws IOException {
+			int n = last ? count : count - count % 3;
+			if (n > 0) {
+				out.write(encoded, 0, encode(pending, 0, n, encoded, 0));
+				System.arraycopy(pending, n, pending, 0, count - n);
+				count -= n;
+			}
+		}
+	}
+
+	/**
+	 * Quartet-at-a-time decoding state, shared by the two decode() methods.
+	 */
+	private static final class Decoder {
+		private final byte[] dst;
+		private final int start;
+		private int d;
+		private int bits;
+		private int n;
+		private int pad;
+
+		Decoder(byte[] dst, int dstOff) {
+			this.dst = dst;
+			this.start = dstOff;
+			this.d = dstOff;
+		}
+
+		/**
+		 * @return true once a padded quartet has been decoded.
+		 */
+		boolean add(int c, int pos) throws IOException {
+			byte v = c < 0 || c >= 128 ? BAD : DECODABET[c];
+			if (v == WHITE_SPACE) {
+				return false;
+			}
+			if (v == BAD) {
+				throw new IOException("Bad Base64 input character '" + (char) c +
+						"' at position " + pos);
+			}
+			if (v == EQUALS_SIGN) {
+				pad++;
+				v = 0;
+			}
+			bits = bits << 6 | v;
+			if (++n < 4) {
+				return false;
+			}
+			dst[d++] = (byte) (bits >>> 16);
+			if (pad < 2) {
+				dst[d++] = (byte) (bits >>> 8);
+			}
+			if (pad < 1) {
+				dst[d++] = (byte) bits;
+			}
+			boolean done = pad > 0;
+			bits = n = pad = 0;
+			return done;
+		}
+
+		int written() {
+			return d - start;
+		}
+	}
+}
@@ -0,0 +1,487 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * The compact binary keyring format, an alternative to the JSON export.
+ * It holds exactly what the JSON does, so either converts losslessly to
+ * the other.
+ *
+ * The file is a short plaintext header, then the body, encrypted as a
+ * whole just as the JSON db is (titles and categories are only protected
+ * by that outer layer):
+ *
+ * header:  0x89 'K' 'R' 'B', version byte,
+ *          varint schema_version, string salt, string check_data
+ * body:    DB_SALT_LENGTH salt characters, then
+ *          'K' 'R' 'B' 'D',
+ *          string crypt.salt, string crypt.checkData,
+ *          varint category count, (zigzag varint id, string name)...,
+ *          string prefs (as JSON),
+ *          records...,
+ *          index: int32 count, (int32 record offset, int32 title hash)...,
+ *          int32 index offset
+ * record:  varint length, string title, zigzag varint category,
+ *          varint created, varint viewed, varint changed,
+ *          byte 0 + bytes encrypted_data (raw cryptext) or
+ *          byte 1 + string encrypted_data (if it isn't plain base64)
+ *
+ * Strings are a varint of the UTF-8 length plus one, then the UTF-8, with
+ * zero for null.  Offsets count from the end of the body's salt.  The
+ * title hash is String.hashCode(), so the index can be used without
+ * reading the titles.
+ *
+ * @author Dirk Bergstrom
+ */
+final class BinaryFormat {
+
+	static final int VERSION = 1;
+
+	private static final byte[] MAGIC = {(byte) 0x89, 'K', 'R', 'B'};
+	private static final byte[] BODY_MAGIC = {'K', 'R', 'B', 'D'};
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private static final int RAW = 0;
+	private static final int VERBATIM = 1;
+
+	private BinaryFormat() {
+	}
+
+	/**
+	 * The plaintext header, and the still-encrypted body.
+	 */
+	static class Header {
+		long schemaVersion;
+		String salt;
+		String checkData;
+		ByteBuffer body;
+	}
+
+	/**
+	 * The decrypted body, apart from the records themselves.
+	 */
+	static class Body {
+		String salt;
+		String checkData;
+		Map<String, String> categories = new HashMap<String, String>();
+		JSONObject prefs;
+		/**
+		 * Where each record starts in the decrypted body, salt and all.
+		 */
+		int[] offsets;
+		int[] hashes;
+	}
+
+	/**
+	 * If in is a binary keyring, read it: local files are memory mapped,
+	 * anything else is read into memory.  Otherwise in is left as it was,
+	 * for the JSON reader.
+	 *
+	 * @param in A FileInputStream (or a ProgressInputStream over one), or a
+	 * stream that supports mark().
+	 * @return The whole file, or null if it isn't in the binary format.
+	 */
+	static ByteBuffer read(InputStream in) throws IOException {
+		FileChannel ch = null;
+		if (in instanceof FileInputStream) {
+			ch = ((FileInputStream) in).getChannel();
+		} else if (in instanceof ProgressInputStream) {
+			ch = ((ProgressInputStream) in).getChannel();
+		}
+		if (null != ch) {
+			long size = ch.size();
+			if (size < MAGIC.length || size > Integer.MAX_VALUE) {
+				return null;
+			}
+			ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			if (! isBinary(buf)) {
+				return null;
+			}
+			if (in instanceof ProgressInputStream) {
+				((ProgressInputStream) in).mapped(size);
+			}
+			return buf;
+		}
+		byte[] head = new byte[MAGIC.length];
+		in.mark(head.length);
+		int n = 0;
+		int r;
+		while (n < head.length && (r = in.read(head, n, head.length - n)) > 0) {
+			n += r;
+		}
+		in.reset();
+		if (n < head.length || ! isBinary(ByteBuffer.wrap(head))) {
+			return null;
+		}
+		ByteArrayOutputStream all = new ByteArrayOutputStream();
+		byte[] chunk = new byte[8192];
+		while ((r = in.read(chunk)) > 0) {
+			all.write(chunk, 0, r);
+		}
+		return ByteBuffer.wrap(all.toByteArray());
+	}
+
+	private static boolean isBinary(ByteBuffer buf) {
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (buf.get(i) != MAGIC[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static void writeHeader(OutputStream out, int schemaVersion, String salt,
+			String checkData) throws IOException {
+		out.write(MAGIC);
+		out.write(VERSION);
+		writeVarLong(out, schemaVersion);
+		writeString(out, salt);
+		writeString(out, checkData);
+	}
+
+	static Header readHeader(ByteBuffer buf) throws KeyringException {
+		ByteBuffer b = buf.duplicate();
+		b.position(MAGIC.length);
+		try {
+			int version = b.get();
+			if (version != VERSION) {
+				throw new KeyringException("Unknown binary format version " + version);
+			}
+			Header h = new Header();
+			h.schemaVersion = readVarLong(b);
+			h.salt = readString(b);
+			h.checkData = readString(b);
+			h.body = b.slice();
+			return h;
+		} catch (BufferUnderflowException e) {
+			throw new KeyringException("Truncated binary keyring");
+		} catch (IOException e) {
+			throw new KeyringException(e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Writes the body, an Item at a time, to a stream that encrypts it.
+	 */
+	static class BodyWriter {
+		private final DataOutputStream out;
+		private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+		private final byte[] raw = new byte[256];
+		private int[] offsets = new int[1024];
+		private int[] hashes = new int[1024];
+		private int count;
+
+		/**
+		 * @param out Takes the body after its salt.
+		 */
+		BodyWriter(OutputStream out, String salt, String checkData,
+				Map<Integer, String> categories, JSONObject prefs) throws IOException {
+			this.out = new DataOutputStream(out);
+			this.out.write(BODY_MAGIC);
+			writeString(this.out, salt);
+			writeString(this.out, checkData);
+			writeVarLong(this.out, categories.size());
+			for (Map.Entry<Integer, String> cat : categories.entrySet()) {
+				writeVarLong(this.out, zigzag(cat.getKey()));
+				writeString(this.out, cat.getValue());
+			}
+			writeString(this.out, null == prefs ? null : prefs.toJSONString());
+		}
+
+		void item(Item item) throws IOException {
+			String encrypted = item.getEncryptedDataForSave();
+			record.reset();
+			writeString(record, item.getTitle());
+			writeVarLong(record, zigzag(item.getCategoryId()));
+			writeVarLong(record, item.getCreated());
+			writeVarLong(record, item.getViewed());
+			writeVarLong(record, item.getChanged());
+			byte[] cryptext = rawBytes(encrypted);
+			if (null == cryptext) {
+				record.write(VERBATIM);
+				writeString(record, encrypted);
+			} else {
+				record.write(RAW);
+				writeVarLong(record, cryptext.length);
+				record.write(cryptext, 0, cryptext.length);
+			}
+
+			if (count == offsets.length) {
+				offsets = Arrays.copyOf(offsets, count * 2);
+				hashes = Arrays.copyOf(hashes, count * 2);
+			}
+			offsets[count] = out.size();
+			hashes[count] = item.getTitle().hashCode();
+			count++;
+			writeVarLong(out, record.size());
+			record.writeTo(out);
+		}
+
+		/**
+		 * Write the index and flush.
+		 */
+		void finish() throws IOException {
+			int index = out.size();
+			out.writeInt(count);
+			for (int i = 0; i < count; i++) {
+				out.writeInt(offsets[i]);
+				out.writeInt(hashes[i]);
+			}
+			out.writeInt(index);
+			out.flush();
+		}
+
+		/**
+		 * @return The cryptext of base64 encoded data, or null if
+		 * re-encoding it wouldn't give back exactly the same string.
+		 */
+		private byte[] rawBytes(String base64) {
+			if (null == base64) {
+				return null;
+			}
+			int max = Base64Codec.maxDecodedLength(base64.length() + 3);
+			byte[] decoded = max <= raw.length ? raw : new byte[max];
+			int n;
+			try {
+				n = Base64Codec.decode(base64, decoded, 0);
+			} catch (IOException e) {
+				return null;
+			}
+			if (! base64.equals(encode(decoded, 0, n))) {
+				return null;
+			}
+			return Arrays.copyOf(decoded, n);
+		}
+	}
+
+	/**
+	 * Read the body (decrypted, salt and all), apart from the records.
+	 *
+	 * @return The body, or null if it isn't one (as happens with the wrong
+	 * password).
+	 */
+	static Body readBody(byte[] decrypted, int saltLength, JSONParser parser) {
+		if (decrypted.length < saltLength + BODY_MAGIC.length + 8) {
+			return null;
+		}
+		Body body = new Body();
+		ByteBuffer b = ByteBuffer.wrap(decrypted, saltLength,
+				decrypted.length - saltLength).slice();
+		for (int i = 0; i < BODY_MAGIC.length; i++) {
+			if (b.get() != BODY_MAGIC[i]) {
+				return null;
+			}
+		}
+		try {
+			body.salt = readString(b);
+			body.checkData = readString(b);
+			long cats = readVarLong(b);
+			for (long i = 0; i < cats; i++) {
+				int id = unzigzag(readVarLong(b));
+				body.categories.put(Integer.toString(id), readString(b));
+			}
+			String prefs = readString(b);
+			if (null != prefs) {
+				Object p = parser.parse(prefs);
+				if (p instanceof JSONObject) {
+					body.prefs = (JSONObject) p;
+				}
+			}
+
+			int index = b.getInt(b.limit() - 4);
+			b.position(index);
+			int count = b.getInt();
+			if (count < 0 || (long) index + 8 + 8L * count != b.limit()) {
+				return null;
+			}
+			body.offsets = new int[count];
+			body.hashes = new int[count];
+			for (int i = 0; i < count; i++) {
+				int offset = b.getInt();
+				if (offset < 0 || offset >= index) {
+					return null;
+				}
+				body.offsets[i] = saltLength + offset;
+				body.hashes[i] = b.getInt();
+			}
+			return body;
+		} catch (RuntimeException e) {
+			// Buffer underflow, bad index, and the like
+			return null;
+		} catch (IOException e) {
+			return null;
+		} catch (ParseException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return The title of the record at offset.
+	 */
+	static String readTitle(byte[] data, int offset) throws KeyringException {
+		ByteBuffer b = record(data, offset);
+		try {
+			return readString(b);
+		} catch (RuntimeException e) {
+			throw new KeyringException("Corrupt record at " + offset);
+		} catch (IOException e) {
+			throw new KeyringException("Corrupt record at " + offset);
+		}
+	}
+
+	/**
+	 * @return The Item in the record at offset.
+	 */
+	static Item readItem(Ring ring, byte[] data, int offset) throws KeyringException {
+		ByteBuffer b = record(data, offset);
+		try {
+			String title = readString(b);
+			int category = unzigzag(readVarLong(b));
+			long created = readVarLong(b);
+			long viewed = readVarLong(b);
+			long changed = readVarLong(b);
+			String encrypted;
+			if (b.get() == RAW) {
+				int n = readLength(b);
+				encrypted = encode(data, b.position(), n);
+				b.position(b.position() + n);
+			} else {
+				encrypted = readString(b);
+			}
+			return new Item(ring, title, category, created, viewed, changed, encrypted);
+		} catch (RuntimeException e) {
+			throw new KeyringException("Corrupt record at " + offset);
+		} catch (IOException e) {
+			throw new KeyringException("Corrupt record at " + offset);
+		}
+	}
+
+	/**
+	 * @return A buffer over just the record at offset, after its length.
+	 */
+	private static ByteBuffer record(byte[] data, int offset) throws KeyringException {
+		ByteBuffer b = ByteBuffer.wrap(data);
+		try {
+			b.position(offset);
+			int len = readLength(b);
+			b.limit(b.position() + len);
+		} catch (RuntimeException e) {
+			throw new KeyringException("Corrupt record at " + offset);
+		} catch (IOException e) {
+			throw new KeyringException("Corrupt record at " + offset);
+		}
+		return b;
+	}
+
+	private static String encode(byte[] src, int off, int len) {
+		byte[] text = new byte[Base64Codec.encodedLength(len)];
+		int n = Base64Codec.encode(src, off, len, text, 0);
+		return new String(text, 0, n, ASCII);
+	}
+
+	private static void writeVarLong(OutputStream out, long v) throws IOException {
+		while ((v & ~0x7fL) != 0) {
+			out.write((int) (v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out.write((int) v);
+	}
+
+	private static long readVarLong(ByteBuffer b) throws IOException {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int x = b.get();
+			v |= (long) (x & 0x7f) << shift;
+			if ((x & 0x80) == 0) {
+				return v;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	/**
+	 * @return A varint that has to fit in what's left of b.
+	 */
+	private static int readLength(ByteBuffer b) throws IOException {
+		long n = readVarLong(b);
+		if (n < 0 || n > b.remaining()) {
+			throw new IOException("Bad length " + n);
+		}
+		return (int) n;
+	}
+
+	private static void writeString(OutputStream out, String s) throws IOException {
+		if (null == s) {
+			writeVarLong(out, 0);
+			return;
+		}
+		byte[] bytes = s.getBytes(UTF8);
+		writeVarLong(out, bytes.length + 1L);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer b) throws IOException {
+		long len = readVarLong(b);
+		if (len == 0) {
+			return null;
+		}
+		if (len - 1 > b.remaining()) {
+			throw new IOException("Bad length " + len);
+		}
+		int n = (int) (len - 1);
+		String s;
+		if (b.hasArray()) {
+			s = new String(b.array(), b.arrayOffset() + b.position(), n, UTF8);
+			b.position(b.position() + n);
+		} else {
+			byte[] bytes = new byte[n];
+			b.get(bytes);
+			s = new String(bytes, UTF8);
+		}
+		return s;
+	}
+
+	private static long zigzag(int v) {
+		return ((v << 1) ^ (v >> 31)) & 0xffffffffL;
+	}
+
+	private static int unzigzag(long v) {
+		return (int) (v >>> 1) ^ -((int) v & 1);
+	}
+}
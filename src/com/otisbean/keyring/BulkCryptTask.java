@@ -0,0 +1,109 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *     
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.security.GeneralSecurityException;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Locks or unlocks a batch of Items on the fork-join pool.  The work is
+ * split in half until the pieces are small enough to be worth a thread;
+ * each worker ends up using its own cipher, courtesy of Ring's
+ * per-thread crypto state.
+ *
+ * @author Dirk Bergstrom
+ */
+class BulkCryptTask extends RecursiveAction {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Items per leaf task.  Blowfish on a small item is a few microseconds,
+	 * so anything much smaller than this is all overhead.
+	 */
+	static final int THRESHOLD = 256;
+
+	private final Item[] items;
+	private final int from;
+	private final int to;
+	private final boolean lock;
+	private final AtomicLong done;
+	private final ProgressListener listener;
+
+	private BulkCryptTask(Item[] items, int from, int to, boolean lock,
+			AtomicLong done, ProgressListener listener) {
+		this.items = items;
+		this.from = from;
+		this.to = to;
+		this.lock = lock;
+		this.done = done;
+		this.listener = listener;
+	}
+
+	/**
+	 * Lock (or unlock) all the items, returning when they're done.
+	 */
+	static void run(Collection<Item> items, boolean lock, ProgressListener listener)
+			throws GeneralSecurityException, KeyringException {
+		Item[] array = items.toArray(new Item[items.size()]);
+		if (array.length == 0) {
+			return;
+		}
+		try {
+			ForkJoinPool.commonPool().invoke(new BulkCryptTask(array, 0,
+					array.length, lock, new AtomicLong(), listener));
+		} catch (WrappedException e) {
+			WrappedException.unwrap(e);
+		}
+	}
+
+	@Override
+	protected void compute() {
+		if (to - from <= THRESHOLD) {
+			for (int i = from; i < to; i++) {
+				Item item = items[i];
+				try {
+					synchronized (item) {
+						if (lock && ! item.isLocked()) {
+							item.lock();
+						} else if (! lock && item.isLocked()) {
+							item.unlock();
+						}
+					}
+				} catch (GeneralSecurityException e) {
+					throw new WrappedException(e);
+				} catch (KeyringException e) {
+					throw new WrappedException(e);
+				}
+			}
+			long sofar = done.addAndGet(to - from);
+			if (null != listener) {
+				listener.progress(sofar, items.length);
+			}
+		} else {
+			int mid = (from + to) >>> 1;
+			invokeAll(new BulkCryptTask(items, from, mid, lock, done, listener),
+					new BulkCryptTask(items, mid, to, lock, done, listener));
+		}
+	}
+}
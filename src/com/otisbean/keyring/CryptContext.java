@@ -0,0 +1,131 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * One thread's ciphers and scratch buffers for Ring.encrypt()/decrypt().
+ * Never shared between threads.
+ *
+ * Blowfish's key schedule is expensive, much more so than encrypting an
+ * Item, so there is a cipher for each direction, initialized once per key.
+ * A Cipher goes back to its just-initialized state after doFinal(), so
+ * they can be used over and over.
+ *
+ * The buffers grow to fit the largest Item seen, but anything bigger than
+ * MAX_RETAINED (the whole db, say) gets a one-off array, so a save doesn't
+ * leave megabytes pinned to every thread that ever did one.
+ *
+ * @author Dirk Bergstrom
+ */
+class CryptContext {
+
+	private static final int INITIAL_SIZE = 1024;
+	static final int MAX_RETAINED = 64 * 1024;
+
+	final Cipher encryptor;
+	final Cipher decryptor;
+	/**
+	 * The key the ciphers are initialized with, or null if they aren't.
+	 */
+	SecretKeySpec key;
+	private byte[] work = new byte[INITIAL_SIZE];
+	private byte[] text = new byte[INITIAL_SIZE];
+
+	CryptContext(String transformation) throws GeneralSecurityException {
+		encryptor = Cipher.getInstance(transformation);
+		decryptor = Cipher.getInstance(transformation);
+	}
+
+	/**
+	 * @return A buffer of at least n bytes for salt + plaintext, which is
+	 * encrypted or decrypted in place.
+	 */
+	byte[] work(int n) {
+		if (n <= work.length) {
+			return work;
+		}
+		if (n > MAX_RETAINED) {
+			return new byte[n];
+		}
+		work = new byte[Math.min(MAX_RETAINED, Math.max(n, work.length * 2))];
+		return work;
+	}
+
+	/**
+	 * @return A buffer of at least n bytes for base64 text, distinct from
+	 * the work buffer.
+	 */
+	byte[] text(int n) {
+		if (n <= text.length) {
+			return text;
+		}
+		if (n > MAX_RETAINED) {
+			return new byte[n];
+		}
+		text = new byte[Math.min(MAX_RETAINED, Math.max(n, text.length * 2))];
+		return text;
+	}
+
+	/**
+	 * @return The most bytes utf8() can write for s.
+	 */
+	static int maxUtf8Length(String s) {
+		return s.length() * 3;
+	}
+
+	/**
+	 * Write s as UTF-8 into dst at off, exactly as s.getBytes("UTF-8")
+	 * would (unpaired surrogates become '?').
+	 *
+	 * @return The number of bytes written.
+	 */
+	static int utf8(String s, byte[] dst, int off) {
+		int d = off;
+		int len = s.length();
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				dst[d++] = (byte) c;
+			} else if (c < 0x800) {
+				dst[d++] = (byte) (0xc0 | (c >> 6));
+				dst[d++] = (byte) (0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < len &&
+					Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				dst[d++] = (byte) (0xf0 | (cp >> 18));
+				dst[d++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+				dst[d++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				dst[d++] = (byte) (0x80 | (cp & 0x3f));
+			} else if (Character.isSurrogate(c)) {
+				dst[d++] = '?';
+			} else {
+				dst[d++] = (byte) (0xe0 | (c >> 12));
+				dst[d++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				dst[d++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		return d - off;
+	}
+}
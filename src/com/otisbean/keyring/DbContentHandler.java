@@ -0,0 +1,181 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ContentHandler;
+
+/**
+ * SAX-style handler that turns the decrypted database into Items as the
+ * parser walks over it, instead of building a JSONObject tree for the
+ * whole thing first.  The decrypted data looks like:
+ *
+ * {
+ *     db: { title: { title: ..., category: ..., encrypted_data: ... }, ... },
+ *     categories: { id: name, ... },
+ *     crypt: { salt: ..., checkData: ... },
+ *     prefs: { ... }
+ * }
+ *
+ * Nothing is touched on the Ring; the caller picks up the results once the
+ * parse has succeeded.
+ *
+ * @author Dirk Bergstrom
+ */
+class DbContentHandler implements ContentHandler {
+
+	private Ring ring;
+	private ProgressListener listener;
+	private int depth;
+	private String section;
+	private String title;
+	private String field;
+	private JSONObject rawItem;
+
+	// Generic tree building, used for prefs
+	private List<Object> stack = new ArrayList<Object>();
+	private String pendingKey;
+
+	Map<String, Item> items = new HashMap<String, Item>();
+	Map<String, String> categories;
+	String checkData;
+	JSONObject prefs;
+
+	DbContentHandler(Ring ring) {
+		this.ring = ring;
+		listener = ring.getItemProgressListener();
+	}
+
+	public void startJSON() {
+	}
+
+	public void endJSON() {
+	}
+
+	public boolean startObject() {
+		depth++;
+		if (building()) {
+			push(new JSONObject());
+		} else if (depth == 2 && "categories".equals(section)) {
+			categories = new HashMap<String, String>();
+		} else if (depth == 3 && "db".equals(section)) {
+			rawItem = new JSONObject();
+		}
+		return true;
+	}
+
+	public boolean endObject() {
+		if (building()) {
+			pop();
+		} else if (depth == 3 && "db".equals(section) && null != rawItem) {
+			items.put(title, new Item(ring, rawItem));
+			rawItem = null;
+			if (null != listener) {
+				listener.progress(items.size(), -1);
+			}
+		}
+		depth--;
+		return true;
+	}
+
+	public boolean startObjectEntry(String key) {
+		switch (depth) {
+		case 1: section = key; break;
+		case 2: title = key; break;
+		case 3: field = key; break;
+		}
+		pendingKey = key;
+		return true;
+	}
+
+	public boolean endObjectEntry() {
+		return true;
+	}
+
+	public boolean startArray() {
+		depth++;
+		if (building()) {
+			push(new JSONArray());
+		}
+		return true;
+	}
+
+	public boolean endArray() {
+		if (building()) {
+			pop();
+		}
+		depth--;
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	public boolean primitive(Object value) {
+		if (building()) {
+			if (stack.isEmpty()) {
+				// prefs was a bare primitive, which we don't support
+				return true;
+			}
+			Object parent = stack.get(stack.size() - 1);
+			if (parent instanceof JSONObject) {
+				((JSONObject) parent).put(pendingKey, value);
+			} else {
+				((JSONArray) parent).add(value);
+			}
+		} else if (depth == 3 && "db".equals(section) && null != rawItem) {
+			rawItem.put(field, value);
+		} else if (depth == 2 && "categories".equals(section) && null != categories) {
+			categories.put(title, null == value ? null : value.toString());
+		} else if (depth == 2 && "crypt".equals(section) && "checkData".equals(title)) {
+			checkData = (String) value;
+		}
+		return true;
+	}
+
+	private boolean building() {
+		return depth >= 2 && "prefs".equals(section);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void push(Object container) {
+		if (stack.isEmpty()) {
+			if (container instanceof JSONObject) {
+				prefs = (JSONObject) container;
+			}
+		} else {
+			Object parent = stack.get(stack.size() - 1);
+			if (parent instanceof JSONObject) {
+				((JSONObject) parent).put(pendingKey, container);
+			} else {
+				((JSONArray) parent).add(container);
+			}
+		}
+		stack.add(container);
+	}
+
+	private void pop() {
+		stack.remove(stack.size() - 1);
+	}
+}
@@ -0,0 +1,327 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Pull-style reader for the outer wrapper of a Keyring export file:
+ *
+ * {"db": "...", "salt": "...", "schema_version": 4}
+ *
+ * Members (and the elements of array members) are handed out one at a time.  String values can be read as a
+ * stream of (unescaped) bytes, so the multi-megabyte "db" member never has
+ * to exist as a String.  Anything else is small, and is handed to
+ * json-simple to be parsed.
+ *
+ * @author Dirk Bergstrom
+ */
+class ExportReader {
+
+	private InputStream in;
+	private int pushback = -2;
+	private boolean first = true;
+	private boolean firstElement;
+	private StringValueStream openString;
+
+	ExportReader(InputStream in) throws IOException, KeyringException {
+		this.in = new BufferedInputStream(in, 8192);
+		if (nextNonSpace() != '{') {
+			throw new KeyringException("Unparseable JSON data: export is not a JSON object");
+		}
+	}
+
+	/**
+	 * @return The name of the next member, or null at the end of the object.
+	 */
+	String nextKey() throws IOException, KeyringException {
+		finishString();
+		int c = nextNonSpace();
+		if (c == '}') {
+			return null;
+		}
+		if (! first) {
+			if (c != ',') {
+				throw unexpected(c);
+			}
+			c = nextNonSpace();
+		}
+		first = false;
+		if (c != '"') {
+			throw unexpected(c);
+		}
+		String key = readSmallString();
+		if (nextNonSpace() != ':') {
+			throw new KeyringException("Unparseable JSON data: missing ':' after \"" + key + "\"");
+		}
+		return key;
+	}
+
+	/**
+	 * @return true if the value of the current member is a string.
+	 */
+	boolean valueIsString() throws IOException {
+		int c = nextNonSpace();
+		pushback = c;
+		return c == '"';
+	}
+
+	/**
+	 * Step into the value of the current member, which must be an array.
+	 * Call nextElement() before reading each element with openString(),
+	 * readBytes() or readValue().
+	 */
+	void startArray() throws IOException, KeyringException {
+		int c = nextNonSpace();
+		if (c != '[') {
+			throw unexpected(c);
+		}
+		firstElement = true;
+	}
+
+	/**
+	 * @return false at the end of the array.
+	 */
+	boolean nextElement() throws IOException, KeyringException {
+		finishString();
+		int c = nextNonSpace();
+		if (c == ']') {
+			return false;
+		}
+		if (firstElement) {
+			pushback = c;
+			firstElement = false;
+		} else if (c != ',') {
+			throw unexpected(c);
+		}
+		return true;
+	}
+
+	/**
+	 * Stream the unescaped bytes of the current (string) member.  The
+	 * stream must be used up before the next call to nextKey(); whatever
+	 * is left over is skipped.
+	 */
+	InputStream openString() throws IOException, KeyringException {
+		int c = nextNonSpace();
+		if (c != '"') {
+			throw unexpected(c);
+		}
+		openString = new StringValueStream();
+		return openString;
+	}
+
+	/**
+	 * Read the (unescaped) bytes of the current string member into memory.
+	 */
+	byte[] readBytes() throws IOException, KeyringException {
+		InputStream is = openString();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(64 * 1024);
+		byte[] buf = new byte[8192];
+		int n;
+		while ((n = is.read(buf, 0, buf.length)) > 0) {
+			baos.write(buf, 0, n);
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Parse the value of the current member with json-simple.  Only use this
+	 * for small values.
+	 */
+	Object readValue() throws IOException, KeyringException {
+		if (valueIsString()) {
+			return new String(readBytes(), "UTF-8");
+		}
+		StringBuilder raw = new StringBuilder();
+		int depth = 0;
+		boolean inString = false;
+		while (true) {
+			int c = read();
+			if (c < 0) {
+				throw new KeyringException("Unparseable JSON data: premature end of file");
+			}
+			if (inString) {
+				if (c == '\\') {
+					raw.append((char) c);
+					c = read();
+				} else if (c == '"') {
+					inString = false;
+				}
+			} else if (c == '"') {
+				inString = true;
+			} else if (c == '{' || c == '[') {
+				depth++;
+			} else if (c == '}' || c == ']') {
+				if (depth == 0) {
+					pushback = c;
+					break;
+				}
+				depth--;
+			} else if (c == ',' && depth == 0) {
+				pushback = c;
+				break;
+			}
+			raw.append((char) c);
+		}
+		try {
+			return new JSONParser().parse(raw.toString().trim());
+		} catch (ParseException e) {
+			throw new KeyringException("Unparseable JSON data: " + e);
+		}
+	}
+
+	void close() throws IOException {
+		in.close();
+	}
+
+	private void finishString() throws IOException {
+		if (null != openString) {
+			while (openString.read() >= 0) {
+				// Skip whatever the caller didn't want
+			}
+			openString = null;
+		}
+	}
+
+	private String readSmallString() throws IOException, KeyringException {
+		openString = new StringValueStream();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		int c;
+		while ((c = openString.read()) >= 0) {
+			baos.write(c);
+		}
+		openString = null;
+		return new String(baos.toByteArray(), "UTF-8");
+	}
+
+	private int read() throws IOException {
+		if (pushback != -2) {
+			int c = pushback;
+			pushback = -2;
+			return c;
+		}
+		return in.read();
+	}
+
+	private int nextNonSpace() throws IOException {
+		int c;
+		do {
+			c = read();
+		} while (c == ' ' || c == '\t' || c == '\n' || c == '\r');
+		return c;
+	}
+
+	private KeyringException unexpected(int c) {
+		return new KeyringException("Unparseable JSON data: unexpected " +
+				(c < 0 ? "end of file" : "character '" + (char) c + "'"));
+	}
+
+	/**
+	 * The bytes of a JSON string value, with escapes undone, ending at the
+	 * closing quote.
+	 */
+	private class StringValueStream extends InputStream {
+		private boolean done;
+		// UTF-8 bytes of a pending \\uXXXX escape
+		private byte[] pending = new byte[3];
+		private int pendingPos;
+		private int pendingLen;
+
+		@Override
+		public int read() throws IOException {
+			if (pendingPos < pendingLen) {
+				return pending[pendingPos++] & 0xff;
+			}
+			if (done) {
+				return -1;
+			}
+			int c = ExportReader.this.read();
+			if (c < 0) {
+				throw new IOException("Unterminated JSON string");
+			}
+			if (c == '"') {
+				done = true;
+				return -1;
+			}
+			if (c != '\\') {
+				return c;
+			}
+			c = ExportReader.this.read();
+			switch (c) {
+			case 'b': return '\b';
+			case 'f': return '\f';
+			case 'n': return '\n';
+			case 'r': return '\r';
+			case 't': return '\t';
+			case 'u': return unicodeEscape();
+			case -1: throw new IOException("Unterminated JSON string");
+			default: return c;
+			}
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			int i = 0;
+			while (i < len) {
+				int c = read();
+				if (c < 0) {
+					break;
+				}
+				b[off + i++] = (byte) c;
+			}
+			return i == 0 ? -1 : i;
+		}
+
+		private int unicodeEscape() throws IOException {
+			int cp = 0;
+			for (int i = 0; i < 4; i++) {
+				int d = Character.digit(ExportReader.this.read(), 16);
+				if (d < 0) {
+					throw new IOException("Bad \\u escape in JSON string");
+				}
+				cp = (cp << 4) | d;
+			}
+			if (cp < 0x80) {
+				return cp;
+			}
+			// Surrogates are passed through as-is, we only ever expect ASCII here
+			pendingPos = 0;
+			if (cp < 0x800) {
+				pending[0] = (byte) (0x80 | (cp & 0x3f));
+				pendingLen = 1;
+				return 0xc0 | (cp >> 6);
+			}
+			pending[0] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+			pending[1] = (byte) (0x80 | (cp & 0x3f));
+			pendingLen = 2;
+			return 0xe0 | (cp >> 12);
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.json.simple.JSONValue;
+
+/**
+ * Push-style writer for the outer wrapper of a Keyring export file, the
+ * counterpart of ExportReader.  Members are written one at a time, and a
+ * string member can be written as a stream, so the "db" member can be
+ * encrypted and encoded straight into the output instead of being built
+ * up as a String first.
+ *
+ * @author Dirk Bergstrom
+ */
+class ExportWriter {
+
+	private OutputStream out;
+	private boolean first = true;
+	private boolean firstElement;
+	private StringValueStream openString;
+
+	ExportWriter(OutputStream out) throws IOException {
+		this.out = out;
+		out.write('{');
+	}
+
+	/**
+	 * Write a member with a small value, formatted by json-simple.
+	 */
+	void member(String key, Object value) throws IOException {
+		name(key);
+		ascii(JSONValue.toJSONString(value));
+	}
+
+	/**
+	 * Start a member whose value is a string, to be written (unescaped) to
+	 * the returned stream.  Closing the stream ends the string; it doesn't
+	 * close the underlying output.
+	 */
+	OutputStream openString(String key) throws IOException {
+		name(key);
+		return startString();
+	}
+
+	/**
+	 * Start a member whose value is an array of strings, each written with
+	 * openElement().
+	 */
+	void startArray(String key) throws IOException {
+		name(key);
+		out.write('[');
+		firstElement = true;
+	}
+
+	/**
+	 * Start the next string in the array, as openString().
+	 */
+	OutputStream openElement() throws IOException {
+		finishString();
+		if (! firstElement) {
+			out.write(',');
+		}
+		firstElement = false;
+		return startString();
+	}
+
+	void endArray() throws IOException {
+		finishString();
+		out.write(']');
+	}
+
+	/**
+	 * End the wrapper and flush, leaving the underlying output open.
+	 */
+	void finish() throws IOException {
+		finishString();
+		out.write('}');
+		out.flush();
+	}
+
+	private void name(String key) throws IOException {
+		finishString();
+		if (! first) {
+			out.write(',');
+		}
+		first = false;
+		out.write('"');
+		ascii(JSONValue.escape(key));
+		out.write('"');
+		out.write(':');
+	}
+
+	private OutputStream startString() throws IOException {
+		out.write('"');
+		openString = new StringValueStream();
+		return openString;
+	}
+
+	private void finishString() throws IOException {
+		if (null != openString) {
+			openString.close();
+		}
+	}
+
+	/**
+	 * Keys and small values are ASCII, since json-simple escapes
+	 * everything else.
+	 */
+	private void ascii(String s) throws IOException {
+		for (int i = 0; i < s.length(); i++) {
+			out.write(s.charAt(i));
+		}
+	}
+
+	/**
+	 * The bytes of a JSON string value, escaped as need be, ending with the
+	 * closing quote.
+	 */
+	private class StringValueStream extends OutputStream {
+		private boolean closed;
+
+		@Override
+		public void write(int b) throws IOException {
+			b &= 0xff;
+			if (b == '"' || b == '\\') {
+				out.write('\\');
+				out.write(b);
+			} else if (b < 0x20) {
+				ascii(String.format("\\u%04x", b));
+			} else {
+				out.write(b);
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			int start = off;
+			int end = off + len;
+			for (int i = off; i < end; i++) {
+				int c = b[i] & 0xff;
+				if (c == '"' || c == '\\' || c < 0x20) {
+					out.write(b, start, i - start);
+					write(c);
+					start = i + 1;
+				}
+			}
+			out.write(b, start, end - start);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (! closed) {
+				closed = true;
+				out.write('"');
+				openString = null;
+			}
+		}
+	}
+}
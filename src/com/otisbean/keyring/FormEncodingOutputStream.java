@@ -0,0 +1,89 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * application/x-www-form-urlencoded encoding of UTF-8 bytes, on the fly.
+ * The output is the same as URLEncoder.encode(s, "UTF-8").
+ *
+ * @author Dirk Bergstrom
+ */
+class FormEncodingOutputStream extends FilterOutputStream {
+
+	private static final byte[] HEX = {
+		'0', '1', '2', '3', '4', '5', '6', '7',
+		'8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+	};
+
+	private final byte[] buf = new byte[3 * 4096];
+	private int count;
+
+	FormEncodingOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (count + 3 > buf.length) {
+			drain();
+		}
+		b &= 0xff;
+		if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') ||
+				b == '.' || b == '-' || b == '*' || b == '_') {
+			buf[count++] = (byte) b;
+		} else if (b == ' ') {
+			buf[count++] = '+';
+		} else {
+			buf[count++] = '%';
+			buf[count++] = HEX[b >> 4];
+			buf[count++] = HEX[b & 0xf];
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		for (int i = off; i < off + len; i++) {
+			write(b[i]);
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		drain();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		drain();
+		out.close();
+	}
+
+	private void drain() throws IOException {
+		if (count > 0) {
+			out.write(buf, 0, count);
+			count = 0;
+		}
+	}
+}
@@ -28,6 +28,11 @@ import org.json.simple.parser.ParseException;
 /**
  * A single item on a Keyring.
  *
+ * The encrypted attributes and the locked state are guarded by the Item's
+ * monitor, so an Item can be locked, unlocked and read from several threads.
+ * Unlocked Items are tracked by the Ring's PlaintextCache, which relocks
+ * them when too many are unlocked, or when they go unused.
+ *
  * @author Dirk Bergstrom
  */
 public class Item implements JSONAware, Comparable<Item> {
@@ -48,6 +53,14 @@ public class Item implements JSONAware, Comparable<Item> {
 	private long changed;
 	private String encryptedData;
 	private boolean locked;
+	/**
+	 * True if the plaintext has changed since it was last encrypted.
+	 */
+	private boolean dirty = true;
+	/**
+	 * Identifies this Item in the Ring's PlaintextCache.
+	 */
+	final Object cacheToken = new Object();
 	
 	/**
 	 * Create an Item given all the values.
@@ -100,32 +113,47 @@ public class Item implements JSONAware, Comparable<Item> {
 		this.ring = ring;
 		encryptedData = (String) rawItem.get("encrypted_data");
 		title = (String) rawItem.get("title");
-		Object tmp = rawItem.get("category");
-		category = (int) (null == tmp ? 0 : (Long) tmp);
-		tmp = rawItem.get("created");
-		created = null == tmp ? 0 : (Long) tmp;
-		tmp = rawItem.get("viewed");
-		viewed = null == tmp ? 0 : (Long) tmp;
-		tmp = rawItem.get("changed");
-		changed = null == tmp ? 0 : (Long) tmp;
+		category = (int) longValue(rawItem.get("category"));
+		created = longValue(rawItem.get("created"));
+		viewed = longValue(rawItem.get("viewed"));
+		changed = longValue(rawItem.get("changed"));
 		// TODO Unlock and re-lock the item to validate that the encrypted data is valid?
 		//unlock();
 		//lock();
 		locked = true;
+		dirty = false;
+	}
+
+	/**
+	 * Create an Item from a record in a binary keyring, as with the
+	 * JSONObject constructor.
+	 */
+	Item(Ring ring, String title, int category, long created, long viewed,
+			long changed, String encryptedData) {
+		super();
+		this.ring = ring;
+		this.title = title;
+		this.category = category;
+		this.created = created;
+		this.viewed = viewed;
+		this.changed = changed;
+		this.encryptedData = encryptedData;
+		locked = true;
+		dirty = false;
+	}
+
+	/**
+	 * Dates are stored as an empty string if undefined, and may be missing
+	 * altogether, so treat anything that isn't a number as zero.
+	 */
+	private static long longValue(Object tmp) {
+		return tmp instanceof Number ? ((Number) tmp).longValue() : 0;
 	}
 
 	@SuppressWarnings("unchecked")
 	@Override
-	public String toJSONString() {
-		if (! locked) {
-			try {
-				lock();
-			} catch (GeneralSecurityException e) {
-				throw new RuntimeException(e);
-			} catch (KeyringException e) {
-				throw new RuntimeException(e);
-			}
-		}
+	public synchronized String toJSONString() {
+		lockForSave();
 		JSONObject itemJson = new JSONObject();
 		itemJson.put("title", title);
 		itemJson.put("category", category);
@@ -138,28 +166,69 @@ public class Item implements JSONAware, Comparable<Item> {
 		return itemJson.toJSONString();
 	}
 	
+	/**
+	 * @return The encrypted data, with any changes encrypted first.
+	 */
+	synchronized String getEncryptedDataForSave() {
+		lockForSave();
+		return encryptedData;
+	}
+
+	/**
+	 * @return A locked copy of this Item as it is now, which can be saved
+	 * while this one goes on changing.
+	 */
+	public synchronized Item snapshot() {
+		lockForSave();
+		return new Item(ring, title, category, created, viewed, changed,
+				encryptedData);
+	}
+
+	/**
+	 * Lock the Item if it isn't already, so it can be saved.  Call with the
+	 * Item's monitor held.
+	 */
+	private void lockForSave() {
+		if (! locked) {
+			try {
+				lock();
+			} catch (GeneralSecurityException e) {
+				throw new RuntimeException(e);
+			} catch (KeyringException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * Encrypt the plaintext (if it has changed) and throw it away.
+	 */
 	@SuppressWarnings("unchecked")
-	public void lock() throws GeneralSecurityException, KeyringException {
+	public synchronized void lock() throws GeneralSecurityException, KeyringException {
 		if (locked) {
 			throw new KeyringException("Locking an already locked record is wrong");
 		}
-		JSONObject crypted = new JSONObject();
-		crypted.put("username", username);
-		crypted.put("pass", pass);
-		crypted.put("url", url);
-		crypted.put("notes", notes);
-		encryptedData = ring.encrypt(crypted.toJSONString(), Ring.ITEM_SALT_LENGTH);
+		if (dirty) {
+			JSONObject crypted = new JSONObject();
+			crypted.put("username", username);
+			crypted.put("pass", pass);
+			crypted.put("url", url);
+			crypted.put("notes", notes);
+			encryptedData = ring.encrypt(crypted.toJSONString(), Ring.ITEM_SALT_LENGTH);
+			dirty = false;
+		}
 		username = pass = url = notes = "";
 		locked = true;
+		ring.getPlaintextCache().remove(this);
 	}
 	
-	public void unlock() throws GeneralSecurityException, KeyringException {
+	public synchronized void unlock() throws GeneralSecurityException, KeyringException {
 		String decryptedData;
 		decryptedData = ring.decrypt(encryptedData);
 
         JSONObject obj;
 		try {
-			obj = (JSONObject) ring.parser.parse(decryptedData);
+			obj = (JSONObject) ring.parser().parse(decryptedData);
 		} catch (ParseException e) {
 			// ParseException's toString() method returns a good error message
 			throw new KeyringException("Unparseable JSON data: " + e);
@@ -169,68 +238,139 @@ public class Item implements JSONAware, Comparable<Item> {
 		url = (String) obj.get("url");
 		notes = (String) obj.get("notes");
 		locked = false;
+		ring.getPlaintextCache().miss(this);
 	}
-	
-	public String getUsername() throws GeneralSecurityException, KeyringException {
+
+	/**
+	 * Make sure the plaintext is available, and let the cache know it's
+	 * being used.  Call with the Item's monitor held.
+	 */
+	private void access() throws GeneralSecurityException, KeyringException {
 		if (locked) {
 			unlock();
+		} else {
+			ring.getPlaintextCache().hit(this);
+		}
+	}
+
+	/**
+	 * Relock other Items if there are too many unlocked.  Call without the
+	 * Item's monitor held.
+	 */
+	private void trimCache() throws GeneralSecurityException, KeyringException {
+		ring.getPlaintextCache().trim();
+	}
+	
+	public String getUsername() throws GeneralSecurityException, KeyringException {
+		try {
+			synchronized (this) {
+				access();
+				return username;
+			}
+		} finally {
+			trimCache();
 		}
-		return username;
 	}
 	public void setUsername(String username) throws GeneralSecurityException, KeyringException {
-		if (locked) {
-			unlock();
+		try {
+			synchronized (this) {
+				access();
+				this.username = username;
+				dirty = true;
+			}
+			ring.itemChanged(this);
+		} finally {
+			trimCache();
 		}
-		this.username = username;
 	}
 	public String getPass() throws GeneralSecurityException, KeyringException {
-		if (locked) {
-			unlock();
+		try {
+			synchronized (this) {
+				access();
+				return pass;
+			}
+		} finally {
+			trimCache();
 		}
-		return pass;
 	}
 	public void setPass(String pass) throws GeneralSecurityException, KeyringException {
-		if (locked) {
-			unlock();
+		try {
+			synchronized (this) {
+				access();
+				this.pass = pass;
+				dirty = true;
+			}
+			ring.itemChanged(this);
+		} finally {
+			trimCache();
 		}
-		this.pass = pass;
 	}
 	public String getUrl() throws GeneralSecurityException, KeyringException {
-		if (locked) {
-			unlock();
+		try {
+			synchronized (this) {
+				access();
+				return url;
+			}
+		} finally {
+			trimCache();
 		}
-		return url;
 	}
 	public void setUrl(String url) throws GeneralSecurityException, KeyringException {
-		if (locked) {
-			unlock();
+		try {
+			synchronized (this) {
+				access();
+				this.url = url;
+				dirty = true;
+			}
+			ring.itemChanged(this);
+		} finally {
+			trimCache();
 		}
-		this.url = url;
 	}
 	public String getNotes() throws GeneralSecurityException, KeyringException {
-		if (locked) {
-			unlock();
+		try {
+			synchronized (this) {
+				access();
+				return notes;
+			}
+		} finally {
+			trimCache();
 		}
-		return notes;
 	}
 	public void setNotes(String notes) throws GeneralSecurityException, KeyringException {
-		if (locked) {
-			unlock();
+		try {
+			synchronized (this) {
+				access();
+				this.notes = notes;
+				dirty = true;
+			}
+			ring.itemChanged(this);
+		} finally {
+			trimCache();
 		}
-		this.notes = notes;
+	}
+	public synchronized boolean isLocked() {
+		return locked;
 	}
 	public String getTitle() {
 		return title;
 	}
-	public String getEncryptedData() {
+	public synchronized String getEncryptedData() {
 		return encryptedData;
 	}
-	public void setEncryptedData(String encryptedData) {
+	public synchronized void setEncryptedData(String encryptedData) {
 		this.encryptedData = encryptedData;
 	}
 
+	/**
+	 * If this Item is in its Ring, it's refiled under the new title.
+	 */
 	public void setTitle(String title) {
+		String oldTitle = this.title;
 		this.title = title;
+		if (null != oldTitle && ! oldTitle.equals(title)) {
+			ring.itemRenamed(this, oldTitle);
+		}
 	}
 	public long getCreated() {
 		return created;
@@ -254,13 +394,17 @@ public class Item implements JSONAware, Comparable<Item> {
 		return category;
 	}
 	public void setCategoryId(int cat) {
+		int oldCategory = category;
 		this.category = cat;
+		if (oldCategory != cat) {
+			ring.itemRecategorized(this, oldCategory);
+		}
 	}
 	public String getCategory() {
 		return ring.categoryNameForId(category);
 	}
 	public void setCategory(String categoryName) {
-		this.category = ring.categoryIdForName(categoryName);
+		setCategoryId(ring.categoryIdForName(categoryName));
 	}
 
 	/**
@@ -0,0 +1,520 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.ParseException;
+
+/**
+ * A title to offset index over the decrypted db, for lazy loading.
+ *
+ * Building it only walks the bytes of the JSON, noting where each Item's
+ * entry in the db object starts.  An Item (and its JSONObject) is only
+ * made when it's asked for, by title or by iterating over items().  The
+ * index itself is a few ints per Item.
+ *
+ * The decrypted body of a binary keyring comes with its own index, which
+ * is used as is.
+ *
+ * @author Dirk Bergstrom
+ */
+class ItemIndex {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final Ring ring;
+	/**
+	 * True if data is a binary keyring body, false if it's JSON.
+	 */
+	private final boolean records;
+	private final byte[] data;
+	private final int start;
+	private final int len;
+	/**
+	 * Where the db member's value starts and ends, or -1 if there isn't one.
+	 */
+	private int dbStart = -1;
+	private int dbEnd = -1;
+	/**
+	 * Offset of each entry's key (its opening quote), in file order.  -1
+	 * for an entry hidden by a later one with the same title.
+	 */
+	private int[] offsets = new int[1024];
+	private int[] hashes = new int[1024];
+	private int count;
+	/**
+	 * Open addressing hash table of entry number + 1, zero when empty.
+	 */
+	private int[] table;
+	private boolean[] loaded;
+	private volatile int remaining;
+
+	private ItemIndex(Ring ring, boolean records, byte[] data, int start, int len) {
+		this.ring = ring;
+		this.records = records;
+		this.data = data;
+		this.start = start;
+		this.len = len;
+	}
+
+	/**
+	 * Index data from start up to len, which should be the decrypted db.
+	 *
+	 * @return The index, or null if data isn't a JSON object (as happens
+	 * with the wrong password).
+	 */
+	static ItemIndex build(Ring ring, byte[] data, int start, int len) {
+		ItemIndex index = new ItemIndex(ring, false, data, start, len);
+		try {
+			index.scan();
+		} catch (MalformedException e) {
+			return null;
+		}
+		index.buildTable();
+		return index;
+	}
+
+	/**
+	 * Index the records of a decrypted binary keyring body.
+	 *
+	 * @param offsets Where each record starts in data.
+	 * @param hashes The String.hashCode() of each record's title.
+	 */
+	static ItemIndex forRecords(Ring ring, byte[] data, int[] offsets, int[] hashes) {
+		ItemIndex index = new ItemIndex(ring, true, data, 0, data.length);
+		index.offsets = offsets;
+		index.hashes = hashes;
+		index.count = offsets.length;
+		index.buildTable();
+		return index;
+	}
+
+	/**
+	 * @return The decrypted data with an empty db, for the categories,
+	 * crypt and prefs to be parsed as usual.
+	 */
+	InputStream withoutDb() {
+		if (dbStart < 0) {
+			return new ByteArrayInputStream(data, start, len - start);
+		}
+		return new SequenceInputStream(new SequenceInputStream(
+				new ByteArrayInputStream(data, start, dbStart - start),
+				new ByteArrayInputStream(new byte[] {'{', '}'})),
+				new ByteArrayInputStream(data, dbEnd, len - dbEnd));
+	}
+
+	/**
+	 * @return true once every Item has been handed to the Ring.
+	 */
+	boolean isComplete() {
+		return remaining == 0;
+	}
+
+	/**
+	 * Hand the Item with the given title to the Ring, if it's here and
+	 * hasn't been already.
+	 */
+	void loadFor(String title) throws KeyringException {
+		int entry = find(title);
+		if (entry >= 0) {
+			load(entry);
+		}
+	}
+
+	/**
+	 * Hand all the remaining Items to the Ring.
+	 */
+	void loadAll() throws KeyringException {
+		for (int i = 0; i < count && ! isComplete(); i++) {
+			load(i);
+		}
+	}
+
+	/**
+	 * @return A view of the Items in db, which loads Items from the index
+	 * as the iteration reaches them.  Items from the index come first, in
+	 * file order, then any others in db.
+	 */
+	Collection<Item> items(final Map<String, Item> db) {
+		return new AbstractCollection<Item>() {
+			@Override
+			public int size() {
+				return db.size() + remaining;
+			}
+
+			@Override
+			public Iterator<Item> iterator() {
+				return new ItemIterator(db);
+			}
+		};
+	}
+
+	/**
+	 * @return The entry with the given title, or -1.
+	 */
+	private int find(String title) {
+		int h = title.hashCode();
+		int mask = table.length - 1;
+		for (int i = spread(h) & mask; table[i] != 0; i = (i + 1) & mask) {
+			int entry = table[i] - 1;
+			if (hashes[entry] == h && title.equals(key(offsets[entry]))) {
+				return entry;
+			}
+		}
+		return -1;
+	}
+
+	private synchronized void load(int entry) throws KeyringException {
+		if (loaded[entry]) {
+			return;
+		}
+		int p = offsets[entry];
+		String title = key(p);
+		if (records) {
+			ring.loadItem(title, BinaryFormat.readItem(ring, data, p));
+		} else {
+			ring.loadItem(title, new Item(ring, parseValue(title, p)));
+		}
+		loaded[entry] = true;
+		remaining--;
+	}
+
+	/**
+	 * @return The JSON object following the key at p.
+	 */
+	private JSONObject parseValue(String title, int p) throws KeyringException {
+		int from;
+		int to;
+		try {
+			from = ws(expect(skipString(p), ':'));
+			to = skipValue(from);
+		} catch (MalformedException e) {
+			// Can't happen, scan() got past it
+			throw new KeyringException("Corrupt entry for " + title);
+		}
+		Object raw;
+		try {
+			raw = ring.parser().parse(new String(data, from, to - from, UTF8));
+		} catch (ParseException e) {
+			throw new KeyringException("Unparseable JSON data for " + title + ": " + e);
+		}
+		if (! (raw instanceof JSONObject)) {
+			throw new KeyringException("Corrupt entry for " + title);
+		}
+		return (JSONObject) raw;
+	}
+
+	/**
+	 * Walk the top level object, indexing the entries of the db member and
+	 * skipping everything else.
+	 */
+	private void scan() throws MalformedException {
+		int p = expect(start, '{');
+		if (ws(p) < len && data[ws(p)] == '}') {
+			p = ws(p) + 1;
+		} else {
+			while (true) {
+				int k = ws(p);
+				p = skipString(k);
+				boolean isDb = p - k == 4 && data[k + 1] == 'd' && data[k + 2] == 'b';
+				p = ws(expect(p, ':'));
+				if (isDb) {
+					dbStart = p;
+					p = scanDb(p);
+					dbEnd = p;
+				} else {
+					p = skipValue(p);
+				}
+				p = ws(p);
+				if (p < len && data[p] == ',') {
+					p++;
+				} else {
+					p = expect(p, '}');
+					break;
+				}
+			}
+		}
+		if (ws(p) != len) {
+			throw new MalformedException();
+		}
+	}
+
+	private int scanDb(int p) throws MalformedException {
+		p = expect(p, '{');
+		if (ws(p) < len && data[ws(p)] == '}') {
+			return ws(p) + 1;
+		}
+		while (true) {
+			int k = ws(p);
+			p = skipString(k);
+			add(k);
+			p = skipValue(expect(p, ':'));
+			p = ws(p);
+			if (p < len && data[p] == ',') {
+				p++;
+			} else {
+				return expect(p, '}');
+			}
+		}
+	}
+
+	private void add(int keyOffset) {
+		if (count == offsets.length) {
+			int[] o = new int[count * 2];
+			System.arraycopy(offsets, 0, o, 0, count);
+			offsets = o;
+			int[] h = new int[count * 2];
+			System.arraycopy(hashes, 0, h, 0, count);
+			hashes = h;
+		}
+		offsets[count] = keyOffset;
+		hashes[count] = keyHash(keyOffset);
+		count++;
+	}
+
+	/**
+	 * Build the hash table.  As with a JSONObject, a later entry with the
+	 * same title replaces an earlier one.
+	 */
+	private void buildTable() {
+		int size = 16;
+		while (size < count * 2) {
+			size <<= 1;
+		}
+		table = new int[size];
+		loaded = new boolean[count];
+		int live = count;
+		int mask = size - 1;
+		for (int entry = 0; entry < count; entry++) {
+			int h = hashes[entry];
+			int i = spread(h) & mask;
+			while (table[i] != 0) {
+				int other = table[i] - 1;
+				if (hashes[other] == h && key(offsets[other]).equals(key(offsets[entry]))) {
+					offsets[other] = -1;
+					loaded[other] = true;
+					live--;
+					break;
+				}
+				i = (i + 1) & mask;
+			}
+			table[i] = entry + 1;
+		}
+		remaining = live;
+	}
+
+	private static int spread(int h) {
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @return The String.hashCode() of the key at p, without making the
+	 * String when it's plain ASCII.
+	 */
+	private int keyHash(int p) {
+		int h = 0;
+		for (int i = p + 1; data[i] != '"'; i++) {
+			int b = data[i];
+			if (b < 0 || b == '\\') {
+				return key(p).hashCode();
+			}
+			h = 31 * h + b;
+		}
+		return h;
+	}
+
+	/**
+	 * @return The key whose opening quote is at p, or the title of the
+	 * record at p.
+	 */
+	private String key(int p) {
+		if (records) {
+			try {
+				return BinaryFormat.readTitle(data, p);
+			} catch (KeyringException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		int end;
+		try {
+			end = skipString(p);
+		} catch (MalformedException e) {
+			// Can't happen, scan() got past it
+			throw new IllegalStateException(e);
+		}
+		for (int i = p + 1; i < end - 1; i++) {
+			if (data[i] == '\\') {
+				return (String) JSONValue.parse(new String(data, p, end - p, UTF8));
+			}
+		}
+		return new String(data, p + 1, end - p - 2, UTF8);
+	}
+
+	private int ws(int p) {
+		while (p < len && (data[p] == ' ' || data[p] == '\t' ||
+				data[p] == '\n' || data[p] == '\r')) {
+			p++;
+		}
+		return p;
+	}
+
+	private int expect(int p, char c) throws MalformedException {
+		p = ws(p);
+		if (p >= len || data[p] != c) {
+			throw new MalformedException();
+		}
+		return p + 1;
+	}
+
+	/**
+	 * @return The position after the string whose opening quote is at p.
+	 */
+	private int skipString(int p) throws MalformedException {
+		if (p >= len || data[p] != '"') {
+			throw new MalformedException();
+		}
+		for (p++; p < len; p++) {
+			if (data[p] == '"') {
+				return p + 1;
+			}
+			if (data[p] == '\\') {
+				p++;
+			}
+		}
+		throw new MalformedException();
+	}
+
+	/**
+	 * @return The position after the value starting at or after p.  Only
+	 * strings and nesting are checked, the parser gets the rest when the
+	 * value is loaded.
+	 */
+	private int skipValue(int p) throws MalformedException {
+		p = ws(p);
+		if (p >= len) {
+			throw new MalformedException();
+		}
+		byte b = data[p];
+		if (b == '"') {
+			return skipString(p);
+		}
+		if (b == '{' || b == '[') {
+			int depth = 0;
+			while (p < len) {
+				b = data[p];
+				if (b == '"') {
+					p = skipString(p);
+					continue;
+				}
+				if (b == '{' || b == '[') {
+					depth++;
+				} else if (b == '}' || b == ']') {
+					if (--depth == 0) {
+						return p + 1;
+					}
+				}
+				p++;
+			}
+			throw new MalformedException();
+		}
+		int first = p;
+		while (p < len && (b = data[p]) != ',' && b != '}' && b != ']' &&
+				b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+			p++;
+		}
+		if (p == first) {
+			throw new MalformedException();
+		}
+		return p;
+	}
+
+	/**
+	 * Walks the index, loading each Item as it gets to it, then the Items
+	 * that were added to db since loading.
+	 */
+	private class ItemIterator implements Iterator<Item> {
+		private final Map<String, Item> db;
+		private int entry;
+		private Iterator<Item> rest;
+		private Item next;
+
+		ItemIterator(Map<String, Item> db) {
+			this.db = db;
+		}
+
+		public boolean hasNext() {
+			while (null == next && entry < count) {
+				int p = offsets[entry++];
+				if (p < 0) {
+					continue;
+				}
+				try {
+					load(entry - 1);
+				} catch (KeyringException e) {
+					throw new RuntimeException(e);
+				}
+				next = db.get(key(p));
+			}
+			if (null == next) {
+				if (null == rest) {
+					rest = db.values().iterator();
+				}
+				while (null == next && rest.hasNext()) {
+					Item item = rest.next();
+					if (find(item.getTitle()) < 0) {
+						next = item;
+					}
+				}
+			}
+			return null != next;
+		}
+
+		public Item next() {
+			if (! hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Item item = next;
+			next = null;
+			return item;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * The data isn't the JSON we're looking for.
+	 */
+	private static class MalformedException extends Exception {
+		private static final long serialVersionUID = 1L;
+	}
+}
@@ -0,0 +1,305 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *     
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Append-only log of item level changes, kept next to a keyring file
+ * (keyring.json => keyring.json.journal), so that saving an edit doesn't
+ * mean rewriting the whole keyring.
+ *
+ * Each line is one change, encrypted with the Ring's key exactly like the
+ * db is:
+ *
+ *     {"op": "put", "item": {...item JSON...}, "category": "name"}
+ *     {"op": "del", "title": "..."}
+ *
+ * Replaying is idempotent, so it doesn't matter if some of the changes
+ * are already in the base file.  Compaction takes advantage of this: the
+ * journal is first set aside (keyring.json.journal.old), new changes go to
+ * a fresh journal, the whole Ring is written to the base file, and only
+ * then is the old journal deleted.  A crash at any point leaves a base
+ * file and journals that replay to the right state.
+ *
+ * A crash in the middle of an append leaves a torn last record.  Replay
+ * stops there, and cuts the journal off after the last good record, so
+ * the changes appended from then on aren't stuck behind it.
+ *
+ * @author Dirk Bergstrom
+ */
+class Journal {
+
+	static final String SUFFIX = ".journal";
+	static final String ROTATED_SUFFIX = ".old";
+
+	/**
+	 * Compact once the journal is bigger than this many bytes.
+	 */
+	static final long DEFAULT_COMPACTION_THRESHOLD = 1024 * 1024;
+
+	private static final ExecutorService compactor =
+		Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "keyring-journal-compactor");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+	private Ring ring;
+	private String base;
+	private File file;
+	private File rotated;
+	private volatile long compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+	private boolean compacting;
+
+	Journal(Ring ring, String base) {
+		this.ring = ring;
+		this.base = base;
+		this.file = new File(base + SUFFIX);
+		this.rotated = new File(base + SUFFIX + ROTATED_SUFFIX);
+	}
+
+	String getBase() {
+		return base;
+	}
+
+	void setCompactionThreshold(long bytes) {
+		compactionThreshold = bytes;
+	}
+
+	/**
+	 * Record that an Item was added or changed.
+	 */
+	@SuppressWarnings("unchecked")
+	void appendPut(Item item) throws IOException, GeneralSecurityException {
+		JSONObject rec = new JSONObject();
+		rec.put("op", "put");
+		rec.put("item", item);
+		rec.put("category", item.getCategory());
+		append(rec);
+	}
+
+	/**
+	 * Record that the Item with the given title was removed.
+	 */
+	@SuppressWarnings("unchecked")
+	void appendRemoval(String title) throws IOException, GeneralSecurityException {
+		JSONObject rec = new JSONObject();
+		rec.put("op", "del");
+		rec.put("title", title);
+		append(rec);
+	}
+
+	private void append(JSONObject rec) throws IOException, GeneralSecurityException {
+		byte[] line = (ring.encrypt(rec.toJSONString(), Ring.DB_SALT_LENGTH) +
+				"\n").getBytes("UTF-8");
+		synchronized (this) {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				long end = raf.length();
+				if (end > 0) {
+					// Don't glue this onto a line a crash left unfinished
+					raf.seek(end - 1);
+					if (raf.read() != '\n') {
+						raf.write('\n');
+					}
+				}
+				raf.seek(raf.length());
+				raf.write(line);
+				raf.getFD().sync();
+			} finally {
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * Apply the set-aside journal (if a compaction didn't finish) and then
+	 * the current one to the Ring.
+	 *
+	 * @return The number of changes applied.
+	 */
+	synchronized int replay() throws IOException, GeneralSecurityException {
+		return replay(rotated) + replay(file);
+	}
+
+	private int replay(File f) throws IOException, GeneralSecurityException {
+		if (! f.exists()) {
+			return 0;
+		}
+		int count = 0;
+		// Offset just past the last good record
+		long good = 0;
+		long pos = 0;
+		boolean torn = false;
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		InputStream is = new BufferedInputStream(new FileInputStream(f));
+		try {
+			int b;
+			do {
+				b = is.read();
+				if (b < 0 && buf.size() == 0) {
+					break;
+				}
+				if (b >= 0) {
+					pos++;
+					if (b != '\n') {
+						buf.write(b);
+						continue;
+					}
+				}
+				if (buf.size() == 0) {
+					good = pos;
+					continue;
+				}
+				String line = buf.toString("US-ASCII");
+				buf.reset();
+				JSONObject rec;
+				try {
+					rec = (JSONObject) ring.parser().parse(ring.decrypt(line));
+				} catch (ParseException e) {
+					// Most likely a write torn by a crash; nothing after it is usable
+					ring.log("Unreadable journal record in " + f + ", stopping: " + e);
+					torn = true;
+					break;
+				} catch (GeneralSecurityException e) {
+					ring.log("Unreadable journal record in " + f + ", stopping: " + e);
+					torn = true;
+					break;
+				}
+				if ("put".equals(rec.get("op"))) {
+					Item item = new Item(ring, (JSONObject) rec.get("item"));
+					item.setCategory((String) rec.get("category"));
+					ring.addItem(item);
+				} else if ("del".equals(rec.get("op"))) {
+					ring.removeItem((String) rec.get("title"));
+				}
+				count++;
+				good = pos;
+			} while (b >= 0);
+		} finally {
+			is.close();
+		}
+		if (torn) {
+			truncate(f, good);
+		}
+		return count;
+	}
+
+	/**
+	 * Cut f off at length bytes, for good.
+	 */
+	private void truncate(File f, long length) throws IOException {
+		ring.log("Truncating " + f + " to " + length + " bytes");
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			raf.getChannel().truncate(length);
+			raf.getFD().sync();
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Set the current journal aside before the Ring is written out in
+	 * full.  Changes made from now on go to a new journal.
+	 */
+	synchronized void rotate() throws IOException {
+		if (! file.exists()) {
+			return;
+		}
+		if (rotated.exists()) {
+			// An earlier compaction didn't finish; keep its changes too
+			InputStream is = new FileInputStream(file);
+			OutputStream os = new FileOutputStream(rotated, true);
+			try {
+				byte[] buf = new byte[8192];
+				int n;
+				while ((n = is.read(buf)) > 0) {
+					os.write(buf, 0, n);
+				}
+			} finally {
+				is.close();
+				os.close();
+			}
+			if (! file.delete()) {
+				throw new IOException("Can't delete " + file);
+			}
+		} else if (! file.renameTo(rotated)) {
+			throw new IOException("Can't rename " + file + " to " + rotated);
+		}
+	}
+
+	/**
+	 * The Ring has been written out in full, so the set-aside journal is
+	 * no longer needed.
+	 */
+	synchronized void discardRotated() {
+		if (rotated.exists() && ! rotated.delete()) {
+			ring.log("Can't delete " + rotated);
+		}
+	}
+
+	synchronized long length() {
+		return file.length() + rotated.length();
+	}
+
+	/**
+	 * Start a background compaction if the journal has grown too big.
+	 */
+	void compactIfNeeded(final boolean compressCategories) {
+		synchronized (this) {
+			if (compacting || length() < compactionThreshold) {
+				return;
+			}
+			compacting = true;
+		}
+		compactor.execute(new Runnable() {
+			public void run() {
+				try {
+					ring.save(base, compressCategories);
+				} catch (Exception e) {
+					ring.log("Journal compaction of " + base + " failed: " + e);
+				} finally {
+					synchronized (Journal.this) {
+						compacting = false;
+					}
+				}
+			}
+		});
+	}
+}
@@ -39,8 +39,12 @@ public class KeyringUI {
 			"java -jar keyring-ui.jar [json-db-file]\n" +
 		    "    To start up the full-featured GUI, optionally loading the given db.\n" +
 			"OR\n" +
-			"java -jar keyring-ui.jar input-file json-output-file [keyring|csv|ewallet|codewallet]\n" +
-			"    To convert input-file from the given format and write to json-output-file.");
+			"java -jar keyring-ui.jar input-file json-output-file [keyring|csv|ewallet|codewallet|segmented|binary|compressed|json]\n" +
+			"    To convert input-file from the given format and write to json-output-file.\n" +
+			"    \"segmented\" upgrades a Keyring for webOS file to the segmented format,\n" +
+			"    \"binary\" converts one to the compact binary format, \"compressed\"\n" +
+			"    to a compressed db, and \"json\" converts any of those back to the\n" +
+			"    Keyring for webOS format.");
 		System.exit(exitCode);
 	}
 	
@@ -0,0 +1,262 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *     
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of which Items on a Ring are holding decrypted data, and
+ * relocks them when there are too many, or when they haven't been looked
+ * at for a while.  The plaintext itself stays in the Items; this is the
+ * bookkeeping that bounds how much of it there is.
+ *
+ * Items are relocked by trim(), which the Item accessors call once they've
+ * let go of the Item's monitor.  trim() must never be called while holding
+ * any Item's monitor, since it needs to take the monitors of the Items it
+ * evicts.
+ *
+ * So that an idle application doesn't keep plaintext past the time limit,
+ * a sweep is also scheduled, on a shared daemon thread, for when the least
+ * recently used Item runs out.  Each sweep trims the cache and schedules
+ * the next, until the cache is empty.
+ *
+ * @author Dirk Bergstrom
+ */
+public class PlaintextCache {
+
+	public static final int DEFAULT_MAX_ITEMS = 1000;
+	public static final long DEFAULT_TTL = 5 * 60 * 1000;
+
+	/**
+	 * Least recently used first.  Keyed by Item.cacheToken, since an Item's
+	 * hashCode changes with its title.
+	 */
+	private LinkedHashMap<Object, Entry> entries =
+		new LinkedHashMap<Object, Entry>(64, 0.75f, true);
+
+	private volatile int maxItems = DEFAULT_MAX_ITEMS;
+	private volatile long ttl = DEFAULT_TTL;
+
+	private static final ScheduledExecutorService sweeper =
+		Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Keyring cache sweeper");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+	/**
+	 * The next sweep, or null if the cache is empty.  Guarded by this.
+	 */
+	private ScheduledFuture<?> sweep;
+
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong evictions = new AtomicLong();
+
+	private static class Entry {
+		Item item;
+		long lastAccess;
+
+		Entry(Item item, long lastAccess) {
+			this.item = item;
+			this.lastAccess = lastAccess;
+		}
+	}
+
+	/**
+	 * An already unlocked Item's plaintext was used.
+	 */
+	void hit(Item item) {
+		hits.incrementAndGet();
+		touch(item);
+	}
+
+	/**
+	 * An Item was just decrypted.
+	 */
+	void miss(Item item) {
+		misses.incrementAndGet();
+		touch(item);
+	}
+
+	private synchronized void touch(Item item) {
+		long now = System.currentTimeMillis();
+		Entry e = entries.get(item.cacheToken);
+		if (null == e) {
+			entries.put(item.cacheToken, new Entry(item, now));
+			if (null == sweep) {
+				scheduleSweep(now);
+			}
+		} else {
+			e.lastAccess = now;
+		}
+	}
+
+	/**
+	 * An Item was locked by someone else.
+	 */
+	synchronized void remove(Item item) {
+		entries.remove(item.cacheToken);
+	}
+
+	/**
+	 * Relock Items beyond the size limit, and those that have outlived the
+	 * time limit, least recently used first.
+	 */
+	public void trim() throws GeneralSecurityException, KeyringException {
+		relock(victims(false));
+	}
+
+	/**
+	 * Relock every Item in the cache.
+	 */
+	public void clear() throws GeneralSecurityException, KeyringException {
+		relock(victims(true));
+	}
+
+	/**
+	 * Replace any pending sweep with one for when the least recently used
+	 * Item expires.  Call holding this.
+	 */
+	private void scheduleSweep(long now) {
+		if (null != sweep) {
+			sweep.cancel(false);
+			sweep = null;
+		}
+		Iterator<Entry> i = entries.values().iterator();
+		if (! i.hasNext()) {
+			return;
+		}
+		long delay = Math.max(0, i.next().lastAccess + ttl - now);
+		sweep = sweeper.schedule(new Runnable() {
+			public void run() {
+				sweep();
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void sweep() {
+		try {
+			trim();
+		} catch (Exception e) {
+			// The victims are out of the cache regardless, so this won't spin
+			System.err.println("Plaintext cache sweep failed: " + e);
+		}
+		synchronized (this) {
+			scheduleSweep(System.currentTimeMillis());
+		}
+	}
+
+	private synchronized List<Item> victims(boolean all) {
+		List<Item> victims = null;
+		long expired = System.currentTimeMillis() - ttl;
+		int excess = entries.size() - maxItems;
+		for (Iterator<Entry> i = entries.values().iterator(); i.hasNext(); ) {
+			Entry e = i.next();
+			if (! all && excess <= 0 && e.lastAccess > expired) {
+				// Everything after this is newer
+				break;
+			}
+			if (null == victims) {
+				victims = new ArrayList<Item>();
+			}
+			victims.add(e.item);
+			i.remove();
+			excess--;
+		}
+		return victims;
+	}
+
+	private void relock(List<Item> victims)
+			throws GeneralSecurityException, KeyringException {
+		if (null == victims) {
+			return;
+		}
+		for (Item item : victims) {
+			synchronized (item) {
+				if (! item.isLocked()) {
+					item.lock();
+					evictions.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public int getMaxItems() {
+		return maxItems;
+	}
+
+	/**
+	 * @param maxItems The most Items that may hold plaintext at once.
+	 */
+	public void setMaxItems(int maxItems) {
+		this.maxItems = maxItems;
+	}
+
+	public long getTtl() {
+		return ttl;
+	}
+
+	/**
+	 * @param ttl Relock Items that haven't been accessed for this many
+	 * milliseconds.
+	 */
+	public synchronized void setTtl(long ttl) {
+		this.ttl = ttl;
+		if (null != sweep) {
+			scheduleSweep(System.currentTimeMillis());
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "PlaintextCache[size=" + size() + ", hits=" + hits +
+			", misses=" + misses + ", evictions=" + evictions + "]";
+	}
+}
@@ -0,0 +1,113 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Counts the bytes read through it for a ProgressListener (if there is
+ * one), and throws InterruptedIOException once the reading thread has
+ * been interrupted.  Reads from files can't otherwise be interrupted.
+ *
+ * @author Dirk Bergstrom
+ */
+class ProgressInputStream extends FilterInputStream {
+
+	private long total;
+	private ProgressListener listener;
+	private long count;
+
+	/**
+	 * @param total The length of in, or -1 if not known.
+	 * @param listener May be null.
+	 */
+	ProgressInputStream(InputStream in, long total, ProgressListener listener) {
+		super(in);
+		this.total = total;
+		this.listener = listener;
+	}
+
+	/**
+	 * @return The channel of the file being read, or null if it isn't a
+	 * file.
+	 */
+	FileChannel getChannel() {
+		return in instanceof FileInputStream ?
+				((FileInputStream) in).getChannel() : null;
+	}
+
+	/**
+	 * Count n bytes taken straight from the channel, by mapping it.
+	 */
+	void mapped(long n) {
+		advance(n);
+	}
+
+	@Override
+	public int read() throws IOException {
+		checkInterrupt();
+		int b = super.read();
+		if (b >= 0) {
+			advance(1);
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		checkInterrupt();
+		int n = super.read(b, off, len);
+		if (n > 0) {
+			advance(n);
+		}
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		checkInterrupt();
+		long skipped = super.skip(n);
+		advance(skipped);
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	private void checkInterrupt() throws InterruptedIOException {
+		if (Thread.currentThread().isInterrupted()) {
+			throw new InterruptedIOException("Interrupted");
+		}
+	}
+
+	private void advance(long n) {
+		count += n;
+		if (null != listener) {
+			listener.progress(count, total);
+		}
+	}
+}
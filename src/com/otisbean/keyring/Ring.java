@@ -19,42 +19,67 @@
  */
 package com.otisbean.keyring;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.net.URL;
 import java.net.URLConnection;
-import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import net.iharder.Base64;
 
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
@@ -95,27 +120,171 @@ public class Ring {
 	 */
 	public static final int SCHEMA_VERSION = 4;
 
+	/**
+	 * Version 5 splits the db into separately encrypted segments.  Only
+	 * written when a segment size is set, since the webOS app can't read it.
+	 */
+	public static final int SEGMENTED_SCHEMA_VERSION = 5;
+
+	/**
+	 * Items per segment, on average, for setSegmentSize().
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 1000;
+
 	public static final int DB_SALT_LENGTH = 16;
+
+	/**
+	 * Value of the export's "compression" member when the db is deflated
+	 * before it's encrypted.
+	 */
+	public static final String DEFLATE_COMPRESSION = "deflate";
 	public static final int ITEM_SALT_LENGTH = 4;
+
+	private static final String CIPHER = "Blowfish/CFB64/NoPadding";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Charset ASCII = Charset.forName("US-ASCII");
 	
-	private String salt;
-	private String checkData;
-	private SecretKeySpec key;
-	private IvParameterSpec iv;
+	/* Ring is shared between the GUI, the timeout machinery and the bulk
+	 * workers, so everything here is either volatile, thread-confined, or
+	 * a concurrent collection.  Reads never take a lock. */
+	private volatile String salt;
+	private volatile String checkData;
+	private volatile SecretKeySpec key;
+	private volatile IvParameterSpec iv =
+		new IvParameterSpec( new byte[] { 0, 0, 0, 0, 0, 0, 0, 0 } );
 	private int schemaVersion;
-	private Cipher cipher;
-	private Map<Integer, String> categoriesById = new HashMap<Integer, String>();
-	private SortedMap<String, Integer> categoriesByName = new TreeMap<String, Integer>();
-	private Map<String, Item> db = new HashMap<String, Item>();
+	/**
+	 * Ciphers and parsers aren't thread safe, so each thread gets its own.
+	 * The CryptContext also holds the thread's crypto scratch buffers.
+	 */
+	private ThreadLocal<CryptContext> contexts = new ThreadLocal<CryptContext>();
+	private ThreadLocal<JSONParser> parsers = new ThreadLocal<JSONParser>();
+	/* The category maps are copy-on-write: they are never modified once
+	 * published, writers (holding the Ring's lock) replace them wholesale.
+	 * categoriesById is always published first, so any name found in
+	 * categoriesByName can be looked up by id. */
+	private volatile Map<Integer, String> categoriesById;
+	private volatile SortedMap<String, Integer> categoriesByName;
+	private ConcurrentMap<String, Item> db = new ConcurrentHashMap<String, Item>();
 	private int nextCategory = 1;
 	private Random rnd;
-	JSONParser parser;
 
-	private boolean fullyLoaded;
+	private volatile boolean fullyLoaded;
+
+	/**
+	 * Base64 cryptext of the db, held between load() and validatePassword().
+	 */
+	private volatile byte[] cryptedDb;
+
+	/**
+	 * As cryptedDb, for a segmented db: the categories, crypt and prefs,
+	 * and the segments holding the Items.
+	 */
+	private volatile byte[] cryptedMeta;
+	private volatile List<byte[]> cryptedSegments;
+
+	/**
+	 * Segments of a segmented db that haven't been decrypted yet, or null
+	 * if there aren't any.
+	 */
+	private volatile SegmentStore segments;
+
+	/**
+	 * If true, decrypting the db only indexes it, and Items are made when
+	 * they're first used.
+	 */
+	private volatile boolean lazyLoading;
+
+	/**
+	 * Index of the Items that haven't been made yet, or null if there
+	 * aren't any.
+	 */
+	private volatile ItemIndex index;
+
+	/**
+	 * If true, save in the compact binary format instead of JSON.
+	 */
+	private volatile boolean binaryFormat;
+
+	/**
+	 * If true, deflate the db before encrypting it.
+	 */
+	private volatile boolean compression;
+
+	/**
+	 * True if the loaded db was deflated before it was encrypted.
+	 */
+	private volatile boolean compressedDb;
+
+	/**
+	 * Encrypted body of a binary keyring, held between load() and
+	 * validatePassword().
+	 */
+	private volatile ByteBuffer cryptedBinary;
+
+	/**
+	 * If more than zero, save a segmented db with this many Items per
+	 * segment.
+	 */
+	private volatile int segmentSize;
+
+	private volatile JSONObject prefs;
+
+	/**
+	 * If true, getExportData() copies checkData into the export header, so
+	 * that a wrong password can be spotted without decrypting the db.
+	 */
+	private volatile boolean writeCheckData;
+
+	/**
+	 * checkData from the header of the loaded file, if it had one.
+	 */
+	private volatile String headerCheckData;
+
+	private PlaintextCache plaintextCache = new PlaintextCache();
+
+	/**
+	 * Journal for the local file we were loaded from or last saved to.
+	 */
+	private volatile Journal journal;
+	private volatile long journalCompactionThreshold = Journal.DEFAULT_COMPACTION_THRESHOLD;
+
+	/**
+	 * If true, local files are replaced atomically (see
+	 * AtomicFileOutputStream), optionally keeping a backup.
+	 */
+	private volatile boolean atomicSaves = true;
+	private volatile boolean keepBackup;
+
+	/**
+	 * Saves to URLs.
+	 */
+	private final Uploader uploader = new Uploader(this);
+
+	/**
+	 * Local copies of keyrings loaded from URLs, or null.
+	 */
+	private volatile UrlCache urlCache = new UrlCache(this, UrlCache.DEFAULT_DIR);
+
+	/**
+	 * Told how loading is going, or null.
+	 */
+	private volatile ProgressListener loadProgressListener;
+	private volatile ProgressListener itemProgressListener;
 
-	private String cryptedDb;
+	/**
+	 * Told about changes; see addRingListener().
+	 */
+	private final List<Registration> listeners = new CopyOnWriteArrayList<Registration>();
+	/**
+	 * Changes held back by beginChanges(), for each thread.
+	 */
+	private final ThreadLocal<Batch> batches = new ThreadLocal<Batch>();
 
-	private JSONObject prefs;
+	/**
+	 * Held while writing a whole keyring to a local file.
+	 */
+	private final Object saveLock = new Object();
 	
 	/**
 	 * Initialize the Ring with a String password.
@@ -139,10 +308,43 @@ public class Ring {
 		this.schemaVersion = SCHEMA_VERSION;
 		this.rnd = new Random();
 		salt = saltString(12, null);
-		cipher = Cipher.getInstance("Blowfish/CFB64/NoPadding");
-		// TODO we don't need the parser if we're just doing format conversion
-		setDefaultCategories();
-		parser = new JSONParser();
+		// Fail early if Blowfish isn't available
+		context();
+		setCategories(new HashMap<Integer, String>(),
+				new TreeMap<String, Integer>());
+	}
+
+	/**
+	 * @return This thread's ciphers and buffers, with the ciphers ready to
+	 * use with the current key.
+	 */
+	private CryptContext context() throws GeneralSecurityException {
+		CryptContext c = contexts.get();
+		if (null == c) {
+			c = new CryptContext(CIPHER);
+			contexts.set(c);
+		}
+		SecretKeySpec k = key;
+		if (c.key != k && null != k) {
+			// initCipher() has been called since we last looked
+			c.key = null;
+			initCipherMode(c.encryptor, Cipher.ENCRYPT_MODE, k);
+			initCipherMode(c.decryptor, Cipher.DECRYPT_MODE, k);
+			c.key = k;
+		}
+		return c;
+	}
+
+	/**
+	 * @return This thread's JSON parser.
+	 */
+	JSONParser parser() {
+		JSONParser p = parsers.get();
+		if (null == p) {
+			p = new JSONParser();
+			parsers.set(p);
+		}
+		return p;
 	}
 	
 	/**
@@ -153,10 +355,23 @@ public class Ring {
 	 * one to determine if the password is valid.
 	 * @throws GeneralSecurityException
 	 */
-	private String initCipher(char[] password)
+	String initCipher(char[] password)
 			throws GeneralSecurityException {
 		log("initCipher()");
-		String base64Key = null;
+		String base64Key = keyString(password);
+		/* Keyring passes data to Mojo.Model.encrypt(key, data), which eventually
+		 * make a JNI call to OpenSSL's blowfish api.  The following is the
+		 * equivalent in straight up JCE. */
+		key = keySpec(base64Key);
+		iv = new IvParameterSpec( new byte[] { 0, 0, 0, 0, 0, 0, 0, 0 } );
+		return "{" + base64Key + "}";
+	}
+
+	/**
+	 * Derive the key string for password, without touching the Ring's key.
+	 * Both the key and the checkData are made from it.
+	 */
+	private String keyString(char[] password) throws GeneralSecurityException {
 		try {
 			// Convert a char array into a UTF-8 byte array
 			ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -183,33 +398,137 @@ public class Ring {
 			String paddedBase64Key = Base64.encodeBytes(keyHash);
 			/* The Javascript SHA-256 library used in Keyring doesn't pad base64 output,
 			 * so we need to trim off any trailing "=" signs. */
-			base64Key = paddedBase64Key.replace("=", "");
-			byte[] keyBytes = base64Key.getBytes("UTF-8");
-
-			/* Keyring passes data to Mojo.Model.encrypt(key, data), which eventually
-			 * make a JNI call to OpenSSL's blowfish api.  The following is the
-			 * equivalent in straight up JCE. */
-			key = new SecretKeySpec(keyBytes, "Blowfish");
-			iv = new IvParameterSpec( new byte[] { 0, 0, 0, 0, 0, 0, 0, 0 } );
+			return paddedBase64Key.replace("=", "");
 		}
 		catch (UnsupportedEncodingException e) {
 			// This is a bit dodgy, but handling a UEE elsewhere is foolish
 			throw new GeneralSecurityException(e.getLocalizedMessage());
 		}
-		return "{" + base64Key + "}";
 	}
-	
-	public boolean validatePassword(char[] password) throws GeneralSecurityException {
+
+	private static SecretKeySpec keySpec(String keyString) {
+		return new SecretKeySpec(keyString.getBytes(UTF8), "Blowfish");
+	}
+
+	/**
+	 * Check a password without putting its key in use: other threads may be
+	 * encrypting with the Ring's key at any moment, and must never get the
+	 * key of a wrong password.  If the password is good, its key is used
+	 * from then on.
+	 */
+	public boolean validatePassword(char[] password)
+			throws GeneralSecurityException, IOException, KeyringException {
 		log("validatePassword()");
-		String tmpCheckData = initCipher(password);
 		if (! fullyLoaded) {
-			/* Startup in process.  See if the supplied password will
-			 * decrypt the db. */
-			return decryptLoadedData();
+			/* Startup in process.  If the header has checkData we can
+			 * reject a bad password without touching the db, otherwise
+			 * see if the supplied password will decrypt the db. */
+			SecretKeySpec k = checkedKey(password, headerCheckData);
+			if (null == k) {
+				return false;
+			}
+			SecretKeySpec old = key;
+			key = k;
+			boolean valid = false;
+			try {
+				valid = decryptLoadedData();
+			} finally {
+				if (! valid) {
+					key = old;
+				}
+			}
+			return valid;
 		} else {
-			return decrypt(checkData).equals(tmpCheckData);
+			SecretKeySpec k = checkedKey(password, checkData);
+			if (null == k) {
+				return false;
+			}
+			SecretKeySpec current = key;
+			if (null == current ||
+					! MessageDigest.isEqual(current.getEncoded(), k.getEncoded())) {
+				key = k;
+			}
+			return true;
 		}
 	}
+
+	/**
+	 * @param cryptedCheckData The checkData to try password's key on, or
+	 * null to take the key on trust.
+	 * @return The key for password, or null if it doesn't decrypt
+	 * cryptedCheckData.  The Ring's own key is left alone.
+	 */
+	private SecretKeySpec checkedKey(char[] password, String cryptedCheckData)
+			throws GeneralSecurityException {
+		String base64Key = keyString(password);
+		SecretKeySpec k = keySpec(base64Key);
+		if (null != cryptedCheckData &&
+				! checkDataMatches(cryptedCheckData, "{" + base64Key + "}", k)) {
+			return null;
+		}
+		return k;
+	}
+
+	/**
+	 * Make sure the key in use is the keyring's, before writing anything
+	 * with it.
+	 *
+	 * @throws GeneralSecurityException If it doesn't decrypt checkData.
+	 */
+	private void checkKey() throws GeneralSecurityException {
+		SecretKeySpec k = key;
+		String cd = checkData;
+		if (null == k || null == cd) {
+			return;
+		}
+		if (! checkDataMatches(cd, "{" + new String(k.getEncoded(), UTF8) + "}", k)) {
+			throw new GeneralSecurityException(
+					"The key in use isn't this keyring's, not saving");
+		}
+	}
+
+	/**
+	 * Decrypt checkData with the given key, and compare it against the
+	 * expected value, taking the same time however much of it matches.
+	 */
+	private boolean checkDataMatches(String cryptedCheckData, String expected,
+			SecretKeySpec k) throws GeneralSecurityException {
+		byte[] work = new byte[Base64Codec.maxDecodedLength(cryptedCheckData.length())];
+		int n;
+		try {
+			n = Base64Codec.decode(cryptedCheckData, work, 0);
+		} catch (IOException e) {
+			throw new GeneralSecurityException(e.getLocalizedMessage());
+		}
+		Cipher c = Cipher.getInstance(CIPHER);
+		initCipherMode(c, Cipher.DECRYPT_MODE, k);
+		c.doFinal(work, 0, n, work, 0);
+		// Skip the salt, as open() does
+		int start = 0;
+		while (start < n && work[start] != '{') {
+			start++;
+		}
+		if (start == n) {
+			start = 0;
+		}
+		byte[] actual = new byte[n - start];
+		System.arraycopy(work, start, actual, 0, actual.length);
+		return MessageDigest.isEqual(actual, expected.getBytes(UTF8));
+	}
+
+	/**
+	 * @param write If true, saved files carry a copy of the (encrypted)
+	 * checkData in their header, so that a wrong password is rejected
+	 * straight away on load, however big the db is.  Readers that don't
+	 * know about it ignore it.  Turned on by loading a file that has one.
+	 */
+	public void setWriteCheckData(boolean write) {
+		writeCheckData = write;
+	}
+
+	public boolean getWriteCheckData() {
+		return writeCheckData;
+	}
 	
 	/**
 	 * The format for Keyring export is:
@@ -219,6 +538,8 @@ public class Ring {
 	 *  db: encrypt(JSON.stringify(this._dataObject()))
 	 * }
 	 *
+	 * plus check_data: this._checkData if setWriteCheckData(true).
+	 *
 	 * Where _dataObject() returns
 	 * {
 	 *     db: this.db,
@@ -229,42 +550,299 @@ public class Ring {
      *     },
      *     prefs: this.prefs
      * }
+	 *
+	 * If a segment size is set, the export is instead:
+	 * {
+	 *  schema_version: 5,
+	 *  salt: this._salt,
+	 *  segment_size: n,
+	 *  meta: encrypt(JSON.stringify(this._dataObject() without db)),
+	 *  segments: [encrypt(JSON.stringify({db: some of this.db})), ...],
+	 *  segment_counts: [number of Items in each segment, ...]
+	 * }
 	 * 
-	 * @return a JSON string of the export-formatted data.
+	 * getExportData() parses what writeExport() writes, so it's only for
+	 * callers that need the JSONObject; saving goes through writeExport().
+	 *
+	 * @return the export-formatted data.
 	 * @throws GeneralSecurityException
 	 */
-	@SuppressWarnings("unchecked")
 	public JSONObject getExportData(boolean noEmptyCategories) throws GeneralSecurityException {
 		log("getExportData()");
-		JSONObject dataObject = new JSONObject();
-		dataObject.put("db", db);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			writeExport(bytes, noEmptyCategories);
+			return (JSONObject) parser().parse(new String(bytes.toByteArray(), UTF8));
+		} catch (IOException e) {
+			// Can't happen with a ByteArrayOutputStream
+			throw new GeneralSecurityException(e.getLocalizedMessage());
+		} catch (ParseException e) {
+			throw new GeneralSecurityException(e.toString());
+		}
+	}
 
-		if (noEmptyCategories) {
-			Map<Integer, String> toSave = new HashMap<Integer, String>();
+	/**
+	 * Write the export (as described for getExportData()) to out, as UTF-8.
+	 *
+	 * Items are serialized one at a time into a stream that encrypts and
+	 * base64 encodes on the way to out, so saving never holds the whole db
+	 * as a String, let alone three copies of it.  A segmented db is encrypted
+	 * a few segments at a time.
+	 *
+	 * out is flushed, but not closed.
+	 */
+	public void writeExport(OutputStream out, boolean noEmptyCategories)
+			throws IOException, GeneralSecurityException {
+		log("writeExport()");
+		materializeAll();
+		Collection<Item> items = db.values();
+		Map<Integer, String> categories = categoriesToSave(items, noEmptyCategories);
 
-			for(Item item : getItems()) {
-				int id = item.getCategoryId();
-				toSave.put(id, categoryNameForId(id));
+		ExportWriter w = new ExportWriter(out);
+		int size = segmentSize;
+		w.member("schema_version", size > 0 ? SEGMENTED_SCHEMA_VERSION : schemaVersion);
+		w.member("salt", salt);
+		if (writeCheckData && null != checkData) {
+			w.member("check_data", checkData);
+		}
+		boolean deflate = compression && size <= 0;
+		if (deflate) {
+			// Ahead of the db, so load() can still stream it
+			w.member("compression", DEFLATE_COMPRESSION);
+		}
+		if (size > 0) {
+			w.member("segment_size", size);
+			StringWriter meta = new StringWriter();
+			writeDataObject(meta, null, categories);
+			w.member("meta", encrypt(meta.toString(), DB_SALT_LENGTH));
+			writeSegments(w, items, size);
+		} else if (deflate) {
+			/* The salt goes in ahead of the compressed data, as usual, so
+			 * the (constant) zlib header isn't the start of the plaintext. */
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			try {
+				Writer data = new BufferedWriter(new OutputStreamWriter(
+						new DeflaterOutputStream(encryptingStream(w.openString("db")),
+								deflater, 8192), UTF8));
+				writeDataObject(data, items, categories);
+				// Finishes the deflater, the cipher, the base64 and the string
+				data.close();
+			} finally {
+				deflater.end();
 			}
-			dataObject.put("categories", toSave);
 		} else {
-			dataObject.put("categories", categoriesById);
+			Writer data = new BufferedWriter(new OutputStreamWriter(
+					encryptingStream(w.openString("db")), UTF8));
+			writeDataObject(data, items, categories);
+			// Finishes the cipher, the base64 and the string
+			data.close();
 		}
-		JSONObject crypt = new JSONObject();
-		crypt.put("salt", salt);
-		crypt.put("checkData", checkData);
-		dataObject.put("crypt", crypt);
-		
-		if (null != prefs) {
-			dataObject.put("prefs", prefs);
+		w.finish();
+	}
+
+	/**
+	 * Write the Ring to out in the compact binary format (see
+	 * BinaryFormat), an Item at a time.  out is flushed, but not closed.
+	 */
+	public void writeBinary(OutputStream out, boolean noEmptyCategories)
+			throws IOException, GeneralSecurityException {
+		log("writeBinary()");
+		materializeAll();
+		Collection<Item> items = db.values();
+		Map<Integer, String> categories = categoriesToSave(items, noEmptyCategories);
+
+		BinaryFormat.writeHeader(out, schemaVersion, salt,
+				writeCheckData ? checkData : null);
+		OutputStream body = new BufferedOutputStream(cipherStream(
+				new FilterOutputStream(out) {
+					@Override
+					public void write(byte[] b, int off, int len) throws IOException {
+						out.write(b, off, len);
+					}
+
+					@Override
+					public void close() throws IOException {
+						// Leave out open for the caller
+						flush();
+					}
+				}));
+		BinaryFormat.BodyWriter w = new BinaryFormat.BodyWriter(body, salt,
+				checkData, categories, prefs);
+		for (Item item : items) {
+			w.item(item);
 		}
+		w.finish();
+		// Finishes the cipher
+		body.close();
+	}
 
-		JSONObject export = new JSONObject();
-		export.put("schema_version", schemaVersion);
-		export.put("salt", salt);
-		export.put("db", encrypt(dataObject.toJSONString(), DB_SALT_LENGTH));
-		
-		return export;
+	/**
+	 * @return The categories to save with the given Items.
+	 */
+	private Map<Integer, String> categoriesToSave(Collection<Item> items,
+			boolean noEmptyCategories) {
+		if (! noEmptyCategories) {
+			return categoriesById;
+		}
+		Map<Integer, String> categories = new HashMap<Integer, String>();
+		for(Item item : items) {
+			int id = item.getCategoryId();
+			categories.put(id, categoryNameForId(id));
+		}
+		return categories;
+	}
+
+	/**
+	 * @param binary If true, save in the compact binary format, which only
+	 * this code can read, instead of the JSON export.  Binary files aren't
+	 * segmented, and uploads to a URL are always JSON.  Loading a file
+	 * sets this to match it.
+	 */
+	public void setBinaryFormat(boolean binary) {
+		binaryFormat = binary;
+	}
+
+	public boolean getBinaryFormat() {
+		return binaryFormat;
+	}
+
+	/**
+	 * @param compress If true, deflate the db before encrypting it, and
+	 * mark the export with "compression": "deflate".  That makes large
+	 * keyrings a good deal smaller on disk and on the wire, but the webOS
+	 * app can't read them.  Segmented and binary files aren't compressed.
+	 * Loading a compressed file sets this.
+	 */
+	public void setCompression(boolean compress) {
+		compression = compress;
+	}
+
+	public boolean getCompression() {
+		return compression;
+	}
+
+	/**
+	 * Write _dataObject() as JSON.  The db is written an Item at a time,
+	 * because JSONObject.toJSONString() on a big map takes quadratic time
+	 * (json-simple 1.1 turns the whole buffer into a String after every
+	 * entry).
+	 *
+	 * @param items The Items for the db member, or null to leave it out.
+	 * @param categories The categories to write, or null to leave them out.
+	 */
+	private void writeDataObject(Writer out, Collection<Item> items,
+			Map<Integer, String> categories) throws IOException {
+		out.write('{');
+		if (null != items) {
+			writeDb(out, items);
+			out.write(',');
+		}
+		if (null != categories) {
+			out.write("\"categories\":");
+			JSONObject.writeJSONString(categories, out);
+			out.write(',');
+		}
+		out.write("\"crypt\":{\"salt\":");
+		JSONValue.writeJSONString(salt, out);
+		out.write(",\"checkData\":");
+		JSONValue.writeJSONString(checkData, out);
+		out.write('}');
+		JSONObject p = prefs;
+		if (null != p) {
+			out.write(",\"prefs\":");
+			p.writeJSONString(out);
+		}
+		out.write('}');
+	}
+
+	/**
+	 * Write the db member, one Item at a time.
+	 */
+	private void writeDb(Writer out, Collection<Item> items) throws IOException {
+		out.write("\"db\":{");
+		boolean first = true;
+		for (Item item : items) {
+			if (! first) {
+				out.write(',');
+			}
+			first = false;
+			out.write('"');
+			out.write(JSONValue.escape(item.getTitle()));
+			out.write("\":");
+			out.write(item.toJSONString());
+		}
+		out.write('}');
+	}
+
+	/**
+	 * Split the Items into segments of about size Items each, and write them
+	 * to the export encrypted, along with their counts.  Segments are
+	 * encrypted in parallel, a window at a time, so only a few are ever in
+	 * memory.  Each gets its own random salt characters, as every encrypt()
+	 * does.
+	 */
+	@SuppressWarnings("unchecked")
+	private void writeSegments(ExportWriter w, Collection<Item> items, int size)
+			throws IOException, GeneralSecurityException {
+		int count = Math.max(1, (items.size() + size - 1) / size);
+		final List<List<Item>> parts = new ArrayList<List<Item>>(count);
+		for (int i = 0; i < count; i++) {
+			parts.add(new ArrayList<Item>());
+		}
+		for (Item item : items) {
+			parts.get(SegmentStore.segmentFor(item.getTitle(), count)).add(item);
+		}
+		JSONArray counts = new JSONArray();
+		for (List<Item> part : parts) {
+			counts.add(part.size());
+		}
+		w.member("segment_counts", counts);
+
+		int window = 2 * Runtime.getRuntime().availableProcessors();
+		final String[] crypted = new String[window];
+		w.startArray("segments");
+		for (int from = 0; from < count; from += window) {
+			final int base = from;
+			int n = Math.min(window, count - from);
+			try {
+				SegmentStore.forEach(n, new SegmentStore.SegmentWork() {
+					public void run(int i) throws GeneralSecurityException {
+						StringWriter seg = new StringWriter();
+						try {
+							seg.write('{');
+							writeDb(seg, parts.get(base + i));
+							seg.write('}');
+						} catch (IOException e) {
+							// Can't happen with a StringWriter
+							throw new GeneralSecurityException(e.getLocalizedMessage());
+						}
+						crypted[i] = encrypt(seg.toString(), DB_SALT_LENGTH);
+					}
+				});
+			} catch (KeyringException e) {
+				// Encrypting doesn't throw these, but SegmentWork may
+				throw new GeneralSecurityException(e.getLocalizedMessage());
+			}
+			for (int i = 0; i < n; i++) {
+				w.openElement().write(crypted[i].getBytes(ASCII));
+				crypted[i] = null;
+			}
+		}
+		w.endArray();
+	}
+
+	/**
+	 * @param size Save a segmented (schema 5) db, with about this many
+	 * Items per segment, which can be decrypted in parallel and on demand.
+	 * Zero saves a plain schema 4 db, which is the only kind the webOS app
+	 * can read.  Loading a segmented db sets this from the file.
+	 */
+	public void setSegmentSize(int size) {
+		segmentSize = Math.max(0, size);
+	}
+
+	public int getSegmentSize() {
+		return segmentSize;
 	}
 	
 	/**
@@ -274,34 +852,149 @@ public class Ring {
 	 * @return Base64 encoded representation of the encrypted data.
 	 */
 	String encrypt(String data, int saltLength) throws GeneralSecurityException {
-		log("encrypt()");
+		CryptContext ctx = context();
+		byte[] work = ctx.work(saltLength + CryptContext.maxUtf8Length(data));
+		writeSalt(work, saltLength);
+		int n = saltLength + CryptContext.utf8(data, work, saltLength);
+		byte[] text = ctx.text(Base64Codec.encodedLength(n));
+		int len = seal(ctx, work, n, text, 0);
+		return new String(text, 0, len, ASCII);
+	}
+
+	/**
+	 * @return The number of bytes encrypt() writes for len bytes of data.
+	 */
+	static int encryptedLength(int len, int saltLength) {
+		return Base64Codec.encodedLength(saltLength + len);
+	}
+
+	/**
+	 * Encrypt len bytes of UTF-8 data, prepending saltLength random
+	 * characters, and write the base64 encoded result into out, which must
+	 * have room for encryptedLength(len, saltLength) bytes.  The output is
+	 * the same as encrypt(String, int)'s, without the garbage.
+	 *
+	 * @return The number of bytes written.
+	 */
+	int encrypt(byte[] data, int off, int len, int saltLength, byte[] out, int outOff)
+			throws GeneralSecurityException {
+		CryptContext ctx = context();
+		byte[] work = ctx.work(saltLength + len);
+		writeSalt(work, saltLength);
+		System.arraycopy(data, off, work, saltLength, len);
+		return seal(ctx, work, saltLength + len, out, outOff);
+	}
+
+	/**
+	 * @return true if other has the same key, so that cryptext from one
+	 * can be used as is in the other.
+	 */
+	boolean sameKey(Ring other) {
+		SecretKeySpec k = key;
+		SecretKeySpec o = other.key;
+		return null != k && null != o &&
+				MessageDigest.isEqual(k.getEncoded(), o.getEncoded());
+	}
+
+	String decrypt(String cryptext) throws GeneralSecurityException {
+		CryptContext ctx = context();
+		byte[] work = ctx.work(Base64Codec.maxDecodedLength(cryptext.length()));
+		int n;
 		try {
-			cipher.init(Cipher.ENCRYPT_MODE, key, iv);
-		}
-		catch (InvalidKeyException ike) {
-			throw new GeneralSecurityException("InvalidKeyException: " +
-					ike.getLocalizedMessage() + "\nYou (probably) need to " +
-					"install the \"Java Cryptography Extension (JCE) " +
-					"Unlimited Strength Jurisdiction Policy\" files.  Go to " +
-					"http://java.sun.com/javase/downloads/index.jsp, download them, " +
-			"and follow the instructions.");
+			n = Base64Codec.decode(cryptext, work, 0);
+		} catch (IOException e) {
+			throw new GeneralSecurityException(e.getLocalizedMessage());
 		}
-		String salted = saltString(saltLength, data);
-		byte[] crypted;
-		byte[] saltedBytes;
+		int start = open(ctx, work, n);
+		return new String(work, start, n - start, UTF8);
+	}
+
+	/**
+	 * @return The most bytes decrypt() can write for len bytes of cryptext.
+	 */
+	static int maxDecryptedLength(int len) {
+		return Base64Codec.maxDecodedLength(len);
+	}
+
+	/**
+	 * Decrypt len bytes of base64 encoded cryptext, writing the UTF-8
+	 * plaintext, less its leading salt, into out, which must have room for
+	 * maxDecryptedLength(len) bytes.
+	 *
+	 * @return The number of bytes written.
+	 */
+	int decrypt(byte[] cryptext, int off, int len, byte[] out, int outOff)
+			throws GeneralSecurityException {
+		CryptContext ctx = context();
+		byte[] work = ctx.work(Base64Codec.maxDecodedLength(len));
+		int n;
 		try {
-			saltedBytes = salted.getBytes("UTF-8");
-		} catch (UnsupportedEncodingException e) {
+			n = Base64Codec.decode(cryptext, off, len, work, 0);
+		} catch (IOException e) {
 			throw new GeneralSecurityException(e.getLocalizedMessage());
 		}
-		crypted = cipher.doFinal(saltedBytes);
-		return Base64.encodeBytes(crypted);
+		int start = open(ctx, work, n);
+		System.arraycopy(work, start, out, outOff, n - start);
+		return n - start;
 	}
 
-	String decrypt(String cryptext) throws GeneralSecurityException {
-		log("decrypt()");
+	/**
+	 * Encrypt the first n bytes of work in place, and base64 them into out.
+	 */
+	private int seal(CryptContext ctx, byte[] work, int n, byte[] out, int outOff)
+			throws GeneralSecurityException {
+		doFinal(ctx, ctx.encryptor, work, n);
+		return Base64Codec.encode(work, 0, n, out, outOff);
+	}
+
+	/**
+	 * Decrypt the first n bytes of work in place.
+	 *
+	 * @return Where the JSON starts, after any leading non-JSON salt
+	 * characters.  Salt is ASCII and a '{' byte can't occur inside a
+	 * multi-byte UTF-8 sequence, so this matches the old
+	 * replaceAll("^[^\\{]*\\{", "{") on the decoded String.
+	 */
+	private int open(CryptContext ctx, byte[] work, int n)
+			throws GeneralSecurityException {
+		doFinal(ctx, ctx.decryptor, work, n);
+		for (int i = 0; i < n; i++) {
+			if (work[i] == '{') {
+				return i;
+			}
+		}
+		return 0;
+	}
+	
+	/**
+	 * Run one of the context's ciphers over the first n bytes of work, in
+	 * place.  If it fails the cipher's state is unknown, so the context is
+	 * marked as needing a fresh init.
+	 */
+	private void doFinal(CryptContext ctx, Cipher c, byte[] work, int n)
+			throws GeneralSecurityException {
+		if (null == ctx.key) {
+			// No password yet; let init complain about it
+			initCipherMode(c, c == ctx.encryptor ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, key);
+		}
+		boolean ok = false;
 		try {
-			cipher.init(Cipher.DECRYPT_MODE, key, iv);
+			c.doFinal(work, 0, n, work, 0);
+			ok = true;
+		} finally {
+			if (! ok) {
+				ctx.key = null;
+			}
+		}
+	}
+
+	/**
+	 * Set up the given cipher with the given key, for encryption or
+	 * decryption.
+	 */
+	private void initCipherMode(Cipher c, int mode, SecretKeySpec k) throws GeneralSecurityException {
+		try {
+			c.init(mode, k, iv);
 		}
 		catch (InvalidKeyException ike) {
 			throw new GeneralSecurityException("InvalidKeyException: " +
@@ -311,23 +1004,65 @@ public class Ring {
 					"http://java.sun.com/javase/downloads/index.jsp, download them, " +
 			"and follow the instructions.");
 		}
-		byte[] crypted;
-		try {
-			crypted = Base64.decode(cryptext);
-		} catch (IOException e) {
-			throw new GeneralSecurityException(e.getLocalizedMessage());
+	}
+
+	/**
+	 * Wrap a stream of base64 encoded cryptext, giving a stream of the
+	 * decrypted data with the leading salt removed.
+	 */
+	private InputStream decryptingStream(InputStream base64)
+			throws GeneralSecurityException {
+		Cipher c = Cipher.getInstance(CIPHER);
+		initCipherMode(c, Cipher.DECRYPT_MODE, key);
+		return new SaltStrippingInputStream(new CipherInputStream(
+				new Base64.InputStream(base64, Base64.DECODE), c));
+	}
+
+	/**
+	 * As decryptingStream(), for the db: if it was compressed, the salt is
+	 * skipped and what follows is inflated.
+	 */
+	private InputStream decryptingDbStream(InputStream base64)
+			throws GeneralSecurityException, IOException {
+		if (! compressedDb) {
+			return decryptingStream(base64);
 		}
-		byte[] decrypted = cipher.doFinal(crypted);
-		String salted;
-		try {
-			salted = new String(decrypted, "UTF-8");
-		} catch (UnsupportedEncodingException e) {
-			throw new GeneralSecurityException(e.getLocalizedMessage());
+		Cipher c = Cipher.getInstance(CIPHER);
+		initCipherMode(c, Cipher.DECRYPT_MODE, key);
+		InputStream plain = new CipherInputStream(
+				new Base64.InputStream(base64, Base64.DECODE), c);
+		for (int i = 0; i < DB_SALT_LENGTH; i++) {
+			if (plain.read() < 0) {
+				break;
+			}
 		}
-        // Remove any leading non-JSON salt characters
-        return salted.replaceAll("^[^\\{]*\\{", "{");
+		return new InflaterInputStream(plain, new Inflater(), 8192);
 	}
-	
+
+	/**
+	 * Wrap a stream that takes base64 encoded cryptext, giving a stream that
+	 * encrypts what's written to it, starting with DB_SALT_LENGTH salt
+	 * characters.  Closing it finishes the cryptext and closes base64.
+	 */
+	private OutputStream encryptingStream(OutputStream base64)
+			throws GeneralSecurityException, IOException {
+		return cipherStream(new Base64Codec.EncodingStream(base64));
+	}
+
+	/**
+	 * As encryptingStream(), writing raw cryptext to out.
+	 */
+	private OutputStream cipherStream(OutputStream out)
+			throws GeneralSecurityException, IOException {
+		Cipher c = Cipher.getInstance(CIPHER);
+		initCipherMode(c, Cipher.ENCRYPT_MODE, key);
+		OutputStream cipher = new CipherOutputStream(out, c);
+		byte[] saltChars = new byte[DB_SALT_LENGTH];
+		writeSalt(saltChars, DB_SALT_LENGTH);
+		cipher.write(saltChars);
+		return cipher;
+	}
+
 	/**
 	 * Generate random salt characters, optionally prepending them to the
 	 * supplied suffix.
@@ -347,24 +1082,368 @@ public class Ring {
 		}
 		return salted.toString();
 	}
+
+	/**
+	 * Write numChars random salt characters, as saltString() makes, at the
+	 * start of buf.
+	 */
+	private void writeSalt(byte[] buf, int numChars) {
+		for (int i = 0; i < numChars; i++) {
+			buf[i] = (byte) (rnd.nextInt(89) + 33);
+		}
+	}
 	
 	public boolean removeItem(Item item) {
-		return null != db.remove(item.getTitle());		
+		return removeItem(item.getTitle());
+	}
+
+	public boolean removeItem(String title) {
+		materialize(title);
+		Item old = db.remove(title);
+		if (null == old) {
+			return false;
+		}
+		publish(RingEvent.removed(old, title));
+		return true;
 	}
 	
+	/**
+	 * Add item, replacing any Item with the same title.
+	 */
 	public void addItem(Item item) {
-		db.put(item.getTitle(), item);
+		String title = item.getTitle();
+		materialize(title);
+		Item old = db.put(title, item);
 		fullyLoaded = true;
+		if (old == item) {
+			return;
+		}
+		if (null != old) {
+			publish(RingEvent.removed(old, title), RingEvent.added(item));
+		} else {
+			publish(RingEvent.added(item));
+		}
+	}
+
+	/**
+	 * Called by an Item whose title has changed.  If it's one of ours it's
+	 * refiled under the new title (replacing any Item already there).
+	 */
+	void itemRenamed(Item item, String oldTitle) {
+		String title = item.getTitle();
+		if (! db.remove(oldTitle, item)) {
+			return;
+		}
+		materialize(title);
+		Item displaced = db.put(title, item);
+		if (null != displaced && displaced != item) {
+			publish(RingEvent.removed(displaced, title),
+					RingEvent.renamed(item, oldTitle));
+		} else {
+			publish(RingEvent.renamed(item, oldTitle));
+		}
+	}
+
+	/**
+	 * Called by an Item whose category has changed.
+	 */
+	void itemRecategorized(Item item, int oldCategoryId) {
+		if (! listeners.isEmpty() && db.get(item.getTitle()) == item) {
+			publish(RingEvent.recategorized(item, oldCategoryId));
+		}
+	}
+
+	/**
+	 * Called by an Item whose username, password, url or notes have been
+	 * set.
+	 */
+	void itemChanged(Item item) {
+		if (! listeners.isEmpty() && db.get(item.getTitle()) == item) {
+			publish(RingEvent.changed(item));
+		}
+	}
+
+	/**
+	 * Tell listener about every change to the Ring from now on, on the
+	 * thread making the change.
+	 */
+	public void addRingListener(RingListener listener) {
+		addRingListener(listener, null);
+	}
+
+	/**
+	 * Tell listener about every change to the Ring from now on.
+	 *
+	 * @param executor Runs the calls to the listener, for instance on
+	 * another thread, so the change doesn't wait for them; or null to call
+	 * the listener directly, on the thread making the change.
+	 */
+	public void addRingListener(RingListener listener, Executor executor) {
+		listeners.add(new Registration(listener, executor));
+	}
+
+	public void removeRingListener(RingListener listener) {
+		for (Registration r : listeners) {
+			if (r.listener == listener) {
+				listeners.remove(r);
+			}
+		}
+	}
+
+	/**
+	 * Hold back the changes this thread makes until the matching
+	 * endChanges(), and publish them as one batch.  Calls can be nested;
+	 * the batch goes out at the outermost endChanges().  Use try/finally.
+	 */
+	public void beginChanges() {
+		Batch b = batches.get();
+		if (null == b) {
+			b = new Batch();
+			batches.set(b);
+		}
+		b.depth++;
+	}
+
+	public void endChanges() {
+		Batch b = batches.get();
+		if (null == b) {
+			throw new IllegalStateException("endChanges() without beginChanges()");
+		}
+		if (--b.depth > 0) {
+			return;
+		}
+		batches.remove();
+		if (! b.events.isEmpty()) {
+			deliver(b.events);
+		}
+	}
+
+	/**
+	 * Publish events, which go out together unless held back.
+	 */
+	private void publish(RingEvent... events) {
+		if (listeners.isEmpty()) {
+			return;
+		}
+		Batch b = batches.get();
+		if (null != b) {
+			for (RingEvent e : events) {
+				b.add(e);
+			}
+		} else {
+			deliver(Arrays.asList(events));
+		}
+	}
+
+	private void deliver(List<RingEvent> events) {
+		final List<RingEvent> batch = Collections.unmodifiableList(events);
+		for (final Registration r : listeners) {
+			if (null == r.executor) {
+				r.listener.ringChanged(this, batch);
+			} else {
+				r.executor.execute(new Runnable() {
+					public void run() {
+						r.listener.ringChanged(Ring.this, batch);
+					}
+				});
+			}
+		}
 	}
 	
 	public Item getItem(String title) {
+		materialize(title);
 		return db.get(title);
 	}
 
+	/**
+	 * With lazy loading, Items that haven't been made yet are made as the
+	 * iteration reaches them.
+	 */
 	public Collection<Item> getItems() {
+		try {
+			materializeSegments();
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+		ItemIndex i = index;
+		if (null != i) {
+			if (! i.isComplete()) {
+				return i.items(db);
+			}
+			index = null;
+		}
 		return db.values();
 	}
 
+	/**
+	 * @param lazy If true, loading only indexes the db, and each Item is
+	 * made the first time it's used (by getItem() or by iterating over
+	 * getItems()), so loading a big Ring costs little until its Items
+	 * are needed.  Takes effect on the next load.
+	 */
+	public void setLazyLoading(boolean lazy) {
+		lazyLoading = lazy;
+	}
+
+	public boolean getLazyLoading() {
+		return lazyLoading;
+	}
+
+	/**
+	 * @param listener Told how many bytes of the file load() has read, out
+	 * of its length (-1 for URLs), or null.  Called on the loading thread.
+	 */
+	public void setLoadProgressListener(ProgressListener listener) {
+		loadProgressListener = listener;
+	}
+
+	/**
+	 * @param listener Told how many Items have been parsed out of the db,
+	 * as load() (or validatePassword()) goes, with a total of -1; or null.
+	 * Items indexed for lazy loading aren't counted.  Called on the
+	 * loading thread.
+	 */
+	public void setItemProgressListener(ProgressListener listener) {
+		itemProgressListener = listener;
+	}
+
+	ProgressListener getItemProgressListener() {
+		return itemProgressListener;
+	}
+
+	/**
+	 * Decrypt the segment that holds title, if the db is segmented and it
+	 * hasn't been already, and make its Item if it hasn't been made yet.
+	 * Anything that touches an Item by title goes through here first, so
+	 * the segment or index can't overwrite later changes.
+	 */
+	private void materialize(String title) {
+		SegmentStore s = segments;
+		ItemIndex i = index;
+		try {
+			if (null != s) {
+				s.loadFor(title);
+			}
+			if (null != i) {
+				i.loadFor(title);
+				if (i.isComplete()) {
+					index = null;
+				}
+			}
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		} catch (KeyringException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Decrypt all the segments that haven't been already, and make all
+	 * the Items that haven't been made yet.
+	 */
+	private void materializeAll() throws GeneralSecurityException {
+		materializeSegments();
+		ItemIndex i = index;
+		if (null != i) {
+			try {
+				i.loadAll();
+			} catch (KeyringException e) {
+				throw new GeneralSecurityException(e.getLocalizedMessage());
+			}
+			index = null;
+		}
+	}
+
+	/**
+	 * Decrypt all the segments that haven't been already, in parallel.
+	 */
+	private void materializeSegments() throws GeneralSecurityException {
+		SegmentStore s = segments;
+		if (null != s) {
+			try {
+				s.loadAll();
+			} catch (KeyringException e) {
+				throw new GeneralSecurityException(e.getLocalizedMessage());
+			}
+			segments = null;
+		}
+	}
+
+	/**
+	 * Called by the ItemIndex with an Item it has made.
+	 */
+	void loadItem(String title, Item item) {
+		db.putIfAbsent(title, item);
+	}
+
+	/**
+	 * Called by the SegmentStore to decrypt one segment into the db.
+	 */
+	void loadSegment(byte[] cryptext, int index)
+			throws GeneralSecurityException, KeyringException {
+		DbContentHandler handler;
+		try {
+			handler = parse(new ByteArrayInputStream(cryptext));
+		} catch (IOException e) {
+			handler = null;
+		}
+		if (null == handler) {
+			// The password was good enough for the meta data
+			throw new KeyringException("Segment " + index + " of the db is corrupt");
+		}
+		for (Map.Entry<String, Item> entry : handler.items.entrySet()) {
+			db.putIfAbsent(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Decrypt the given items in parallel.  Items which are already
+	 * unlocked are skipped.  If there are more items than the plaintext
+	 * cache allows, the least recently used are relocked afterwards.
+	 *
+	 * @param listener Told how far along we are, may be null.  Called from
+	 * the worker threads, not the caller's.
+	 */
+	public void unlockAll(Collection<Item> items, ProgressListener listener)
+			throws GeneralSecurityException, KeyringException {
+		log("unlockAll(" + items.size() + ")");
+		BulkCryptTask.run(items, false, listener);
+		plaintextCache.trim();
+	}
+
+	/**
+	 * Re-encrypt the given items in parallel.  Items which are already
+	 * locked are skipped.
+	 *
+	 * @param listener Told how far along we are, may be null.  Called from
+	 * the worker threads, not the caller's.
+	 */
+	public void lockAll(Collection<Item> items, ProgressListener listener)
+			throws GeneralSecurityException, KeyringException {
+		log("lockAll(" + items.size() + ")");
+		BulkCryptTask.run(items, true, listener);
+	}
+
+	/**
+	 * Re-encrypt every unlocked Item in parallel, and empty the plaintext
+	 * cache, so no decrypted data is left in memory.  Items that were
+	 * never read in (see setLazyLoading()) are locked already, and are
+	 * left alone.
+	 */
+	public void relock() throws GeneralSecurityException, KeyringException {
+		log("relock()");
+		BulkCryptTask.run(db.values(), true, null);
+		// Anything unlocked meanwhile
+		plaintextCache.clear();
+	}
+
+	/**
+	 * @return The cache that bounds the number of unlocked Items.
+	 */
+	public PlaintextCache getPlaintextCache() {
+		return plaintextCache;
+	}
+
 	public String getSalt() {
 		return salt;
 	}
@@ -381,7 +1460,7 @@ public class Ring {
 		return cats;
 	}
 	
-	public synchronized int categoryIdForName(String categoryName) {
+	public int categoryIdForName(String categoryName) {
 		if (categoryName == null)
 			return 0;
 
@@ -390,13 +1469,30 @@ public class Ring {
 		}
 		Integer retval = categoriesByName.get(categoryName);
 		if (null == retval) {
-			retval = nextCategory;
-			nextCategory++;
-			categoriesByName.put(categoryName, retval);
-			categoriesById.put(retval, categoryName);
+			retval = addCategory(categoryName);
 		}
 		return retval;
 	}
+
+	/**
+	 * Slow path for categoryIdForName(), when the category is new.
+	 */
+	private synchronized int addCategory(String categoryName) {
+		// Someone may have beaten us to it
+		Integer retval = categoriesByName.get(categoryName);
+		if (null != retval) {
+			return retval;
+		}
+		retval = nextCategory;
+		nextCategory++;
+		Map<Integer, String> byId = new HashMap<Integer, String>(categoriesById);
+		SortedMap<String, Integer> byName = new TreeMap<String, Integer>(categoriesByName);
+		byId.put(retval, categoryName);
+		byName.put(categoryName, retval);
+		setCategories(byId, byName);
+		publish(RingEvent.categoriesChanged());
+		return retval;
+	}
 	
 	public String categoryNameForId(int categoryid) {
 		if (0 == categoryid) {
@@ -410,41 +1506,237 @@ public class Ring {
 	}
 
 	/**
-	 * Put the default "Unfiled" and "All" categories into the Maps.
+	 * Put the default "Unfiled" and "All" categories into the Maps, and
+	 * publish them.  The maps must not be modified afterwards.
 	 */
-	private void setDefaultCategories() {
-		categoriesById.put(0, "Unfiled");
-		categoriesById.put(-1, "All");
-		categoriesByName.put("Unfiled", 0);
-		categoriesByName.put("All", -1);
+	private synchronized void setCategories(Map<Integer, String> byId,
+			SortedMap<String, Integer> byName) {
+		byId.put(0, "Unfiled");
+		byId.put(-1, "All");
+		byName.put("Unfiled", 0);
+		byName.put("All", -1);
+		categoriesById = Collections.unmodifiableMap(byId);
+		categoriesByName = Collections.unmodifiableSortedMap(byName);
 	}
 
-	public void load(String inFile) throws IOException, KeyringException {
-		log("load(" + inFile + ")");
-		InputStream is;
+	/**
+	 * Open inFile for load(), counting the bytes read for the
+	 * loadProgressListener.  Reads stop with an InterruptedIOException
+	 * once the thread is interrupted, so a load can be cancelled.
+	 */
+	private InputStream openInput(String inFile) throws IOException {
+		ProgressListener listener = loadProgressListener;
 		if (inFile.equals("-")) {
-			is = System.in;
+			return new BufferedInputStream(new ProgressInputStream(System.in, -1, listener));
 		} else if (inFile.startsWith("http")) {
-			is = new URL(inFile).openStream();
+			UrlCache cache = urlCache;
+			URL url = new URL(inFile);
+			int connectTimeout = uploader.getConnectTimeout();
+			int readTimeout = uploader.getReadTimeout();
+			InputStream in;
+			if (null == cache) {
+				URLConnection urlConn = url.openConnection();
+				urlConn.setConnectTimeout(connectTimeout);
+				urlConn.setReadTimeout(readTimeout);
+				in = urlConn.getInputStream();
+			} else {
+				in = cache.open(url, connectTimeout, readTimeout);
+			}
+			return new BufferedInputStream(new ProgressInputStream(in, -1, listener));
 		} else {
-			is = new FileInputStream(new File(inFile));
+			File f = new File(inFile);
+			return new ProgressInputStream(new FileInputStream(f), f.length(), listener);
+		}
+	}
+
+	/**
+	 * Read the export wrapper.  The encrypted db is kept as raw base64
+	 * bytes until validatePassword() is called with the right key.
+	 */
+	public void load(String inFile) throws IOException, KeyringException {
+		log("load(" + inFile + ")");
+		InputStream in = openInput(inFile);
+		if (loadBinary(in)) {
+			setJournal(inFile);
+			return;
 		}
-        BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
-        JSONObject obj;
+		ExportReader reader = new ExportReader(in);
 		try {
-			obj = (JSONObject) parser.parse(reader);
-		} catch (ParseException e) {
-			// ParseException's toString() method returns a good error message
-			throw new KeyringException("Unparseable JSON data: " + e);
-		}
-        // Loaded data has three attrs, 'db', 'salt' & 'schema_version'
-        salt = (String) obj.get("salt");
-        long dbSchemaVersion = (Long) obj.get("schema_version");
-        if (schemaVersion != dbSchemaVersion) {
-        	// TODO Handle other versions sanely
-        	throw new KeyringException("Incompatible schema version " + dbSchemaVersion);
-        }
-        cryptedDb = (String) obj.get("db");
+			String k;
+			while (null != (k = reader.nextKey())) {
+				readMember(reader, k);
+			}
+		} finally {
+			reader.close();
+		}
+		if (null == cryptedDb && null == cryptedMeta) {
+			throw new KeyringException("No db found in " + inFile);
+		}
+		setJournal(inFile);
+	}
+
+	/**
+	 * If in is a binary keyring, read its header and hold on to the
+	 * cryptext, as load() does for JSON.  in is closed if so.
+	 *
+	 * @return false if in isn't in the binary format.
+	 */
+	private boolean loadBinary(InputStream in) throws IOException, KeyringException {
+		ByteBuffer file;
+		try {
+			file = BinaryFormat.read(in);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		if (null == file) {
+			return false;
+		}
+		in.close();
+		BinaryFormat.Header h = BinaryFormat.readHeader(file);
+		readHeaderValue("schema_version", h.schemaVersion);
+		readHeaderValue("salt", h.salt);
+		if (null != h.checkData) {
+			readHeaderValue("check_data", h.checkData);
+		}
+		cryptedBinary = h.body;
+		binaryFormat = true;
+		return true;
+	}
+
+	/**
+	 * Read a member of the export wrapper, holding on to any cryptext.
+	 */
+	private void readMember(ExportReader reader, String k)
+			throws IOException, KeyringException {
+		if ("db".equals(k)) {
+			cryptedDb = reader.readBytes();
+		} else if ("meta".equals(k)) {
+			cryptedMeta = reader.readBytes();
+		} else if ("segments".equals(k)) {
+			List<byte[]> segs = new ArrayList<byte[]>();
+			reader.startArray();
+			while (reader.nextElement()) {
+				segs.add(reader.readBytes());
+			}
+			cryptedSegments = segs;
+		} else {
+			readHeaderValue(k, reader.readValue());
+		}
+	}
+
+	/**
+	 * Load and decrypt in a single pass.  When the salt precedes the db in
+	 * the export (as it does in files written by this code) the db is
+	 * decrypted and parsed straight off the input stream; otherwise it is
+	 * held as base64 bytes until the end of the wrapper, exactly as load()
+	 * does.
+	 *
+	 * On a bad password the Ring is left as load() would leave it, so that
+	 * validatePassword() can be tried again.  That means reading the file
+	 * a second time if the db was thrown away as it was decrypted; which
+	 * can't be done with standard input.
+	 *
+	 * @return false if the password doesn't decrypt the db.
+	 */
+	public boolean load(String inFile, char[] password)
+			throws IOException, KeyringException, GeneralSecurityException {
+		log("load(" + inFile + ", password)");
+		InputStream in = openInput(inFile);
+		setJournal(inFile);
+		if (loadBinary(in)) {
+			return validatePassword(password);
+		}
+		ExportReader reader = new ExportReader(in);
+		boolean valid = false;
+		boolean rejected = false;
+		boolean dbLost = false;
+		boolean saltRead = false;
+		boolean versionChecked = false;
+		try {
+			String k;
+			while (null != (k = reader.nextKey())) {
+				if ("db".equals(k)) {
+					if (saltRead && versionChecked) {
+						SecretKeySpec candidate = checkedKey(password, headerCheckData);
+						if (null == candidate) {
+							// Keep it for another try
+							cryptedDb = reader.readBytes();
+							rejected = true;
+							continue;
+						}
+						key = candidate;
+						if (lazyLoading) {
+							byte[] bytes = reader.readBytes();
+							valid = indexDb(bytes);
+							if (! valid) {
+								cryptedDb = bytes;
+								rejected = true;
+							}
+						} else {
+							valid = parseDb(reader.openString());
+							if (! valid) {
+								dbLost = true;
+								break;
+							}
+						}
+					} else {
+						cryptedDb = reader.readBytes();
+					}
+				} else {
+					readMember(reader, k);
+					saltRead |= "salt".equals(k);
+					versionChecked |= "schema_version".equals(k);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		if (dbLost) {
+			if (isLocalFile(inFile) || inFile.startsWith("http")) {
+				load(inFile);
+			}
+			return false;
+		}
+		if (rejected) {
+			return false;
+		}
+		if (null != cryptedDb || null != cryptedMeta) {
+			return validatePassword(password);
+		}
+		if (! valid) {
+			throw new KeyringException("No db found in " + inFile);
+		}
+		return true;
+	}
+
+	/**
+	 * Loaded data has three attrs, 'db', 'salt' & 'schema_version', and
+	 * optionally 'check_data' and 'compression'.  Segmented data has 'meta', 'segments',
+	 * 'segment_size' & 'segment_counts' instead of 'db'.
+	 */
+	private void readHeaderValue(String k, Object value) throws KeyringException {
+		if ("salt".equals(k)) {
+			salt = (String) value;
+		} else if ("check_data".equals(k) && value instanceof String) {
+			headerCheckData = (String) value;
+			writeCheckData = true;
+		} else if ("schema_version".equals(k)) {
+			long dbSchemaVersion = (Long) value;
+			if (schemaVersion != dbSchemaVersion &&
+					SEGMENTED_SCHEMA_VERSION != dbSchemaVersion) {
+				// TODO Handle other versions sanely
+				throw new KeyringException("Incompatible schema version " + dbSchemaVersion);
+			}
+		} else if ("segment_size".equals(k) && value instanceof Number) {
+			setSegmentSize(((Number) value).intValue());
+		} else if ("compression".equals(k)) {
+			if (! DEFLATE_COMPRESSION.equals(value)) {
+				throw new KeyringException("Unknown compression " + value);
+			}
+			compressedDb = true;
+			compression = true;
+		}
 	}
 	
 	/**
@@ -452,13 +1744,344 @@ public class Ring {
 	 * the key is good, and loading is complete.  If not, it's a bad password.
 	 * @throws GeneralSecurityException 
 	 */
-	@SuppressWarnings("unchecked")
-	private boolean decryptLoadedData() throws GeneralSecurityException {
+	private boolean decryptLoadedData()
+			throws GeneralSecurityException, IOException, KeyringException {
 		log("decryptLoadedData()");
-		JSONObject obj;
+		if (null != cryptedBinary) {
+			return decryptLoadedBinary();
+		}
+		if (null != cryptedMeta) {
+			return decryptLoadedSegments();
+		}
+		if (null == cryptedDb) {
+			throw new KeyringException(
+					"Nothing to decrypt, the keyring needs to be loaded again");
+		}
+		boolean parsed;
+		if (lazyLoading) {
+			parsed = indexDb(cryptedDb);
+		} else {
+			parsed = parseDb(new ByteArrayInputStream(cryptedDb));
+		}
+		if (! parsed) {
+			return false;
+		}
+		// Clear temp storage
+		cryptedDb = null;
+		return true;
+	}
+
+	/**
+	 * As decryptLoadedData(), for a segmented db.  Only the meta data is
+	 * decrypted here, the segments are left for getItem() and getItems().
+	 */
+	private boolean decryptLoadedSegments() throws GeneralSecurityException, IOException {
+		DbContentHandler handler = parse(new ByteArrayInputStream(cryptedMeta));
+		if (null == handler) {
+			return false;
+		}
+		List<byte[]> segs = cryptedSegments;
+		segments = new SegmentStore(this, null == segs ? new ArrayList<byte[]>() : segs);
+		// Clear temp storage
+		cryptedMeta = null;
+		cryptedSegments = null;
+		commit(handler);
+		return true;
+	}
+
+	/**
+	 * As decryptLoadedData(), for a binary keyring.  The body is decrypted
+	 * in one go, straight from the (mapped) file.
+	 */
+	private boolean decryptLoadedBinary() throws GeneralSecurityException, IOException {
+		ByteBuffer cryptext = cryptedBinary.duplicate();
+		byte[] data = new byte[cryptext.remaining()];
+		Cipher c = Cipher.getInstance(CIPHER);
+		initCipherMode(c, Cipher.DECRYPT_MODE, key);
+		c.doFinal(cryptext, ByteBuffer.wrap(data));
+		BinaryFormat.Body body = BinaryFormat.readBody(data, DB_SALT_LENGTH, parser());
+		if (null == body) {
+			return false;
+		}
+
+		DbContentHandler handler = new DbContentHandler(this);
+		handler.categories = body.categories;
+		handler.checkData = body.checkData;
+		handler.prefs = body.prefs;
+		ItemIndex i = ItemIndex.forRecords(this, data, body.offsets, body.hashes);
+		if (lazyLoading) {
+			index = i;
+		} else {
+			try {
+				i.loadAll();
+			} catch (KeyringException e) {
+				// The password was good enough for the rest of the body
+				throw new IOException(e.getLocalizedMessage());
+			}
+		}
+		// Clear temp storage
+		cryptedBinary = null;
+		commit(handler);
+		return true;
+	}
+
+	private static boolean isLocalFile(String file) {
+		return ! file.equals("-") && ! file.startsWith("http");
+	}
+
+	/**
+	 * Use the journal for the given keyring file, if it's a local file.
+	 */
+	private void setJournal(String file) {
+		if (isLocalFile(file)) {
+			Journal j = new Journal(this, file);
+			j.setCompactionThreshold(journalCompactionThreshold);
+			journal = j;
+		} else {
+			journal = null;
+		}
+	}
+
+	/**
+	 * @return The journal for outFile, or null if outFile isn't the base
+	 * of our journal.
+	 */
+	private Journal journalFor(String outFile) {
+		Journal j = journal;
+		if (null != j && isLocalFile(outFile) &&
+				new File(j.getBase()).getAbsoluteFile().equals(new File(outFile).getAbsoluteFile()) &&
+				new File(outFile).exists()) {
+			return j;
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if saveItem() and saveRemoval() to outFile append to a
+	 * journal, rather than saving the whole Ring.
+	 */
+	public boolean isJournaled(String outFile) {
+		return null != journalFor(outFile);
+	}
+
+	/**
+	 * @param bytes Rewrite the keyring file in the background once its
+	 * journal grows past this size.
+	 */
+	public void setJournalCompactionThreshold(long bytes) {
+		journalCompactionThreshold = bytes;
+		Journal j = journal;
+		if (null != j) {
+			j.setCompactionThreshold(bytes);
+		}
+	}
+
+	/**
+	 * @param atomic If true (the default), saving to a local file writes a
+	 * temp file next to it, forces it to disk and renames it over the
+	 * file, so a crash or a full disk can't leave a half written keyring.
+	 * If false, the file is overwritten in place, which is a little
+	 * faster.
+	 */
+	public void setAtomicSaves(boolean atomic) {
+		atomicSaves = atomic;
+	}
+
+	public boolean getAtomicSaves() {
+		return atomicSaves;
+	}
+
+	/**
+	 * @param backup If true, atomic saves first copy the old file to
+	 * FILE.bak.
+	 */
+	public void setKeepBackup(boolean backup) {
+		keepBackup = backup;
+	}
+
+	public boolean getKeepBackup() {
+		return keepBackup;
+	}
+
+	/**
+	 * Time limits for saving to or loading from a URL: connecting, and
+	 * then waiting for (each read of) the server's response.  Zero means
+	 * no limit.
+	 */
+	public void setUploadTimeouts(int connectMillis, int readMillis) {
+		uploader.setTimeouts(connectMillis, readMillis);
+	}
+
+	/**
+	 * @param attempts How many times to try saving to a URL, when it fails
+	 * with an I/O error or an HTTP 408, 429 or 5xx response.
+	 * @param firstDelay Milliseconds to wait before the first retry; each
+	 * retry after that waits twice as long.
+	 */
+	public void setUploadRetries(int attempts, long firstDelay) {
+		uploader.setRetries(attempts, firstDelay);
+	}
+
+	/**
+	 * @param gzip If true, gzip the body when saving to a URL.  The server
+	 * has to accept "Content-Encoding: gzip" request bodies.
+	 */
+	public void setGzipUploads(boolean gzip) {
+		uploader.setGzip(gzip);
+	}
+
+	public boolean getGzipUploads() {
+		return uploader.getGzip();
+	}
+
+	/**
+	 * @param dir Where to keep copies of keyrings loaded from URLs (by
+	 * default ~/.keyring/cache), or null to always download them.  With a
+	 * copy, loading asks the server only for a newer version, and uses the
+	 * copy if the server can't be reached.
+	 */
+	public void setUrlCacheDir(File dir) {
+		urlCache = null == dir ? null : new UrlCache(this, dir);
+	}
+
+	public File getUrlCacheDir() {
+		UrlCache cache = urlCache;
+		return null == cache ? null : cache.getDir();
+	}
+
+	/**
+	 * @return Counters for loads from URLs through the cache, for the
+	 * whole process.
+	 */
+	public static UrlCacheStats getUrlCacheStats() {
+		return UrlCache.stats();
+	}
+
+	/**
+	 * Stream base64 cryptext through the cipher and the JSON parser, building
+	 * Items as we go.  Nothing on the Ring is changed unless the whole db
+	 * parses.
+	 */
+	private boolean parseDb(InputStream base64)
+			throws GeneralSecurityException, IOException {
+		InputStream plain = decryptingDbStream(base64);
+		DbContentHandler handler;
+		try {
+			handler = parseDecrypted(plain);
+		} finally {
+			if (compressedDb) {
+				// Frees the Inflater
+				plain.close();
+			}
+		}
+		if (null == handler) {
+			return false;
+		}
+		db.putAll(handler.items);
+		commit(handler);
+		return true;
+	}
+
+	/**
+	 * As parseDb(), but only decrypting the db into a buffer and indexing
+	 * it, for lazy loading.  The whole db is needed in memory anyway, so
+	 * it's decrypted in one go rather than streamed.
+	 */
+	private boolean indexDb(byte[] base64)
+			throws GeneralSecurityException, IOException {
+		CryptContext ctx = context();
+		byte[] data = new byte[Base64Codec.maxDecodedLength(base64.length)];
+		int len;
+		try {
+			len = Base64Codec.decode(base64, 0, base64.length, data, 0);
+		} catch (IOException e) {
+			// Truncated or mangled base64 data
+			return false;
+		}
+		int start;
+		if (compressedDb) {
+			doFinal(ctx, ctx.decryptor, data, len);
+			data = inflate(data, DB_SALT_LENGTH, len - DB_SALT_LENGTH);
+			if (null == data) {
+				return false;
+			}
+			start = 0;
+			len = data.length;
+		} else {
+			start = open(ctx, data, len);
+		}
+		ItemIndex i = ItemIndex.build(this, data, start, len);
+		if (null == i) {
+			return false;
+		}
+		// The rest of the data is small, parse it as usual
+		DbContentHandler handler = parseDecrypted(i.withoutDb());
+		if (null == handler) {
+			return false;
+		}
+		index = i;
+		commit(handler);
+		return true;
+	}
+
+	/**
+	 * Inflate len bytes of data from off.
+	 *
+	 * @return The inflated bytes, or null if they aren't complete deflate
+	 * data (wrong password, or a corrupt file).
+	 */
+	private static byte[] inflate(byte[] data, int off, int len) {
+		if (len < 0) {
+			return null;
+		}
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data, off, len);
+			byte[] out = new byte[Math.max(8192, len * 4)];
+			int n = 0;
+			while (! inflater.finished()) {
+				if (n == out.length) {
+					out = Arrays.copyOf(out, n * 2);
+				}
+				int r = inflater.inflate(out, n, out.length - n);
+				if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					return null;
+				}
+				n += r;
+			}
+			return n == out.length ? out : Arrays.copyOf(out, n);
+		} catch (DataFormatException e) {
+			return null;
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Decrypt and parse base64 cryptext of the db (or some part of it).
+	 *
+	 * @return The results, or null if it doesn't parse.
+	 */
+	private DbContentHandler parse(InputStream base64)
+			throws GeneralSecurityException, IOException {
+		return parseDecrypted(decryptingStream(base64));
+	}
+
+	/**
+	 * Parse decrypted UTF-8 JSON of the db (or some part of it).
+	 *
+	 * @return The results, or null if it doesn't parse.
+	 */
+	private DbContentHandler parseDecrypted(InputStream plain) throws IOException {
+		DbContentHandler handler = new DbContentHandler(this);
 		try {
-			String decryptedJson = decrypt(cryptedDb);
-			obj = (JSONObject) parser.parse(decryptedJson);
+			Reader reader = new BufferedReader(new InputStreamReader(
+					plain, "UTF-8"), 8192);
+			parser().parse(reader, handler);
+		}
+		catch(InterruptedIOException e) {
+			// Cancelled, not a bad password
+			throw e;
 		}
 		catch(ParseException e) {
 			/* Can't parse decrypted data.  This is almost always due to a  
@@ -467,59 +2090,97 @@ public class Ring {
 			 * 
 			 * TODO Hmmm, we could check to see if the last character is a
 			 * closing curly brace... */
-			return false;
+			return null;
 		}
-		// Clear temp storage
-		cryptedDb = null;
+		catch(IOException e) {
+			// Truncated or mangled base64 data
+			return null;
+		}
+		return handler;
+	}
+
+	/**
+	 * Take the categories, checkData and prefs from a successful parse,
+	 * and replay the journal.
+	 */
+	private void commit(DbContentHandler handler)
+			throws GeneralSecurityException, IOException {
 		log("Depot data loaded");
 
 		// We've got our data, pull it apart into usable pieces
 		// TODO What if the decrypted data isn't a Keyring backup?
-		Map<String, JSONObject> rawDb = (Map<String, JSONObject>) obj.get("db");
-		for (Map.Entry<String, JSONObject> ent : rawDb.entrySet()) {
-			String title = ent.getKey();
-			JSONObject rawItem = ent.getValue();
-			db.put(title, new Item(this, rawItem));
-		}
 		
 		// Handle categories
-		categoriesById = new HashMap<Integer, String>();
-		categoriesByName = new TreeMap<String, Integer>();
-		Object tmp = obj.get("categories");
-		if (null != tmp) {
-			Map<String, String> tmpCats = (Map<String, String>) tmp;
-			for (Map.Entry<String, String> cat : tmpCats.entrySet()) {
+		Map<Integer, String> byId = new HashMap<Integer, String>();
+		SortedMap<String, Integer> byName = new TreeMap<String, Integer>();
+		if (null != handler.categories) {
+			for (Map.Entry<String, String> cat : handler.categories.entrySet()) {
 				int id = Integer.parseInt(cat.getKey());
 				updateNextCategories(id);
-				categoriesById.put(id, cat.getValue());
-				categoriesByName.put(cat.getValue(), id);
+				byId.put(id, cat.getValue());
+				byName.put(cat.getValue(), id);
 			}
 		}
 
 		// make sure we always have the "all" and "unfiled" categories
-		setDefaultCategories();
+		setCategories(byId, byName);
 		
-		checkData = (String) ((JSONObject) obj.get("crypt")).get("checkData");
+		checkData = handler.checkData;
 
 		// For now, just stash prefs as a JSONObject
-		prefs = (JSONObject) obj.get("prefs");
+		prefs = handler.prefs;
 		
 		fullyLoaded = true;
 		
 		log("Depot data processed");
-		return true;
+
+		Journal j = journal;
+		if (null != j) {
+			int changes = j.replay();
+			if (changes > 0) {
+				log("Replayed " + changes + " changes from journal");
+			}
+		}
 	}
 
 	private Writer getWriter(String outFile)
 	        throws IOException, GeneralSecurityException {
-		OutputStream os;
+		OutputStreamWriter writer = new OutputStreamWriter(getOutputStream(outFile), "UTF-8");
+		return writer;
+	}
+
+	private OutputStream getOutputStream(String outFile) throws IOException {
+		if (outFile.equals("-")) {
+			return System.out;
+		}
+		if (atomicSaves) {
+			return new AtomicFileOutputStream(new File(outFile), keepBackup);
+		}
+		return new BufferedOutputStream(new FileOutputStream(new File(outFile)));
+	}
+
+	/**
+	 * Write the Ring to os in whichever format we're saving in.
+	 */
+	private void writeTo(OutputStream os, boolean compressCategories)
+			throws IOException, GeneralSecurityException {
+		if (binaryFormat) {
+			writeBinary(os, compressCategories);
+		} else {
+			writeExport(os, compressCategories);
+		}
+	}
+
+	private void closeOutputStream(OutputStream os, String outFile)
+	        throws IOException {
 		if (outFile.equals("-")) {
-			os = System.out;
+			if (! binaryFormat) {
+				os.write('\n');
+			}
+			os.flush();
 		} else {
-			os = new FileOutputStream(new File(outFile));
+			os.close();
 		}
-		OutputStreamWriter writer = new OutputStreamWriter(os, "UTF-8");
-		return writer;
 	}
 	
 	private void closeWriter(Writer writer, String outFile) 
@@ -557,44 +2218,85 @@ public class Ring {
 	 * @throws IOException
 	 * @throws GeneralSecurityException
 	 */
-	public void save(String outFile, boolean compressCategories)
+	public void save(String outFile, final boolean compressCategories)
         	throws IOException, GeneralSecurityException {
 		log("save(" + outFile + ")");
+		checkKey();
 		if (outFile.startsWith("http")) {
-			URL url = new URL(outFile);
-			URLConnection urlConn = url.openConnection(); 
-		    urlConn.setDoInput(true); 
-		    urlConn.setDoOutput(true); 
-		    urlConn.setUseCaches(false); 
-		    urlConn.setRequestProperty ("Content-Type", "application/x-www-form-urlencoded");
-
-		    DataOutputStream dos = new DataOutputStream (urlConn.getOutputStream()); 
-		    String message = "data=" + URLEncoder.encode(getExportData(compressCategories).toJSONString(), "UTF-8");
-		    dos.writeBytes(message); 
-		    dos.flush(); 
-		    dos.close();
-
-		    // the server responds by saying 
-		    // "OK" or "ERROR: blah blah"
-
-		    BufferedReader br = new BufferedReader(new InputStreamReader(urlConn.getInputStream())); 
-		    String s = br.readLine(); 
-		    if (! s.equals("OK")) {
-		    	StringBuilder sb = new StringBuilder();
-		    	sb.append("Failed to save to URL '");
-		    	sb.append(url);
-		    	sb.append("': ");
-		    	while ((s = br.readLine()) != null) {
-		    		sb.append(s);
-		    	}
-		    	throw new IOException(sb.toString());
-		    }
-		    br.close(); 
+			uploader.upload(new URL(outFile), new Uploader.Body() {
+				public void writeTo(OutputStream out)
+						throws IOException, GeneralSecurityException {
+					writeExport(out, compressCategories);
+				}
+			});
+		} else if (! isLocalFile(outFile)) {
+			OutputStream os = getOutputStream(outFile);
+			writeTo(os, compressCategories);
+			closeOutputStream(os, outFile);
 		} else {
-			Writer writer = getWriter(outFile);
-			getExportData(compressCategories).writeJSONString(writer);
-			closeWriter(writer, outFile);
+			synchronized (saveLock) {
+				/* Set aside the journal (or any stale journal left next to
+				 * a different file), since the file will have everything. */
+				Journal j = journalFor(outFile);
+				if (null == j) {
+					j = new Journal(this, outFile);
+					j.setCompactionThreshold(journalCompactionThreshold);
+				}
+				j.rotate();
+				OutputStream os = getOutputStream(outFile);
+				boolean written = false;
+				try {
+					writeTo(os, compressCategories);
+					written = true;
+				} finally {
+					if (! written && os instanceof AtomicFileOutputStream) {
+						// Leave the old file as it was
+						((AtomicFileOutputStream) os).abort();
+					} else {
+						os.close();
+					}
+				}
+				j.discardRotated();
+				journal = j;
+			}
+		}
+	}
+
+	/**
+	 * Save a new or changed Item.  If outFile is the local file we loaded
+	 * from (or last saved to) the change is appended to its journal,
+	 * otherwise the whole Ring is saved.
+	 *
+	 * @param compressCategories remove empty categories when the journal
+	 * is compacted into outFile
+	 */
+	public void saveItem(String outFile, Item item, boolean compressCategories)
+			throws IOException, GeneralSecurityException {
+		Journal j = journalFor(outFile);
+		if (null == j) {
+			save(outFile, compressCategories);
+			return;
 		}
+		log("saveItem(" + outFile + ")");
+		checkKey();
+		j.appendPut(item);
+		j.compactIfNeeded(compressCategories);
+	}
+
+	/**
+	 * Save the removal of an Item, as with saveItem().
+	 */
+	public void saveRemoval(String outFile, String title, boolean compressCategories)
+			throws IOException, GeneralSecurityException {
+		Journal j = journalFor(outFile);
+		if (null == j) {
+			save(outFile, compressCategories);
+			return;
+		}
+		log("saveRemoval(" + outFile + ")");
+		checkKey();
+		j.appendRemoval(title);
+		j.compactIfNeeded(compressCategories);
 	}
 	
 	public void exportToCSV(String outFile)
@@ -604,7 +2306,7 @@ public class Ring {
 		CSVPrinter csv = new CSVPrinter(writer);
 		csv.writeln(new String[] {"title", "username", "password", "url",
 				"category", "created", "viewed", "changed", "notes"});
-		for (Item i : db.values()) {
+		for (Item i : getItems()) {
 			csv.write(i.getTitle());
 			csv.write(i.getUsername());
 			csv.write(i.getPass());
@@ -618,7 +2320,7 @@ public class Ring {
 		closeWriter(writer, outFile);
 	}
 	
-	private void log(String message) {
+	void log(String message) {
 		System.err.println(message);
 	}
 
@@ -626,4 +2328,34 @@ public class Ring {
 		if (id >= nextCategory)
 			nextCategory = id + 1;
 	}
+
+	private static class Registration {
+		RingListener listener;
+		Executor executor;
+
+		Registration(RingListener listener, Executor executor) {
+			this.listener = listener;
+			this.executor = executor;
+		}
+	}
+
+	/**
+	 * Changes held back by beginChanges().
+	 */
+	private static class Batch {
+		int depth;
+		List<RingEvent> events = new ArrayList<RingEvent>();
+
+		void add(RingEvent event) {
+			// Setting several fields of an Item is one change
+			if (event.getType() == RingEvent.ITEM_CHANGED && ! events.isEmpty()) {
+				RingEvent last = events.get(events.size() - 1);
+				if (last.getType() == RingEvent.ITEM_CHANGED &&
+						last.getItem() == event.getItem()) {
+					return;
+				}
+			}
+			events.add(event);
+		}
+	}
 }
@@ -0,0 +1,130 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+/**
+ * One change to a Ring, as published to RingListeners.
+ *
+ * @author Dirk Bergstrom
+ */
+public class RingEvent {
+
+	/** An Item was added. */
+	public static final int ITEM_ADDED = 1;
+	/** An Item was removed; getTitle() is the title it was under. */
+	public static final int ITEM_REMOVED = 2;
+	/** An Item's title changed; getOldTitle() is the one it had. */
+	public static final int ITEM_RENAMED = 3;
+	/** An Item moved to another category; see getOldCategoryId(). */
+	public static final int ITEM_RECATEGORIZED = 4;
+	/** An Item's username, password, url or notes changed. */
+	public static final int ITEM_CHANGED = 5;
+	/** A category was added; there's no Item. */
+	public static final int CATEGORIES_CHANGED = 6;
+
+	private int type;
+	private Item item;
+	private String title;
+	private String oldTitle;
+	private int oldCategoryId;
+
+	RingEvent(int type, Item item, String title, String oldTitle,
+			int oldCategoryId) {
+		this.type = type;
+		this.item = item;
+		this.title = title;
+		this.oldTitle = oldTitle;
+		this.oldCategoryId = oldCategoryId;
+	}
+
+	static RingEvent added(Item item) {
+		return new RingEvent(ITEM_ADDED, item, item.getTitle(), null, 0);
+	}
+
+	static RingEvent removed(Item item, String title) {
+		return new RingEvent(ITEM_REMOVED, item, title, null, 0);
+	}
+
+	static RingEvent renamed(Item item, String oldTitle) {
+		return new RingEvent(ITEM_RENAMED, item, item.getTitle(), oldTitle, 0);
+	}
+
+	static RingEvent recategorized(Item item, int oldCategoryId) {
+		return new RingEvent(ITEM_RECATEGORIZED, item, item.getTitle(), null,
+				oldCategoryId);
+	}
+
+	static RingEvent changed(Item item) {
+		return new RingEvent(ITEM_CHANGED, item, item.getTitle(), null, 0);
+	}
+
+	static RingEvent categoriesChanged() {
+		return new RingEvent(CATEGORIES_CHANGED, null, null, null, 0);
+	}
+
+	/**
+	 * @return One of the constants above.
+	 */
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * @return The Item concerned, or null for CATEGORIES_CHANGED.
+	 */
+	public Item getItem() {
+		return item;
+	}
+
+	/**
+	 * @return The Item's title when the change was made.
+	 */
+	public String getTitle() {
+		return title;
+	}
+
+	/**
+	 * @return For ITEM_RENAMED, the previous title.
+	 */
+	public String getOldTitle() {
+		return oldTitle;
+	}
+
+	/**
+	 * @return For ITEM_RECATEGORIZED, the previous category id.
+	 */
+	public int getOldCategoryId() {
+		return oldCategoryId;
+	}
+
+	@Override
+	public String toString() {
+		String[] names = { null, "added", "removed", "renamed",
+				"recategorized", "changed", "categories changed" };
+		StringBuilder sb = new StringBuilder(names[type]);
+		if (null != title) {
+			sb.append(' ').append(title);
+		}
+		if (null != oldTitle) {
+			sb.append(" (was ").append(oldTitle).append(')');
+		}
+		return sb.toString();
+	}
+}
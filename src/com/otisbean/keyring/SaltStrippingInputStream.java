@@ -0,0 +1,88 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Drops the random salt characters at the front of decrypted data, the
+ * streaming equivalent of Ring.decrypt()'s replaceAll("^[^\\{]*\\{", "{").
+ *
+ * Salt characters are drawn from ASCII 33-121, so they can never
+ * include a '{'.
+ */
+class SaltStrippingInputStream extends FilterInputStream {
+
+	private boolean stripped;
+
+	SaltStrippingInputStream(InputStream in) {
+		super(in);
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (! stripped) {
+			return skipSalt();
+		}
+		return in.read();
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (! stripped) {
+			int c = skipSalt();
+			if (c < 0) {
+				return -1;
+			}
+			b[off] = (byte) c;
+			int n = in.read(b, off + 1, len - 1);
+			return n < 0 ? 1 : n + 1;
+		}
+		return in.read(b, off, len);
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = 0;
+		while (skipped < n && read() >= 0) {
+			skipped++;
+		}
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	private int skipSalt() throws IOException {
+		int c;
+		do {
+			c = in.read();
+		} while (c >= 0 && c != '{');
+		stripped = true;
+		return c;
+	}
+}
@@ -0,0 +1,500 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the Items on a Ring whose title contains a string, ignoring case;
+ * optionally also looking in their usernames and urls.
+ *
+ * Every three-character substring (trigram) of each title is indexed, so a
+ * query of three or more characters only has to check the Items that have
+ * its rarest trigram.  Shorter queries check every Item.  A query that
+ * extends the previous one (as when typing) only checks the previous
+ * results, if nothing has changed since.
+ *
+ * The index follows the Ring through its RingEvents, so it's only ever
+ * built once.  The usernames and urls have to be decrypted to be indexed,
+ * which is slow, so that's done a chunk at a time by indexSecrets(); they
+ * stay in the index until wipeSecrets(), which should be called whenever
+ * the Ring is locked.
+ *
+ * Safe to use from any thread.
+ *
+ * @author Dirk Bergstrom
+ */
+public class SearchIndex implements RingListener {
+
+	/**
+	 * Compact once there are this many removed entries, and more of them
+	 * than live ones.
+	 */
+	private static final int COMPACT_THRESHOLD = 1024;
+
+	private final Ring ring;
+
+	// All guarded by this
+	/**
+	 * By id; null once removed
+	 */
+	private List<Entry> entries = new ArrayList<Entry>();
+	/**
+	 * Item to id.  By identity, since an Item's hashCode changes with its
+	 * title.
+	 */
+	private Map<Item, Integer> ids = new IdentityHashMap<Item, Integer>();
+	private Map<Long, IdList> titleGrams = new HashMap<Long, IdList>();
+	/**
+	 * Null unless the secrets are (being) indexed
+	 */
+	private Map<Long, IdList> secretGrams;
+	/**
+	 * Items whose secrets are still to be indexed
+	 */
+	private List<Item> secretsTodo;
+	/**
+	 * Bumped by wipeSecrets(), so an indexSecrets() under way knows to stop
+	 */
+	private int secretsGeneration;
+	private int removed;
+	/**
+	 * The last search, forgotten whenever anything changes
+	 */
+	private String lastQuery;
+	private IdList lastResults;
+
+	/**
+	 * Index the titles of all the Items on ring, and keep up with its
+	 * changes until close().
+	 */
+	public SearchIndex(Ring ring) {
+		this.ring = ring;
+		// Listen first, so nothing added meanwhile is missed
+		ring.addRingListener(this);
+		List<Item> items = new ArrayList<Item>(ring.getItems());
+		synchronized (this) {
+			for (Item item : items) {
+				// Unless it's been added (or removed) by an event since
+				if (! ids.containsKey(item) &&
+						ring.getItem(item.getTitle()) == item) {
+					add(item);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop following the Ring, and wipe the secrets.
+	 */
+	public void close() {
+		ring.removeRingListener(this);
+		wipeSecrets();
+	}
+
+	public Ring getRing() {
+		return ring;
+	}
+
+	/**
+	 * @return The number of Items indexed.
+	 */
+	public synchronized int size() {
+		return ids.size();
+	}
+
+	/**
+	 * @return The Items matching query, or null if it's empty (which
+	 * matches everything).  By identity, not Item.equals().
+	 */
+	public synchronized Set<Item> search(String query) {
+		String q = normalize(query);
+		if (q.length() == 0) {
+			return null;
+		}
+		IdList results;
+		if (null != lastQuery && q.contains(lastQuery)) {
+			// Narrowing the last search
+			results = check(lastResults, null, q);
+		} else if (q.length() < 3) {
+			results = new IdList();
+			for (int id = 0; id < entries.size(); id++) {
+				Entry e = entries.get(id);
+				if (null != e && matches(e, q)) {
+					results.add(id);
+				}
+			}
+		} else {
+			results = check(rarest(titleGrams, q),
+					null == secretGrams ? null : rarest(secretGrams, q), q);
+		}
+		lastQuery = q;
+		lastResults = results;
+		Set<Item> matches = Collections.newSetFromMap(
+				new IdentityHashMap<Item, Boolean>(results.size));
+		for (int i = 0; i < results.size; i++) {
+			matches.add(entries.get(results.ids[i]).item);
+		}
+		return matches;
+	}
+
+	/**
+	 * @return True if item matches query (which must not be empty).  The
+	 * title is checked as it is now, whether or not the index has caught up
+	 * with it yet.
+	 */
+	public synchronized boolean matches(Item item, String query) {
+		String q = normalize(query);
+		if (normalize(item.getTitle()).contains(q)) {
+			return true;
+		}
+		Integer id = ids.get(item);
+		if (null == id) {
+			return false;
+		}
+		String secrets = entries.get(id).secrets;
+		return null != secrets && secrets.contains(q);
+	}
+
+	/**
+	 * Index the usernames and urls of up to max more Items, decrypting them
+	 * as needed.  Call repeatedly until it returns true.  Items added
+	 * meanwhile are indexed as they come.  After wipeSecrets(), the next
+	 * call starts over.
+	 *
+	 * @return True if there's no more to do: every Item's secrets are
+	 * indexed, or they were wiped meanwhile.
+	 */
+	public boolean indexSecrets(int max)
+			throws GeneralSecurityException, KeyringException {
+		List<Item> chunk;
+		int generation;
+		synchronized (this) {
+			if (null == secretGrams) {
+				secretGrams = new HashMap<Long, IdList>();
+				secretsTodo = new ArrayList<Item>(ids.keySet());
+				forgetLastResults();
+			}
+			int n = Math.min(max, secretsTodo.size());
+			List<Item> tail = secretsTodo.subList(secretsTodo.size() - n,
+					secretsTodo.size());
+			chunk = new ArrayList<Item>(tail);
+			tail.clear();
+			generation = secretsGeneration;
+		}
+		// Decrypt without holding up searches
+		List<String> secrets = new ArrayList<String>(chunk.size());
+		try {
+			for (Item item : chunk) {
+				secrets.add(readSecrets(item));
+			}
+		} catch (GeneralSecurityException e) {
+			requeue(chunk, generation);
+			throw e;
+		} catch (KeyringException e) {
+			requeue(chunk, generation);
+			throw e;
+		}
+		synchronized (this) {
+			if (generation != secretsGeneration) {
+				// Wiped meanwhile
+				return true;
+			}
+			for (int i = 0; i < chunk.size(); i++) {
+				Integer id = ids.get(chunk.get(i));
+				if (null != id && null == entries.get(id).secrets) {
+					setSecrets(id, secrets.get(i));
+				}
+			}
+			forgetLastResults();
+			return secretsTodo.isEmpty();
+		}
+	}
+
+	/**
+	 * Drop the usernames and urls from the index.
+	 */
+	public synchronized void wipeSecrets() {
+		secretsGeneration++;
+		if (null == secretGrams) {
+			return;
+		}
+		secretGrams = null;
+		secretsTodo = null;
+		for (Entry e : entries) {
+			if (null != e) {
+				e.secrets = null;
+			}
+		}
+		forgetLastResults();
+	}
+
+	/**
+	 * @return True if usernames and urls are (being) indexed.
+	 */
+	public synchronized boolean hasSecrets() {
+		return null != secretGrams;
+	}
+
+	public void ringChanged(Ring changed, List<RingEvent> events) {
+		// Secrets of changed Items are read before taking our monitor,
+		// since decrypting can trim the Ring's PlaintextCache
+		boolean secretsWanted;
+		synchronized (this) {
+			secretsWanted = null != secretGrams;
+		}
+		Map<Item, String> secrets = null;
+		if (secretsWanted) {
+			secrets = new IdentityHashMap<Item, String>();
+			for (RingEvent e : events) {
+				Item item = e.getItem();
+				if (null != item && e.getType() != RingEvent.ITEM_REMOVED) {
+					secrets.put(item, quietlyReadSecrets(item));
+				}
+			}
+		}
+		synchronized (this) {
+			for (RingEvent e : events) {
+				Item item = e.getItem();
+				switch (e.getType()) {
+				case RingEvent.ITEM_ADDED:
+				case RingEvent.ITEM_RENAMED:
+				case RingEvent.ITEM_CHANGED:
+					remove(item);
+					if (ring.getItem(item.getTitle()) == item) {
+						add(item);
+						if (null == secretGrams) {
+							break;
+						}
+						if (null != secrets) {
+							setSecrets(ids.get(item), secrets.get(item));
+						} else {
+							// indexSecrets() started meanwhile
+							secretsTodo.add(item);
+						}
+					}
+					break;
+				case RingEvent.ITEM_REMOVED:
+					remove(item);
+					break;
+				}
+			}
+			forgetLastResults();
+		}
+	}
+
+	// Call with this held ---------------------------------------------
+
+	private void add(Item item) {
+		int id = entries.size();
+		Entry e = new Entry(item, normalize(item.getTitle()));
+		entries.add(e);
+		ids.put(item, id);
+		index(titleGrams, e.title, id);
+	}
+
+	private void remove(Item item) {
+		Integer id = ids.remove(item);
+		if (null == id) {
+			return;
+		}
+		// The ids left in the trigram lists are skipped from now on
+		entries.set(id, null);
+		if (++removed >= COMPACT_THRESHOLD && removed > ids.size()) {
+			compact();
+		}
+	}
+
+	private void setSecrets(int id, String secrets) {
+		if (null == secrets) {
+			return;
+		}
+		entries.get(id).secrets = secrets;
+		index(secretGrams, secrets, id);
+	}
+
+	/**
+	 * Renumber the live entries, and rebuild the trigram lists.
+	 */
+	private void compact() {
+		List<Entry> old = entries;
+		entries = new ArrayList<Entry>(ids.size());
+		ids.clear();
+		titleGrams = new HashMap<Long, IdList>();
+		if (null != secretGrams) {
+			secretGrams = new HashMap<Long, IdList>();
+		}
+		for (Entry e : old) {
+			if (null == e) {
+				continue;
+			}
+			int id = entries.size();
+			entries.add(e);
+			ids.put(e.item, id);
+			index(titleGrams, e.title, id);
+			if (null != e.secrets) {
+				index(secretGrams, e.secrets, id);
+			}
+		}
+		removed = 0;
+	}
+
+	/**
+	 * @return The ids from either list (or both; either can be null) whose
+	 * entries match q, in order.
+	 */
+	private IdList check(IdList a, IdList b, String q) {
+		IdList results = new IdList();
+		int i = 0;
+		int j = 0;
+		int na = null == a ? 0 : a.size;
+		int nb = null == b ? 0 : b.size;
+		int last = -1;
+		while (i < na || j < nb) {
+			// Merge the two, which are in ascending order
+			int id;
+			if (j == nb || (i < na && a.ids[i] <= b.ids[j])) {
+				id = a.ids[i++];
+			} else {
+				id = b.ids[j++];
+			}
+			if (id == last) {
+				// In both, or a trigram that's in a string twice
+				continue;
+			}
+			last = id;
+			Entry e = entries.get(id);
+			if (null != e && matches(e, q)) {
+				results.add(id);
+			}
+		}
+		return results;
+	}
+
+	private void forgetLastResults() {
+		lastQuery = null;
+		lastResults = null;
+	}
+
+	// Static helpers ---------------------------------------------------
+
+	private static boolean matches(Entry e, String q) {
+		return e.title.contains(q) || (null != e.secrets && e.secrets.contains(q));
+	}
+
+	/**
+	 * @return The shortest list of ids for the trigrams of q, or null if
+	 * one of them isn't there at all (so nothing can match).
+	 */
+	private static IdList rarest(Map<Long, IdList> grams, String q) {
+		IdList best = null;
+		for (int i = 0; i + 3 <= q.length(); i++) {
+			IdList ids = grams.get(trigram(q, i));
+			if (null == ids) {
+				return null;
+			}
+			if (null == best || ids.size < best.size) {
+				best = ids;
+			}
+		}
+		return best;
+	}
+
+	private static void index(Map<Long, IdList> grams, String s, int id) {
+		for (int i = 0; i + 3 <= s.length(); i++) {
+			Long key = trigram(s, i);
+			IdList ids = grams.get(key);
+			if (null == ids) {
+				ids = new IdList();
+				grams.put(key, ids);
+			}
+			ids.add(id);
+		}
+	}
+
+	private static Long trigram(String s, int i) {
+		return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) |
+			s.charAt(i + 2);
+	}
+
+	private static String normalize(String s) {
+		return null == s ? "" : s.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * @return The username and url, normalized, one per line.
+	 */
+	private static String readSecrets(Item item)
+			throws GeneralSecurityException, KeyringException {
+		return normalize(item.getUsername()) + "\n" + normalize(item.getUrl());
+	}
+
+	private static String quietlyReadSecrets(Item item) {
+		try {
+			return readSecrets(item);
+		} catch (GeneralSecurityException e) {
+			return null;
+		} catch (KeyringException e) {
+			return null;
+		}
+	}
+
+	private synchronized void requeue(List<Item> chunk, int generation) {
+		if (generation == secretsGeneration) {
+			secretsTodo.addAll(chunk);
+		}
+	}
+
+	private static class Entry {
+		final Item item;
+		final String title;
+		String secrets;
+
+		Entry(Item item, String title) {
+			this.item = item;
+			this.title = title;
+		}
+	}
+
+	/**
+	 * A growable list of ids, in the order added (which is ascending).
+	 */
+	private static class IdList {
+		int[] ids = new int[4];
+		int size;
+
+		void add(int id) {
+			if (size == ids.length) {
+				int[] bigger = new int[size * 2];
+				System.arraycopy(ids, 0, bigger, 0, size);
+				ids = bigger;
+			}
+			ids[size++] = id;
+		}
+	}
+}
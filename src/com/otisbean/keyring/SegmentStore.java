@@ -0,0 +1,170 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The still-encrypted segments of a segmented (schema 5) db.
+ *
+ * Each Item lives in the segment picked by segmentFor(title), so looking
+ * up one Item only needs its own segment decrypted.  Asking for all of
+ * them decrypts whatever is left in parallel, one segment per task.
+ *
+ * @author Dirk Bergstrom
+ */
+class SegmentStore {
+
+	/**
+	 * Work on one segment, from a fork-join worker.
+	 */
+	interface SegmentWork {
+		void run(int segment) throws GeneralSecurityException, KeyringException;
+	}
+
+	private final Ring ring;
+	/**
+	 * Base64 cryptext of each segment, null once it has been decrypted.
+	 */
+	private final AtomicReferenceArray<byte[]> cryptext;
+	private final Object[] locks;
+	private final AtomicInteger remaining;
+
+	SegmentStore(Ring ring, List<byte[]> segments) {
+		this.ring = ring;
+		cryptext = new AtomicReferenceArray<byte[]>(segments.toArray(new byte[segments.size()][]));
+		locks = new Object[segments.size()];
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+		remaining = new AtomicInteger(segments.size());
+	}
+
+	/**
+	 * @return The segment that holds the Item with the given title, out of
+	 * count segments.  String.hashCode() is fixed by the language spec, so
+	 * this is stable between runs.
+	 */
+	static int segmentFor(String title, int count) {
+		return (title.hashCode() & 0x7fffffff) % count;
+	}
+
+	/**
+	 * @return true when every segment has been decrypted.
+	 */
+	boolean isComplete() {
+		return remaining.get() == 0;
+	}
+
+	/**
+	 * Decrypt the segment that would hold title, if it hasn't been already.
+	 */
+	void loadFor(String title) throws GeneralSecurityException, KeyringException {
+		if (cryptext.length() > 0) {
+			load(segmentFor(title, cryptext.length()));
+		}
+	}
+
+	/**
+	 * Decrypt every segment that hasn't been already, in parallel.
+	 */
+	void loadAll() throws GeneralSecurityException, KeyringException {
+		if (isComplete()) {
+			return;
+		}
+		forEach(cryptext.length(), new SegmentWork() {
+			public void run(int segment) throws GeneralSecurityException, KeyringException {
+				load(segment);
+			}
+		});
+	}
+
+	private void load(int segment) throws GeneralSecurityException, KeyringException {
+		if (null == cryptext.get(segment)) {
+			return;
+		}
+		synchronized (locks[segment]) {
+			byte[] c = cryptext.get(segment);
+			if (null == c) {
+				// Someone beat us to it
+				return;
+			}
+			ring.loadSegment(c, segment);
+			cryptext.set(segment, null);
+			remaining.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Run work on segments 0 to count - 1 on the fork-join pool, returning
+	 * when they're all done.
+	 */
+	static void forEach(int count, SegmentWork work)
+			throws GeneralSecurityException, KeyringException {
+		if (count == 0) {
+			return;
+		}
+		try {
+			ForkJoinPool.commonPool().invoke(new SegmentTask(work, 0, count));
+		} catch (WrappedException e) {
+			WrappedException.unwrap(e);
+		}
+	}
+
+	/**
+	 * Splits a range of segments in half until there's one per task.  A
+	 * segment is hundreds of Items, so that's plenty of work for a thread.
+	 */
+	private static class SegmentTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final SegmentWork work;
+		private final int from;
+		private final int to;
+
+		SegmentTask(SegmentWork work, int from, int to) {
+			this.work = work;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				try {
+					work.run(from);
+				} catch (GeneralSecurityException e) {
+					throw new WrappedException(e);
+				} catch (KeyringException e) {
+					throw new WrappedException(e);
+				}
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new SegmentTask(work, from, mid),
+						new SegmentTask(work, mid, to));
+			}
+		}
+	}
+}
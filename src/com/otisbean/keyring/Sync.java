@@ -0,0 +1,371 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Three-way merge of a local and a remote Ring, against the base they
+ * were both last synced to (typically a copy of the merged Ring kept from
+ * the last sync).
+ *
+ * Items are matched by title.  For each title, a side that's the same as
+ * the base takes the other side's version (a new, changed or deleted
+ * Item); if both sides changed it, differently, it's a conflict.
+ * Conflicts are reported, and left alone unless a resolution is set.
+ *
+ * Two versions of an Item are the same if they have the same category and
+ * the same contents.  Items that haven't been touched still have the
+ * cryptext they were loaded with, so comparing the cryptext (and the
+ * category) settles almost every Item; only Items whose metadata differs
+ * are decrypted and compared field by field.  Items copied between Rings
+ * with the same key keep their cryptext.
+ *
+ * run() changes local and remote in memory; saving them (and keeping the
+ * new base) is up to the caller.
+ *
+ * @author Dirk Bergstrom
+ */
+public class Sync {
+
+	/** Leave conflicting Items as they are on each side. */
+	public static final int REPORT = 0;
+	/** Resolve conflicts with the local version. */
+	public static final int KEEP_LOCAL = 1;
+	/** Resolve conflicts with the remote version. */
+	public static final int KEEP_REMOTE = 2;
+	/**
+	 * Resolve conflicts with the version changed last, or the surviving
+	 * version if one side deleted the Item.
+	 */
+	public static final int KEEP_NEWEST = 3;
+
+	private Ring base;
+	private Ring local;
+	private Ring remote;
+	private int resolution = REPORT;
+
+	/** Plaintext of the Items decrypted for the title being merged. */
+	private Map<Item, JSONObject> plaintext = new IdentityHashMap<Item, JSONObject>();
+	private int decrypted;
+
+	/**
+	 * @param base The last synced version, or null if there isn't one (in
+	 * which case every difference between local and remote is a conflict,
+	 * except Items that only one side has).
+	 */
+	public Sync(Ring base, Ring local, Ring remote) {
+		this.base = base;
+		this.local = local;
+		this.remote = remote;
+	}
+
+	/**
+	 * @param resolution REPORT, KEEP_LOCAL, KEEP_REMOTE or KEEP_NEWEST.
+	 */
+	public void setResolution(int resolution) {
+		this.resolution = resolution;
+	}
+
+	public int getResolution() {
+		return resolution;
+	}
+
+	/**
+	 * Merge, applying the changes to local and remote.
+	 */
+	public Result run() throws GeneralSecurityException, KeyringException {
+		decrypted = 0;
+		Result result = new Result();
+		List<Change> changes = new ArrayList<Change>();
+		for (Item l : local.getItems()) {
+			String title = l.getTitle();
+			merge(title, itemFrom(base, title), l, remote.getItem(title),
+					changes, result);
+		}
+		for (Item r : remote.getItems()) {
+			String title = r.getTitle();
+			if (null == local.getItem(title)) {
+				merge(title, itemFrom(base, title), null, r, changes, result);
+			}
+		}
+		// Titles deleted on both sides need nothing
+
+		// Listeners hear about each side's changes all at once
+		local.beginChanges();
+		remote.beginChanges();
+		try {
+			for (Change c : changes) {
+				if (null == c.item) {
+					c.to.removeItem(c.title);
+				} else {
+					c.to.addItem(copy(c.item, c.to));
+				}
+				(c.to == local ? result.localChanges : result.remoteChanges).add(c.title);
+				plaintext.clear();
+			}
+		} finally {
+			remote.endChanges();
+			local.endChanges();
+		}
+		result.decrypted = decrypted;
+		return result;
+	}
+
+	private static Item itemFrom(Ring ring, String title) {
+		return null == ring ? null : ring.getItem(title);
+	}
+
+	private void merge(String title, Item b, Item l, Item r,
+			List<Change> changes, Result result)
+			throws GeneralSecurityException, KeyringException {
+		try {
+			if (same(l, r)) {
+				return;
+			}
+			boolean localChanged = ! same(b, l);
+			boolean remoteChanged = ! same(b, r);
+			if (! localChanged) {
+				changes.add(new Change(local, title, r));
+			} else if (! remoteChanged) {
+				changes.add(new Change(remote, title, l));
+			} else {
+				Conflict c = new Conflict(title, b, l, r);
+				if (resolution != REPORT) {
+					Item winner = resolve(l, r);
+					c.resolved = true;
+					changes.add(winner == l ? new Change(remote, title, l)
+							: new Change(local, title, r));
+				}
+				result.conflicts.add(c);
+			}
+		} finally {
+			plaintext.clear();
+		}
+	}
+
+	/**
+	 * @return The version that wins a conflict under the resolution.
+	 */
+	private Item resolve(Item l, Item r) {
+		switch (resolution) {
+		case KEEP_LOCAL:
+			return l;
+		case KEEP_REMOTE:
+			return r;
+		case KEEP_NEWEST:
+			if (null == l || null == r) {
+				return null == l ? r : l;
+			}
+			return r.getChanged() > l.getChanged() ? r : l;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if a and b are both missing, or have the same category
+	 * and contents.
+	 */
+	private boolean same(Item a, Item b)
+			throws GeneralSecurityException, KeyringException {
+		if (null == a || null == b) {
+			return a == b;
+		}
+		if (! a.getCategory().equals(b.getCategory())) {
+			return false;
+		}
+		if (a.getEncryptedDataForSave().equals(b.getEncryptedDataForSave())) {
+			return true;
+		}
+		return plaintext(a).equals(plaintext(b));
+	}
+
+	/**
+	 * @return The decrypted contents (username, pass, url and notes) of
+	 * item, without unlocking it.
+	 */
+	private JSONObject plaintext(Item item)
+			throws GeneralSecurityException, KeyringException {
+		JSONObject p = plaintext.get(item);
+		if (null == p) {
+			Ring ring = item.getRing();
+			String json = ring.decrypt(item.getEncryptedDataForSave());
+			try {
+				p = (JSONObject) ring.parser().parse(json);
+			} catch (ParseException e) {
+				throw new KeyringException("Unparseable JSON data in " +
+						item.getTitle() + ": " + e);
+			}
+			plaintext.put(item, p);
+			decrypted++;
+		}
+		return p;
+	}
+
+	/**
+	 * @return A copy of item for the given Ring, sharing its cryptext if
+	 * the Rings have the same key.
+	 */
+	private Item copy(Item item, Ring to)
+			throws GeneralSecurityException, KeyringException {
+		String category = item.getCategory();
+		if (item.getRing().sameKey(to)) {
+			return new Item(to, item.getTitle(), to.categoryIdForName(category),
+					item.getCreated(), item.getViewed(), item.getChanged(),
+					item.getEncryptedDataForSave());
+		}
+		JSONObject p = plaintext(item);
+		return new Item(to, (String) p.get("username"), (String) p.get("pass"),
+				(String) p.get("url"), (String) p.get("notes"), item.getTitle(),
+				category, item.getCreated(), item.getViewed(), item.getChanged());
+	}
+
+	/**
+	 * Set (or remove, if item is null) title in a Ring.
+	 */
+	private static class Change {
+		Ring to;
+		String title;
+		Item item;
+
+		Change(Ring to, String title, Item item) {
+			this.to = to;
+			this.title = title;
+			this.item = item;
+		}
+	}
+
+	/**
+	 * An Item changed differently on both sides.
+	 */
+	public static class Conflict {
+		private String title;
+		private Item base;
+		private Item local;
+		private Item remote;
+		private boolean resolved;
+
+		Conflict(String title, Item base, Item local, Item remote) {
+			this.title = title;
+			this.base = base;
+			this.local = local;
+			this.remote = remote;
+		}
+
+		public String getTitle() {
+			return title;
+		}
+
+		/**
+		 * @return The base version, or null if it's new on both sides.
+		 */
+		public Item getBase() {
+			return base;
+		}
+
+		/**
+		 * @return The local version, or null if it was deleted locally.
+		 */
+		public Item getLocal() {
+			return local;
+		}
+
+		/**
+		 * @return The remote version, or null if it was deleted remotely.
+		 */
+		public Item getRemote() {
+			return remote;
+		}
+
+		/**
+		 * @return true if the resolution settled it.
+		 */
+		public boolean isResolved() {
+			return resolved;
+		}
+
+		@Override
+		public String toString() {
+			return title + (resolved ? " (resolved)" : "");
+		}
+	}
+
+	/**
+	 * What run() did.
+	 */
+	public static class Result {
+		private List<String> localChanges = new ArrayList<String>();
+		private List<String> remoteChanges = new ArrayList<String>();
+		private List<Conflict> conflicts = new ArrayList<Conflict>();
+		private int decrypted;
+
+		/**
+		 * @return Titles added, changed or removed in the local Ring.
+		 */
+		public List<String> getLocalChanges() {
+			return Collections.unmodifiableList(localChanges);
+		}
+
+		/**
+		 * @return Titles added, changed or removed in the remote Ring.
+		 */
+		public List<String> getRemoteChanges() {
+			return Collections.unmodifiableList(remoteChanges);
+		}
+
+		public List<Conflict> getConflicts() {
+			return Collections.unmodifiableList(conflicts);
+		}
+
+		/**
+		 * @return true if there are conflicts the resolution didn't settle.
+		 */
+		public boolean hasUnresolvedConflicts() {
+			for (Conflict c : conflicts) {
+				if (! c.isResolved()) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * @return How many Items had to be decrypted to compare them.
+		 */
+		public int getDecrypted() {
+			return decrypted;
+		}
+
+		@Override
+		public String toString() {
+			return "local changes " + localChanges + ", remote changes " +
+					remoteChanges + ", conflicts " + conflicts;
+		}
+	}
+}
@@ -0,0 +1,261 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.GeneralSecurityException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Uploads a keyring to a URL as a form POST ("data=" plus the form encoded
+ * export), the way the Keyring for webOS server expects it.
+ *
+ * The body is written straight into the connection with chunked transfer
+ * encoding, so the request takes the same (small) amount of memory however
+ * big the keyring is.  It can be gzipped on the way (Content-Encoding:
+ * gzip), for servers that accept that.  Connecting and reading the
+ * response are timed out, and an attempt that fails with an I/O error or
+ * a 408, 429 or 5xx response is retried a few times, waiting twice as long
+ * each time.  The server answers "OK" or "ERROR: blah blah"; an error
+ * answer isn't retried.
+ *
+ * Since the body is regenerated for each attempt, the writer must be
+ * able to write it more than once.
+ *
+ * @author Dirk Bergstrom
+ */
+class Uploader {
+
+	static final int DEFAULT_CONNECT_TIMEOUT = 15 * 1000;
+	static final int DEFAULT_READ_TIMEOUT = 60 * 1000;
+	static final int DEFAULT_ATTEMPTS = 3;
+	static final long DEFAULT_BACKOFF = 500;
+	private static final long MAX_BACKOFF = 30 * 1000;
+
+	/**
+	 * Bytes per chunk of the request body.
+	 */
+	private static final int CHUNK_LENGTH = 16 * 1024;
+
+	/**
+	 * Writes the export to the request body.
+	 */
+	interface Body {
+		void writeTo(OutputStream out) throws IOException, GeneralSecurityException;
+	}
+
+	private Ring ring;
+	private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+	private volatile int attempts = DEFAULT_ATTEMPTS;
+	private volatile long backoff = DEFAULT_BACKOFF;
+	private volatile boolean gzip;
+
+	Uploader(Ring ring) {
+		this.ring = ring;
+	}
+
+	void setTimeouts(int connectMillis, int readMillis) {
+		connectTimeout = connectMillis;
+		readTimeout = readMillis;
+	}
+
+	int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	int getReadTimeout() {
+		return readTimeout;
+	}
+
+	/**
+	 * @param tries Attempts to make in all, at least one.
+	 * @param firstDelay Milliseconds to wait before the first retry.
+	 */
+	void setRetries(int tries, long firstDelay) {
+		attempts = Math.max(1, tries);
+		backoff = firstDelay;
+	}
+
+	void setGzip(boolean gzip) {
+		this.gzip = gzip;
+	}
+
+	boolean getGzip() {
+		return gzip;
+	}
+
+	/**
+	 * POST body to url, retrying as described above.
+	 *
+	 * @throws IOException If the last attempt failed, or the server
+	 * rejected the upload.
+	 */
+	void upload(URL url, Body body) throws IOException, GeneralSecurityException {
+		long delay = backoff;
+		for (int attempt = 1; ; attempt++) {
+			try {
+				post(url, body);
+				return;
+			} catch (RetryableException e) {
+				if (attempt >= attempts) {
+					throw e;
+				}
+				ring.log("Upload to " + url + " failed (" + e.getMessage() +
+						"), retrying in " + delay + "ms");
+			}
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Upload to " + url + " interrupted");
+			}
+			delay = Math.min(delay * 2, MAX_BACKOFF);
+		}
+	}
+
+	/**
+	 * Make one attempt.
+	 */
+	private void post(URL url, Body body) throws IOException, GeneralSecurityException {
+		URLConnection urlConn = url.openConnection();
+		urlConn.setConnectTimeout(connectTimeout);
+		urlConn.setReadTimeout(readTimeout);
+		urlConn.setDoInput(true);
+		urlConn.setDoOutput(true);
+		urlConn.setUseCaches(false);
+		urlConn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+		if (gzip) {
+			urlConn.setRequestProperty("Content-Encoding", "gzip");
+		}
+		HttpURLConnection http = null;
+		if (urlConn instanceof HttpURLConnection) {
+			http = (HttpURLConnection) urlConn;
+			// Don't let the connection buffer the whole body to count it
+			http.setChunkedStreamingMode(CHUNK_LENGTH);
+		}
+		try {
+			OutputStream os;
+			try {
+				os = urlConn.getOutputStream();
+			} catch (IOException e) {
+				// Couldn't connect
+				throw new RetryableException(e);
+			}
+			try {
+				if (gzip) {
+					os = new GZIPOutputStream(os, 8192);
+				}
+				os.write("data=".getBytes("US-ASCII"));
+				OutputStream form = new FormEncodingOutputStream(os);
+				body.writeTo(form);
+				form.flush();
+			} catch (IOException e) {
+				// Connection dropped while sending
+				throw new RetryableException(e);
+			} finally {
+				// Finishes the gzip data and the last chunk
+				try {
+					os.close();
+				} catch (IOException e) {
+					throw new RetryableException(e);
+				}
+			}
+			readResponse(url, urlConn, http);
+		} finally {
+			if (null != http) {
+				http.disconnect();
+			}
+		}
+	}
+
+	/**
+	 * Check the response to an attempt.
+	 */
+	private void readResponse(URL url, URLConnection urlConn,
+			HttpURLConnection http) throws IOException {
+		if (null != http) {
+			int status;
+			try {
+				status = http.getResponseCode();
+			} catch (IOException e) {
+				// Timed out or dropped waiting for the response
+				throw new RetryableException(e);
+			}
+			if (status >= 300) {
+				String message = "Failed to save to URL '" + url + "': HTTP " +
+						status + " " + http.getResponseMessage();
+				if (status == 408 || status == 429 || status >= 500) {
+					throw new RetryableException(message);
+				}
+				throw new IOException(message);
+			}
+		}
+
+		// the server responds by saying
+		// "OK" or "ERROR: blah blah"
+		InputStream in;
+		try {
+			in = urlConn.getInputStream();
+		} catch (IOException e) {
+			throw new RetryableException(e);
+		}
+		BufferedReader br = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		try {
+			String s = br.readLine();
+			if (! "OK".equals(s)) {
+				StringBuilder sb = new StringBuilder();
+				sb.append("Failed to save to URL '");
+				sb.append(url);
+				sb.append("': ");
+				while (s != null) {
+					sb.append(s);
+					s = br.readLine();
+				}
+				throw new IOException(sb.toString());
+			}
+		} finally {
+			br.close();
+		}
+	}
+
+	/**
+	 * A failure that's worth another attempt.
+	 */
+	private static class RetryableException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		RetryableException(String message) {
+			super(message);
+		}
+
+		RetryableException(IOException cause) {
+			super(cause.toString(), cause);
+		}
+	}
+}
@@ -0,0 +1,428 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local copies of keyrings loaded from URLs, so that a launch doesn't
+ * download a keyring that hasn't changed, and works offline.
+ *
+ * Each URL gets two files in the cache directory, named for the SHA-256 of
+ * the URL: NAME.data is the file exactly as downloaded (so it's as
+ * encrypted as the keyring itself), and NAME.meta holds the URL and the
+ * ETag and Last-Modified headers that came with it.  The URL is always
+ * taken without any user:password@ in it, so no credentials end up in the
+ * cache.  With a cached copy,
+ * the request is a conditional GET, and a 304 answer means the copy is
+ * used without downloading anything.  If the server can't be reached (or
+ * answers 5xx) the copy is used as is.
+ *
+ * A download is copied into the cache as it's read, and only replaces the
+ * cached copy once all of it has arrived.
+ *
+ * The counters behind UrlCacheStats cover every UrlCache in the process.
+ *
+ * @author Dirk Bergstrom
+ */
+class UrlCache {
+
+	static final File DEFAULT_DIR = new File(new File(
+			System.getProperty("user.home"), ".keyring"), "cache");
+
+	private static final String DATA_SUFFIX = ".data";
+	private static final String META_SUFFIX = ".meta";
+
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong offlineHits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+	private static final AtomicLong bytesSaved = new AtomicLong();
+	private static final AtomicLong bytesDownloaded = new AtomicLong();
+
+	private Ring ring;
+	private File dir;
+
+	UrlCache(Ring ring, File dir) {
+		this.ring = ring;
+		this.dir = dir;
+	}
+
+	File getDir() {
+		return dir;
+	}
+
+	static UrlCacheStats stats() {
+		return new UrlCacheStats(hits.get(), offlineHits.get(), misses.get(),
+				bytesSaved.get(), bytesDownloaded.get());
+	}
+
+	/**
+	 * Open url for reading, from the cache if it's up to date (or the
+	 * server can't be reached), otherwise from the server, filling the
+	 * cache as it's read.
+	 *
+	 * @param connectTimeout Milliseconds to wait for the connection, and
+	 * @param readTimeout for each read; zero means no limit.
+	 */
+	InputStream open(URL url, int connectTimeout, int readTimeout)
+			throws IOException {
+		URLConnection urlConn = url.openConnection();
+		urlConn.setConnectTimeout(connectTimeout);
+		urlConn.setReadTimeout(readTimeout);
+		if (! (urlConn instanceof HttpURLConnection)) {
+			return urlConn.getInputStream();
+		}
+		HttpURLConnection http = (HttpURLConnection) urlConn;
+		String key = withoutUserInfo(url);
+		if (! key.equals(url.toString())) {
+			forgetOldEntry(url);
+		}
+		String name = name(key);
+		File data = new File(dir, name + DATA_SUFFIX);
+		File meta = new File(dir, name + META_SUFFIX);
+		Properties cached = null;
+		if (data.isFile()) {
+			cached = readMeta(meta, key);
+		}
+
+		http.setUseCaches(false);
+		if (null != cached) {
+			String etag = cached.getProperty("etag");
+			if (null != etag) {
+				http.setRequestProperty("If-None-Match", etag);
+			}
+			String lastModified = cached.getProperty("last-modified");
+			if (null != lastModified) {
+				http.setRequestProperty("If-Modified-Since", lastModified);
+			}
+		}
+
+		int status;
+		try {
+			status = http.getResponseCode();
+		} catch (IOException e) {
+			if (null == cached) {
+				throw e;
+			}
+			return offline(key, data, e.toString());
+		}
+		if (null != cached && status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+			http.disconnect();
+			hits.incrementAndGet();
+			bytesSaved.addAndGet(data.length());
+			ring.log("Using cached copy of " + key + ", not modified");
+			return new FileInputStream(data);
+		}
+		if (null != cached && status >= 500) {
+			http.disconnect();
+			return offline(key, data, "HTTP " + status);
+		}
+		if (status != HttpURLConnection.HTTP_OK) {
+			http.disconnect();
+			throw new IOException("Failed to load URL '" + key + "': HTTP " +
+					status + " " + http.getResponseMessage());
+		}
+		misses.incrementAndGet();
+		InputStream in = http.getInputStream();
+		Properties fresh = new Properties();
+		fresh.setProperty("url", key);
+		String etag = http.getHeaderField("ETag");
+		if (null != etag) {
+			fresh.setProperty("etag", etag);
+		}
+		String lastModified = http.getHeaderField("Last-Modified");
+		if (null != lastModified) {
+			fresh.setProperty("last-modified", lastModified);
+		}
+		try {
+			return new CachingInputStream(in, http.getContentLengthLong(), data,
+					meta, fresh);
+		} catch (IOException e) {
+			ring.log("Can't cache " + key + ": " + e);
+			return in;
+		}
+	}
+
+	private InputStream offline(String key, File data, String why)
+			throws IOException {
+		offlineHits.incrementAndGet();
+		ring.log("Can't reach " + key + " (" + why + "), using cached copy");
+		return new FileInputStream(data);
+	}
+
+	/**
+	 * @return The cached headers for key, or null if there aren't any.
+	 */
+	private Properties readMeta(File meta, String key) {
+		if (! meta.isFile()) {
+			return null;
+		}
+		Properties p = new Properties();
+		try {
+			InputStream in = new FileInputStream(meta);
+			try {
+				p.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+		// Guard against a hash collision, however unlikely
+		return key.equals(p.getProperty("url")) ? p : null;
+	}
+
+	/**
+	 * @return url as a String, less any user:password@.
+	 */
+	private static String withoutUserInfo(URL url) {
+		if (null == url.getUserInfo()) {
+			return url.toString();
+		}
+		try {
+			return new URL(url.getProtocol(), url.getHost(), url.getPort(),
+					url.getFile()).toString();
+		} catch (MalformedURLException e) {
+			// Made from the parts of a URL that was fine
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Caches used to be named for the whole URL, credentials and all, and
+	 * kept them in the meta file; delete any such copy of url.
+	 */
+	private void forgetOldEntry(URL url) {
+		String name = name(url.toString());
+		new File(dir, name + DATA_SUFFIX).delete();
+		new File(dir, name + META_SUFFIX).delete();
+	}
+
+	/**
+	 * @return The file name (less suffix) for key.
+	 */
+	private static String name(String key) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			byte[] hash = md.digest(key.getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				sb.append(String.format("%02x", b & 0xff));
+			}
+			return sb.toString();
+		} catch (GeneralSecurityException e) {
+			// Every JRE has SHA-256
+			throw new IllegalStateException(e);
+		} catch (IOException e) {
+			// Every JRE has UTF-8
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Creates dir if need be, readable only by the owner.
+	 */
+	private void makeDir() throws IOException {
+		if (! dir.isDirectory()) {
+			if (! dir.mkdirs()) {
+				throw new IOException("Can't create " + dir);
+			}
+			dir.setReadable(false, false);
+			dir.setReadable(true, true);
+			dir.setWritable(false, false);
+			dir.setWritable(true, true);
+			dir.setExecutable(false, false);
+			dir.setExecutable(true, true);
+		}
+	}
+
+	/**
+	 * Copies a download to a temp file as it's read.  If all of it was
+	 * read, closing the stream moves it into place as the cached copy.  A
+	 * download that broke off is never cached, whether it ended with an
+	 * error or (as HttpURLConnection reports a connection dropped part way
+	 * through a Content-Length body) just ended early.
+	 */
+	private class CachingInputStream extends FilterInputStream {
+		/**
+		 * The Content-Length, or -1 if there wasn't one
+		 */
+		private long length;
+		private File data;
+		private File meta;
+		private Properties headers;
+		private File tmp;
+		private OutputStream copy;
+		private long count;
+		private boolean complete;
+		private boolean failed;
+
+		CachingInputStream(InputStream in, long length, File data, File meta,
+				Properties headers) throws IOException {
+			super(in);
+			this.length = length;
+			this.data = data;
+			this.meta = meta;
+			this.headers = headers;
+			makeDir();
+			tmp = File.createTempFile("download", ".tmp", dir);
+			copy = new FileOutputStream(tmp);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b;
+			try {
+				b = copied(super.read());
+			} catch (IOException e) {
+				failed = true;
+				throw e;
+			}
+			if (b >= 0) {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n;
+			try {
+				n = copied(super.read(b, off, len));
+			} catch (IOException e) {
+				// A later read may well see end of stream; that's no end
+				failed = true;
+				throw e;
+			}
+			if (n > 0) {
+				write(b, off, n);
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			// Read, rather than skip, so the copy is whole
+			byte[] buf = new byte[(int) Math.min(n, 8192)];
+			int r = read(buf, 0, buf.length);
+			return Math.max(0, r);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (null == copy) {
+				return;
+			}
+			try {
+				// The parser stops at the end of the JSON; get the rest
+				byte[] buf = new byte[8192];
+				while (! complete && ! failed && read(buf, 0, buf.length) >= 0) {
+				}
+			} catch (IOException e) {
+				failed = true;
+			} finally {
+				super.close();
+				finish();
+			}
+		}
+
+		private int copied(int n) {
+			if (n < 0) {
+				if (length < 0 || count == length) {
+					complete = true;
+				} else {
+					ring.log("Download ended after " + count + " of " + length +
+							" bytes, not caching it");
+					failed = true;
+				}
+			}
+			return n;
+		}
+
+		private void write(byte[] b, int off, int len) {
+			if (failed) {
+				return;
+			}
+			try {
+				copy.write(b, off, len);
+				count += len;
+			} catch (IOException e) {
+				ring.log("Can't cache download: " + e);
+				failed = true;
+			}
+		}
+
+		private void finish() {
+			OutputStream out = copy;
+			copy = null;
+			try {
+				out.close();
+				if (complete && ! failed) {
+					/* Drop the old headers first, so they can never be
+					 * paired with the new data. */
+					meta.delete();
+					data.delete();
+					if (! tmp.renameTo(data)) {
+						throw new IOException("Can't rename " + tmp + " to " + data);
+					}
+					writeMeta();
+					bytesDownloaded.addAndGet(count);
+				}
+			} catch (IOException e) {
+				ring.log("Can't cache download: " + e);
+			} finally {
+				tmp.delete();
+			}
+		}
+
+		private void writeMeta() throws IOException {
+			File metaTmp = new File(meta.getPath() + ".tmp");
+			OutputStream out = new FileOutputStream(metaTmp);
+			try {
+				headers.store(out, null);
+			} finally {
+				out.close();
+			}
+			if (! metaTmp.renameTo(meta)) {
+				metaTmp.delete();
+				throw new IOException("Can't rename " + metaTmp + " to " + meta);
+			}
+		}
+	}
+}
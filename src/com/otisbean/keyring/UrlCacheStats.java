@@ -0,0 +1,87 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+/**
+ * A snapshot of the counters for keyrings loaded from URLs through the
+ * local cache (see Ring.setUrlCacheDir()).
+ *
+ * @author Dirk Bergstrom
+ */
+public class UrlCacheStats {
+
+	private final long hits;
+	private final long offlineHits;
+	private final long misses;
+	private final long bytesSaved;
+	private final long bytesDownloaded;
+
+	UrlCacheStats(long hits, long offlineHits, long misses, long bytesSaved,
+			long bytesDownloaded) {
+		this.hits = hits;
+		this.offlineHits = offlineHits;
+		this.misses = misses;
+		this.bytesSaved = bytesSaved;
+		this.bytesDownloaded = bytesDownloaded;
+	}
+
+	/**
+	 * @return Loads where the server said the cached copy was current.
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return Loads that fell back on the cached copy because the server
+	 * couldn't be reached.
+	 */
+	public long getOfflineHits() {
+		return offlineHits;
+	}
+
+	/**
+	 * @return Loads that downloaded the keyring.
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return Bytes that hits didn't have to download.
+	 */
+	public long getBytesSaved() {
+		return bytesSaved;
+	}
+
+	/**
+	 * @return Bytes downloaded into the cache.
+	 */
+	public long getBytesDownloaded() {
+		return bytesDownloaded;
+	}
+
+	@Override
+	public String toString() {
+		return "hits=" + hits + " offlineHits=" + offlineHits + " misses=" +
+				misses + " bytesSaved=" + bytesSaved + " bytesDownloaded=" +
+				bytesDownloaded;
+	}
+}
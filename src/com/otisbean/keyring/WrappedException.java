@@ -0,0 +1,60 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *     
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * Carries the checked exceptions of crypto work out of a fork-join
+ * task's compute(), for the caller of invoke() to unwrap().
+ *
+ * @author Dirk Bergstrom
+ */
+class WrappedException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	WrappedException(GeneralSecurityException cause) {
+		super(cause);
+	}
+
+	WrappedException(KeyringException cause) {
+		super(cause);
+	}
+
+	/**
+	 * Rethrow the exception that e carries.  The pool may have wrapped our
+	 * wrapper when rethrowing it, so it's unwrapped as far as it goes.  Any
+	 * other RuntimeException is rethrown as is.
+	 */
+	static void unwrap(RuntimeException e)
+			throws GeneralSecurityException, KeyringException {
+		Throwable cause = e;
+		while (cause instanceof WrappedException) {
+			cause = cause.getCause();
+		}
+		if (cause instanceof GeneralSecurityException) {
+			throw (GeneralSecurityException) cause;
+		}
+		if (cause instanceof KeyringException) {
+			throw (KeyringException) cause;
+		}
+		throw e;
+	}
+}
@@ -29,7 +29,7 @@ public abstract class Converter {
 	/**
 	 * Factory method to select a converter subclass based on supplied type.
 	 * 
-	 * @param type One of keyring|csv|ewallet|codewallet.
+	 * @param type One of keyring|csv|ewallet|codewallet|segmented|binary|compressed|json.
 	 * @return A converter subclass.
 	 * @throws KeyringException On unknown type.
 	 */
@@ -42,6 +42,14 @@ public abstract class Converter {
 			return new EWalletExportConverter();
 		} else if ("codewallet".equalsIgnoreCase(type)) {
 			return new CodeWalletExportConverter();
+		} else if ("segmented".equalsIgnoreCase(type)) {
+			return new SegmentedConverter();
+		} else if ("binary".equalsIgnoreCase(type)) {
+			return new BinaryConverter();
+		} else if ("compressed".equalsIgnoreCase(type)) {
+			return new CompressedConverter();
+		} else if ("json".equalsIgnoreCase(type)) {
+			return new JsonConverter();
 		} else {
 			throw new KeyringException("Invalid type: \"" + type + "\".");
 		}
@@ -0,0 +1,69 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring.converters;
+
+import com.otisbean.keyring.Item;
+import com.otisbean.keyring.KeyringException;
+import com.otisbean.keyring.Ring;
+
+/**
+ * Rewrite a Keyring file (in any of the formats this code reads) in a
+ * different format.
+ *
+ * If the output password is the same as the input password, the Items'
+ * encrypted data is carried over as-is; otherwise every Item is decrypted
+ * and re-encrypted with the new password (and the prefs are dropped).
+ *
+ * @author Dirk Bergstrom
+ */
+public abstract class ReformatConverter extends Converter {
+
+	public ReformatConverter() {
+		needsInputFilePassword = true;
+	}
+
+	@Override
+	public Ring convert(String inFile, String inPassword, String outPassword)
+			throws Exception {
+		Ring in = new Ring();
+		if (! in.load(inFile, inPassword.toCharArray())) {
+			throw new KeyringException("Can't unlock " + inFile);
+		}
+		if (inPassword.equals(outPassword)) {
+			setFormat(in);
+			return in;
+		}
+
+		Ring ring = new Ring(outPassword);
+		setFormat(ring);
+		for (Item item : in.getItems()) {
+			ring.addItem(new Item(ring, item.getUsername(), item.getPass(),
+					item.getUrl(), item.getNotes(), item.getTitle(),
+					item.getCategory(), item.getCreated(), item.getViewed(),
+					item.getChanged()));
+		}
+		return ring;
+	}
+
+	/**
+	 * Set up ring to be saved in the output format.
+	 */
+	protected abstract void setFormat(Ring ring);
+}
@@ -0,0 +1,295 @@
+/*
+ * @author Dirk Bergstrom
+ *
+ * Keyring Desktop Client - Easy password management on your phone or desktop.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.otisbean.keyring.gui;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+
+import com.otisbean.keyring.Item;
+import com.otisbean.keyring.Ring;
+
+/**
+ * Saves the Editor's changes in the background, so the event thread never
+ * waits on the disk (or the network).
+ *
+ * Changes are noted as they're made, and saved together once no more have
+ * come in for a short quiet period; a burst of edits to one Item is saved
+ * once.  Saves run one at a time on a single daemon thread.  If the file
+ * has a journal, only the changed Items are appended to it, otherwise the
+ * whole Ring is saved.  A failed save keeps its changes pending, to go
+ * out with the next one (or the next flush()).
+ *
+ * A changed Item is copied when it's noted, on the event thread, and the
+ * copy is what gets appended to the journal, so an edit made while a save
+ * is under way can't end up half in it.  A full save, on the other hand,
+ * writes the live Ring: copying every Item on the event thread for each
+ * change would cost more than the save we're keeping off it.  Ring.save()
+ * is safe to run alongside edits, as journal compaction already does (the
+ * db is a concurrent map, the category maps are copy-on-write, and each
+ * Item is written under its own lock), and an edit that races a save has
+ * been noted, so the save after it writes the Ring as it ended up.
+ *
+ * Saves carry on while the Editor is locked, and are flushed on quit even
+ * after a wrong password at the unlock prompt: a wrong password never
+ * replaces the Ring's key (see Ring.validatePassword()), and Ring refuses
+ * to save with a key that isn't the keyring's.
+ *
+ * The Listener hears how saves went, on the event thread.
+ *
+ * @author Dirk Bergstrom
+ */
+class AutoSaver {
+
+	static final long DEFAULT_QUIET_PERIOD = 500;
+
+	/**
+	 * Told about saves, on the event thread.
+	 */
+	interface Listener {
+		void saving(String filename);
+		void saved(String filename);
+		void failed(String filename, Exception e);
+	}
+
+	private Listener listener;
+	private long quietPeriod;
+	private ScheduledExecutorService executor;
+
+	// Guarded by this
+	private Pending pending;
+	private ScheduledFuture<Void> scheduled;
+
+	AutoSaver(Listener listener, long quietPeriod) {
+		this.listener = listener;
+		this.quietPeriod = quietPeriod;
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Keyring autosave");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Note a new or changed Item, to be saved to filename.
+	 */
+	synchronized void itemSaved(Ring ring, String filename, Item item,
+			boolean compressCategories) {
+		Item copy = item.snapshot();
+		Pending p = pendingFor(ring, filename, compressCategories);
+		p.removals.remove(copy.getTitle());
+		p.puts.put(copy.getTitle(), copy);
+		schedule();
+	}
+
+	/**
+	 * Note the removal of an Item, to be saved to filename.
+	 */
+	synchronized void itemRemoved(Ring ring, String filename, String title,
+			boolean compressCategories) {
+		Pending p = pendingFor(ring, filename, compressCategories);
+		p.puts.remove(title);
+		p.removals.add(title);
+		schedule();
+	}
+
+	/**
+	 * @return true if there are changes that haven't been saved yet.
+	 */
+	synchronized boolean hasPending() {
+		return null != pending;
+	}
+
+	/**
+	 * Save pending changes now, waiting until they (and any save already
+	 * under way) are done.
+	 *
+	 * @throws Exception Why they couldn't be saved; they're still pending.
+	 */
+	void flush() throws Exception {
+		Future<Void> f;
+		synchronized (this) {
+			cancelScheduled();
+			f = executor.submit(writer(null));
+		}
+		try {
+			f.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			throw (Error) cause;
+		}
+	}
+
+	/**
+	 * Forget pending changes.
+	 */
+	synchronized void discard() {
+		cancelScheduled();
+		pending = null;
+	}
+
+	private Pending pendingFor(Ring ring, String filename,
+			boolean compressCategories) {
+		if (null != pending && ! pending.isFor(ring, filename)) {
+			// Don't hold up the old file's changes
+			cancelScheduled();
+			executor.submit(writer(pending));
+			pending = null;
+		}
+		if (null == pending) {
+			pending = new Pending(ring, filename);
+		}
+		pending.compressCategories = compressCategories;
+		return pending;
+	}
+
+	private void schedule() {
+		cancelScheduled();
+		scheduled = executor.schedule(writer(null), quietPeriod,
+				TimeUnit.MILLISECONDS);
+	}
+
+	private void cancelScheduled() {
+		if (null != scheduled) {
+			scheduled.cancel(false);
+			scheduled = null;
+		}
+	}
+
+	/**
+	 * @param p The changes to save, or null to take whatever is pending
+	 * when it runs.
+	 */
+	private Callable<Void> writer(final Pending p) {
+		return new Callable<Void>() {
+			public Void call() throws Exception {
+				Pending changes = p;
+				if (null == changes) {
+					synchronized (AutoSaver.this) {
+						changes = pending;
+						pending = null;
+					}
+				}
+				if (null != changes) {
+					write(changes);
+				}
+				return null;
+			}
+		};
+	}
+
+	private void write(Pending p) throws Exception {
+		final String filename = p.filename;
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				listener.saving(filename);
+			}
+		});
+		try {
+			Ring ring = p.ring;
+			if (ring.isJournaled(filename)) {
+				for (String title : p.removals) {
+					ring.saveRemoval(filename, title, p.compressCategories);
+				}
+				for (Item item : p.puts.values()) {
+					ring.saveItem(filename, item, p.compressCategories);
+				}
+			} else {
+				ring.save(filename, p.compressCategories);
+			}
+		} catch (final Exception e) {
+			requeue(p);
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					listener.failed(filename, e);
+				}
+			});
+			throw e;
+		}
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				listener.saved(filename);
+			}
+		});
+	}
+
+	/**
+	 * Put the changes from a failed save back, under any made since.
+	 */
+	private synchronized void requeue(Pending p) {
+		if (null == pending) {
+			pending = p;
+			return;
+		}
+		if (! pending.isFor(p.ring, p.filename)) {
+			// The Editor has moved on to another file
+			return;
+		}
+		for (String title : p.removals) {
+			if (! pending.puts.containsKey(title)) {
+				pending.removals.add(title);
+			}
+		}
+		for (Map.Entry<String, Item> e : p.puts.entrySet()) {
+			String title = e.getKey();
+			if (! pending.puts.containsKey(title) &&
+					! pending.removals.contains(title)) {
+				pending.puts.put(title, e.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Changes to one file, not yet saved.
+	 */
+	private static class Pending {
+		Ring ring;
+		String filename;
+		boolean compressCategories;
+		Map<String, Item> puts = new LinkedHashMap<String, Item>();
+		Set<String> removals = new LinkedHashSet<String>();
+
+		Pending(Ring ring, String filename) {
+			this.ring = ring;
+			this.filename = filename;
+		}
+
+		boolean isFor(Ring ring, String filename) {
+			return this.ring == ring && this.filename.equals(filename);
+		}
+	}
+}
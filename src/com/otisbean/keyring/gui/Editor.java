@@ -28,10 +28,14 @@ package com.otisbean.keyring.gui;
 import java.awt.Color;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.File;
 import java.util.Arrays;
-import java.util.Date;
+import java.util.List;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.Executor;
 
 import javax.swing.DefaultComboBoxModel;
 import javax.swing.JFileChooser;
@@ -39,15 +43,20 @@ import javax.swing.JFrame;
 import javax.swing.JMenuBar;
 import javax.swing.JOptionPane;
 import javax.swing.JSplitPane;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
-import javax.swing.event.TreeSelectionEvent;
-import javax.swing.event.TreeSelectionListener;
-import javax.swing.tree.DefaultMutableTreeNode;
+import javax.swing.event.ListSelectionEvent;
+import javax.swing.event.ListSelectionListener;
 import javax.swing.KeyStroke;
 
 import com.otisbean.keyring.Item;
 import com.otisbean.keyring.Ring;
+import com.otisbean.keyring.RingEvent;
+import com.otisbean.keyring.RingListener;
+import com.otisbean.keyring.SearchIndex;
 
 import java.awt.datatransfer.ClipboardOwner;
 import java.awt.datatransfer.Clipboard;
@@ -82,7 +91,6 @@ public class Editor extends Gui {
 
 	private Ring ring;
 	private JFrame frame;
-	private PasswordTimeoutWorker timeoutThread;
 
 	// flags
 	/**
@@ -100,6 +108,34 @@ public class Editor extends Gui {
 	 */
     private boolean locked = false;
 
+	/**
+	 * Saves item changes in the background
+	 */
+	private AutoSaver autoSaver;
+
+	/**
+	 * Runs searches in the background
+	 */
+	private ItemSearcher searcher;
+
+	/**
+	 * Locks everything again when the password times out
+	 */
+	private SessionManager session;
+
+	/**
+	 * Database being loaded in the background, or null
+	 */
+	private RingLoader loader;
+	private ProgressMonitor loadMonitor;
+	private Timer loadTimer;
+
+	/**
+	 * Share of the load progress bar for reading the file, out of 1000;
+	 * the rest is for filling the tree
+	 */
+	private static final int LOAD_READ_SHARE = 700;
+
 	// ----------------------------------------------------------------
 	// main -----------------------------------------------------------
 	// ----------------------------------------------------------------
@@ -111,10 +147,16 @@ public class Editor extends Gui {
 	public static void main(String[] argv) {
 		String dbFilename = null;
 
-		Editor myEditor = new Editor();
+		final Editor myEditor = new Editor();
 
 		myEditor.frame = new JFrame(FRAMETITLE);
-		myEditor.frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		// Quit the same way as the menu, so pending saves are finished
+		myEditor.frame.setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
+		myEditor.frame.addWindowListener(new WindowAdapter() {
+			public void windowClosing(WindowEvent e) {
+				myEditor.quit();
+			}
+		});
 
 		// check command line parameters
 		if(argv.length > 1) {
@@ -167,9 +209,61 @@ public class Editor extends Gui {
 	}
 	
 	public void setRing(Ring ring) {
+		if (null != this.ring) {
+			this.ring.removeRingListener(ringListener);
+		}
 		this.ring = ring;
+		if (null != ring) {
+			ring.addRingListener(ringListener, onEventThread);
+		}
+		if (null != searcher) {
+			searcher.setRing(ring);
+		}
+		if (null != session) {
+			session.setRing(ring);
+		}
 	}
 
+	/**
+	 * Runs things on the event thread, straight away if already there.
+	 */
+	private static final Executor onEventThread = new Executor() {
+		public void execute(Runnable r) {
+			if (SwingUtilities.isEventDispatchThread()) {
+				r.run();
+			} else {
+				SwingUtilities.invokeLater(r);
+			}
+		}
+	};
+
+	/**
+	 * Keeps the list view in step with changes to the Ring.
+	 */
+	private RingListener ringListener = new RingListener() {
+		public void ringChanged(Ring changed, List<RingEvent> events) {
+			if (changed != ring) {
+				return;
+			}
+			for (RingEvent e : events) {
+				switch (e.getType()) {
+				case RingEvent.ITEM_ADDED:
+					itemList.itemAdded(e.getItem());
+					break;
+				case RingEvent.ITEM_REMOVED:
+					itemList.itemRemoved(e.getTitle());
+					break;
+				case RingEvent.ITEM_RENAMED:
+					itemList.itemChanged(e.getItem(), e.getOldTitle());
+					break;
+				case RingEvent.ITEM_RECATEGORIZED:
+					itemList.itemChanged(e.getItem(), e.getTitle());
+					break;
+				}
+			}
+		}
+	};
+
 	// ----------------------------------------------------------------
 	// private --------------------------------------------------------
 	// ----------------------------------------------------------------
@@ -227,9 +321,139 @@ public class Editor extends Gui {
 	}
 
 
+	/**
+	 * Wait for item changes to be saved.  If they can't be, ask whether
+	 * to go on without them.
+	 *
+	 * @return False if the user would rather stay
+	 */
+	private boolean finishSaving() {
+		if (null == autoSaver) {
+			return true;
+		}
+		try {
+			autoSaver.flush();
+			return true;
+		}
+		catch(Exception e) {
+			int res = JOptionPane.showConfirmDialog(frame,
+				"Could not save changes to " + dbFilename + ": " +
+				e.getMessage() + "\nDiscard them?",
+				"Unsaved changes",
+				JOptionPane.YES_NO_OPTION,
+				JOptionPane.WARNING_MESSAGE);
+
+			if (res != JOptionPane.YES_OPTION)
+				return false;
+			autoSaver.discard();
+			return true;
+		}
+	}
+
+	/**
+	 * Exit the application, once item changes are saved.
+	 */
+	private void quit() {
+		if (finishSaving()) {
+			System.exit(0);
+		}
+	}
+
+	/**
+	 * Creates the AutoSaver, reporting in the saveStatus label.
+	 */
+	private void setupAutoSaver() {
+		autoSaver = new AutoSaver(new AutoSaver.Listener() {
+			public void saving(String filename) {
+				saveStatus.setForeground(null);
+				saveStatus.setText("Saving...");
+				saveStatus.setToolTipText(filename);
+			}
+
+			public void saved(String filename) {
+				if (autoSaver.hasPending()) {
+					// Another save is on its way
+					return;
+				}
+				saveStatus.setText("All changes saved");
+				if (properties.getInformAboutSave())
+					msgInformation("Entries saved to: " + filename);
+			}
+
+			public void failed(String filename, Exception e) {
+				saveStatus.setForeground(Color.RED);
+				saveStatus.setText("Save failed");
+				saveStatus.setToolTipText("Could not save to " + filename +
+					": " + e.getMessage());
+				if(DEBUG) {
+					e.printStackTrace(System.err);
+				}
+			}
+		}, AutoSaver.DEFAULT_QUIET_PERIOD);
+	}
+
+	/**
+	 * Creates the ItemSearcher, showing its results in the list view.
+	 */
+	private void setupSearcher() {
+		searcher = new ItemSearcher(new ItemSearcher.Listener() {
+			public void found(String query, Set<Item> matches, SearchIndex index) {
+				itemList.showMatches(query, matches, index);
+				showItem();
+			}
+
+			public void failed(Exception e) {
+				searchSecrets.setSelected(false);
+				msgError(e, "Search users and URLs", false);
+			}
+		}, ItemSearcher.DEFAULT_DELAY);
+		searcher.setRing(ring);
+	}
+
+	/**
+	 * Creates the SessionManager, locking the editor when the session
+	 * ends.
+	 */
+	private void setupSession() {
+		session = new SessionManager(new SessionManager.Listener() {
+			public void expired() {
+				if (! locked && null != ring) {
+					lockEditor();
+				}
+			}
+
+			public void failed(Exception e) {
+				msgError(e, "Lock entries", false);
+			}
+		});
+		session.setRing(ring);
+	}
+
+	/**
+	 * (Re)start the session, to run for the password timeout.
+	 */
+	private void startSession() {
+		session.start(properties.getPasswordTimeout() * 1000L);
+	}
+
+	/**
+	 * Index usernames and urls for searching, if wanted and unlocked, or
+	 * wipe them from the index.
+	 */
+	private void updateSearchSecrets() {
+		if (null == searcher) {
+			return;
+		}
+		if (searchSecrets.isSelected() && ! locked && null != ring) {
+			searcher.indexSecrets();
+		} else {
+			searcher.wipeSecrets();
+		}
+	}
+
 	// setupGui -------------------------------------------------------
 	/**
-	 * Loads menubar, adds ActionListeners, starts PasswordTimeout Thread.
+	 * Loads menubar, adds ActionListeners, sets up the password timeout.
 	 *
 	 * @param dbFilename Keyring database or null
 	 */
@@ -277,7 +501,36 @@ public class Editor extends Gui {
 
 		// itemListPane Listener
 		categoryList.addActionListener(new CategorySelectionListener(this));
-		dynTree.getTree().addTreeSelectionListener(new treeSelectionListener(this));
+		int sortOrder = properties.getSortOrder();
+		if (sortOrder >= 0 && sortOrder < SortKey.ORDERS) {
+			sortList.setSelectedIndex(sortOrder);
+			itemList.setSortOrder(sortOrder);
+		}
+		sortList.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				int order = sortList.getSelectedIndex();
+				itemList.setSortOrder(order);
+				properties.setSortOrder(order);
+			}
+		});
+		searchField.getDocument().addDocumentListener(new DocumentListener() {
+			public void insertUpdate(DocumentEvent e) {
+				searcher.search(searchField.getText());
+			}
+
+			public void removeUpdate(DocumentEvent e) {
+				searcher.search(searchField.getText());
+			}
+
+			public void changedUpdate(DocumentEvent e) {
+			}
+		});
+		searchSecrets.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				updateSearchSecrets();
+			}
+		});
+		itemList.getList().addListSelectionListener(new listSelectionListener(this));
 
 		// buttonPane Listener
 		newItem.addActionListener(new newItemListener(this));
@@ -291,9 +544,9 @@ public class Editor extends Gui {
 		frame.setVisible(true);
 		toggleButtonsAndFields(false, false);
 
-		// Passwort Timeout
-		timeoutThread = new PasswordTimeoutWorker(this);
-		new Thread(timeoutThread).start();
+		setupAutoSaver();
+		setupSearcher();
+		setupSession();
 
 		// load Database
 		loadDatabase(dbFilename);
@@ -306,38 +559,133 @@ public class Editor extends Gui {
 	 * @param dbFilename Keyring database or null
 	 */
 	private void loadDatabase(String filename) throws Exception {
-		ring = null;
+		setRing(null);
+		saveStatus.setForeground(null);
+		saveStatus.setText(" ");
+		saveStatus.setToolTipText(null);
 		if (null != filename) {
-			ring = new Ring();
-			try {
-				ring.load(filename);
-
-				dbFilename = filename;
-				/* We only set previousDirectory if dbFilename has a directory,
-				 * which is not the case for URLs. */
-				File tmpPreviousDirectory = new File(dbFilename).getParentFile();
-				if (null != tmpPreviousDirectory) {
-					previousDirectory = tmpPreviousDirectory;
-				}
-			}
-			catch(Exception ex) {
-				msgError(ex, "Open keyring database", false);
-
-				try {
-					// FIXME This is wrong, prompt for a different file?
-					loadDatabase(null);
-					return;
-				}
-				catch(Exception ignore) {};
+			if (! filename.startsWith("http") && ! new File(filename).isFile()) {
+				msgInformation("No such file: " + filename);
+				loadDatabase(null);
+				return;
 			}
 
-			// Password dialog
-			if(checkPassword() == false) {
+			// Password dialog; the password is checked as the file is read
+			char[] password = getPasswordFromDialog();
+			if (null == password) {
 				loadDatabase(null);
 				return;
 			}
+
+			Ring newRing = new Ring();
+			newRing.setWriteCheckData(properties.getFastPasswordCheck());
+			newRing.setCompression(properties.getCompressDatabase());
+			initEditorState(false);
+			startLoading(new RingLoader(newRing, filename, password, loadListener));
+			return;
+		}
+		initEditorState(false);
+	}
+
+	/**
+	 * Show the items of the database being loaded as they arrive, and set
+	 * up the editor once it's all there.
+	 */
+	private RingLoader.Listener loadListener = new RingLoader.Listener() {
+		public void itemsLoaded(RingLoader l, List<Item> items) {
+			itemList.addItems(items);
+		}
+
+		public void loaded(RingLoader l, Ring loadedRing) {
+			finishLoading();
+			setRing(loadedRing);
+			dbFilename = l.getFilename();
+			/* We only set previousDirectory if dbFilename has a directory,
+			 * which is not the case for URLs. */
+			File tmpPreviousDirectory = new File(dbFilename).getParentFile();
+			if (null != tmpPreviousDirectory) {
+				previousDirectory = tmpPreviousDirectory;
+			}
+			startSession();
+			initEditorState(true);
+		}
+
+		public void badPassword(RingLoader l) {
+			finishLoading();
+			msgInformation("Invalid Password");
+			session.stop();
+			initEditorState(false);
+		}
+
+		public void failed(RingLoader l, Exception e) {
+			finishLoading();
+			msgError(e, "Open keyring database", false);
+			initEditorState(false);
+		}
+	};
+
+	/**
+	 * Start a background load, with a progress dialog to watch (and
+	 * cancel) it.
+	 */
+	private void startLoading(RingLoader newLoader) {
+		loader = newLoader;
+		// Nothing else gets opened meanwhile
+		openMenuItem.setEnabled(false);
+		openURLMenuItem.setEnabled(false);
+		importMenuItem.setEnabled(false);
+		itemList.start();
+
+		loadMonitor = new ProgressMonitor(frame,
+			"Loading " + loader.getFilename(),
+			"Reading the database...", 0, 1000);
+		loadTimer = new Timer(200, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				updateLoadProgress();
+			}
+		});
+		loadTimer.start();
+		loader.start();
+	}
+
+	/**
+	 * Show how the load is going, and stop it if the user cancelled.
+	 */
+	private void updateLoadProgress() {
+		if (null == loader) {
+			return;
 		}
-		initEditorState(null != ring);
+		if (loadMonitor.isCanceled()) {
+			loader.cancel();
+			finishLoading();
+			initEditorState(false);
+			return;
+		}
+		int progress;
+		String note;
+		int itemsTotal = loader.getItemsTotal();
+		if (itemsTotal < 0) {
+			long bytesTotal = loader.getBytesTotal();
+			long bytesRead = loader.getBytesRead();
+			progress = bytesTotal > 0 ?
+				(int) (LOAD_READ_SHARE * bytesRead / bytesTotal) : 0;
+			note = (bytesRead / 1024) + " KB read, " +
+				loader.getItemsParsed() + " items";
+		} else {
+			int itemsDone = loader.getItemsDone();
+			progress = LOAD_READ_SHARE + (1000 - LOAD_READ_SHARE) *
+				itemsDone / Math.max(1, itemsTotal);
+			note = "Showing " + itemsDone + " of " + itemsTotal + " items";
+		}
+		loadMonitor.setNote(note);
+		// The monitor closes itself at the maximum, and never opens at 0
+		loadMonitor.setProgress(Math.min(999, Math.max(1, progress)));
+	}
+
+	private void finishLoading() {
+		loadTimer.stop();
+		loadMonitor.close();
+		loader = null;
 	}
 
 	/**
@@ -347,12 +695,12 @@ public class Editor extends Gui {
 		String title;
 		if (dbLoaded) {
 			title = FRAMETITLE + ": " + null == dbFilename ? "UNSAVED" : dbFilename;
+			// The tree has been filled by now
 			setupCategories(ring.getCategories());
-			dynTree.populate();
 		} else {
 			title = FRAMETITLE;
 			setupCategories(null);
-			dynTree.clear();
+			itemList.clear();
 		}
 		frame.setTitle(title);
 		// Menu bar items
@@ -399,6 +747,7 @@ public class Editor extends Gui {
 		btnLock.setText(locked ? "Unlock" : "Lock");
 		btnLock.setEnabled(enabled);
 		this.locked = locked;
+		updateSearchSecrets();
 
 		saveItem.setBackground(null);
 	}
@@ -449,17 +798,17 @@ public class Editor extends Gui {
 		boolean retval;
 		try {
 			if (ring.validatePassword(password)) {
-				timeoutThread.restartTimeout();
+				startSession();
 				retval = true;
 			} else {
 				msgInformation("Invalid Password");
-				timeoutThread.setTimeout(); // timed out
+				session.stop();
 				retval = false;
 			}
 		}
 		catch(Exception e) {
 			msgError(e, "Error processing password", false);
-			timeoutThread.setTimeout(); // timed out
+			session.stop();
 			retval = false;
 		}
 		// Erase password from memory
@@ -485,35 +834,28 @@ public class Editor extends Gui {
 	 * Show item and check password timeout.
 	 */
 	private void showItem() {
-		DefaultMutableTreeNode node = dynTree.getLastNode();
+		Item item = itemList.getSelectedItem();
 
 		if (locked == true || null == ring) {
 			return;
 		}
 
 		try {
-			Date ende = timeoutThread.getEndDate();
-			if (null == ende) {
+			if (! session.isActive()) {
 				// timed out
-				clearItem();
-				setBtnLock(true, true);
-				toggleButtonsAndFields(false, false);
+				lockEditor();
 				return;
 			} else {
-				timeoutThread.restartTimeout();
+				startSession();
 			}
 
-			if(node == null || !(node.isLeaf()) || node.isRoot()) {
+			if(item == null) {
 				// no item
 				clearItem();
 				toggleButtonsAndFields(false, true);
 				return;
 			}
 
-			Object nodeInfo = node.getUserObject();
-
-			Item item = (Item) nodeInfo;
-
 			// set text fields according to item
 			currentCategory.setSelectedItem(item.getCategory());
 			currentTitle.setText(item.getTitle());
@@ -541,6 +883,15 @@ public class Editor extends Gui {
 		}
 	}
 
+	/**
+	 * Show the editor locked, with the item text fields cleared.
+	 */
+	private void lockEditor() {
+		setBtnLock(true, true);
+		toggleButtonsAndFields(false, false);
+		clearItem();
+	}
+
 	/**
 	 * Clear item text fields.
 	 */
@@ -693,6 +1044,8 @@ public class Editor extends Gui {
 		 * @param e the ActionEvent to process
 		 */
 		public void actionPerformed(ActionEvent e) {
+			if (! editor.finishSaving())
+				return;
 			try {
 				editor.loadDatabase(null);
 			}
@@ -721,7 +1074,7 @@ public class Editor extends Gui {
 		 * @param e the ActionEvent to process
 		 */
 		public void actionPerformed(ActionEvent e) {
-			System.exit(0);
+			editor.quit();
 		}
 	}
 
@@ -982,6 +1335,7 @@ public class Editor extends Gui {
 			if(importDialog.getCancelled() == false) {
 				msgInformation("Database imported.");
 				initEditorState(true);
+				itemList.populate();
 			}
 		}
 	}
@@ -1013,6 +1367,10 @@ public class Editor extends Gui {
 
 			prefDialog.pack();
 			prefDialog.setVisible(true);
+			if (! prefDialog.getCancelled() && null != ring) {
+				ring.setWriteCheckData(properties.getFastPasswordCheck());
+				ring.setCompression(properties.getCompressDatabase());
+			}
 		}
 	}
 
@@ -1048,7 +1406,7 @@ public class Editor extends Gui {
 				return;
 			}
 			try {
-				ring = new Ring();
+				setRing(new Ring());
 				dbFilename = "";
 				msgInformation("Empty database generated.");
 			}
@@ -1166,24 +1524,18 @@ public class Editor extends Gui {
 							((Integer) buffer[0]).intValue()
 					);
 
-					// register new item to vector entries
+					// register new item to vector entries (and the list view)
 					editor.ring.addItem(myItem);
 
-					// update tree view
-					editor.dynTree.populate();
-
 					// the categories might have changed
 					setupCategories(ring.getCategories());
 
-					// save database
-					editor.ring.save(dbFilename,
+					// save database, in the background
+					editor.autoSaver.itemSaved(editor.ring, dbFilename, myItem,
 						properties.getDeleteEmptyCategories());
 
 					// show new item
-					editor.dynTree.show(myItem);
-
-					if (properties.getInformAboutSave())
-						msgInformation("Entries saved to: " + editor.dbFilename);
+					editor.itemList.select(myItem);
 				}
 			}
 			catch(Exception ex) {
@@ -1214,40 +1566,46 @@ public class Editor extends Gui {
 		 * @param e the ActionEvent to process
 		 */
 		public void actionPerformed(ActionEvent e) {
-			DefaultMutableTreeNode node = editor.dynTree.getLastNode();
+			// last selected item
+			Item myItem = editor.itemList.getSelectedItem();
 
 			try {
-				// last selected tree node
-				if(node != null) {
-					// get updated item
-					Item myItem = editor.dynTree.getItem(node);
-
-					// save changes
-					myItem.setTitle(editor.currentTitle.getText());
-					myItem.setUsername(editor.currentUser.getText());
-					myItem.setPass(String.valueOf(editor.currentPassword.getPassword()));
-					myItem.setUrl(editor.currentUrl.getText());
-					myItem.setNotes(editor.currentNotes.getText());
-
-					String categoryName = (String)editor.currentCategory.getSelectedItem();
-					int id = editor.getRing().categoryIdForName(categoryName);
-					myItem.setCategoryId(id);
+				if(myItem != null) {
 
-					setupCategories(ring.getCategories());
+					// save changes, re-filing the item if the title changed
+					String oldTitle = myItem.getTitle();
+					String newTitle = editor.currentTitle.getText();
+					boolean renamed = ! newTitle.equals(oldTitle);
+					editor.ring.beginChanges();
+					try {
+						myItem.setTitle(newTitle);
+						myItem.setUsername(editor.currentUser.getText());
+						myItem.setPass(String.valueOf(editor.currentPassword.getPassword()));
+						myItem.setUrl(editor.currentUrl.getText());
+						myItem.setNotes(editor.currentNotes.getText());
+
+						String categoryName = (String)editor.currentCategory.getSelectedItem();
+						int id = editor.getRing().categoryIdForName(categoryName);
+						myItem.setCategoryId(id);
+					}
+					finally {
+						// the list view follows the changes
+						editor.ring.endChanges();
+					}
 
-					// update tree view
-					editor.dynTree.populate();
+					setupCategories(ring.getCategories());
 
-					// save database
-					editor.ring.save(dbFilename,
+					// save database, in the background
+					if (renamed) {
+						editor.autoSaver.itemRemoved(editor.ring, dbFilename,
+							oldTitle, properties.getDeleteEmptyCategories());
+					}
+					editor.autoSaver.itemSaved(editor.ring, dbFilename, myItem,
 						properties.getDeleteEmptyCategories());
 					
 					// Redisplay the item
-					editor.dynTree.show(myItem);
+					editor.itemList.select(myItem);
 					editor.showItem();
-
-					if (properties.getInformAboutSave())
-						msgInformation("Entries saved to: " + editor.dbFilename);
 				}
 			}
 			catch(Exception ex) {
@@ -1278,10 +1636,9 @@ public class Editor extends Gui {
 		 * @param e the ActionEvent to process
 		 */
 		public void actionPerformed(ActionEvent e) {
-			DefaultMutableTreeNode node = editor.dynTree.getLastNode();
+			Item myItem = editor.itemList.getSelectedItem();
 
-			if(node != null) {
-				Item myItem = editor.dynTree.getItem(node);
+			if(myItem != null) {
 
 				if (properties.getConfirmDeletion()) {
 					int res = JOptionPane.showConfirmDialog(editor.frame,
@@ -1293,23 +1650,12 @@ public class Editor extends Gui {
 						return;
 				}
 
-				// delete item
+				// delete item (and its entry in the list view)
 				editor.ring.removeItem(myItem);
 
-				// update tree view
-				editor.dynTree.populate();
-
-				// save changes
-				try {
-					editor.ring.save(dbFilename,
-						properties.getDeleteEmptyCategories());
-
-					if (properties.getInformAboutSave())
-						msgInformation("Item " + myItem.getTitle() + " deleted. Database " + editor.dbFilename + " updated.");
-				}
-				catch(Exception ex) {
-					msgError(ex, "delItemListener", false);
-				}
+				// save changes, in the background
+				editor.autoSaver.itemRemoved(editor.ring, dbFilename,
+					myItem.getTitle(), properties.getDeleteEmptyCategories());
 			}
 		}
 	}
@@ -1346,11 +1692,11 @@ public class Editor extends Gui {
 		}
 	}
 
-	// tree
+	// list
 	/**
-	 * TreeSelectionListener: show selected item.
+	 * ListSelectionListener: show selected item.
 	 */
-	public class treeSelectionListener implements TreeSelectionListener {
+	public class listSelectionListener implements ListSelectionListener {
 		protected Editor editor;
 
 		/**
@@ -1358,7 +1704,7 @@ public class Editor extends Gui {
 		 *
 		 * @param editor Reference to class Editor
 		 */
-		protected treeSelectionListener(Editor editor) {
+		protected listSelectionListener(Editor editor) {
 			this.editor = editor;
 		}
 
@@ -1367,13 +1713,14 @@ public class Editor extends Gui {
 		 *
 		 * @param e the ActionEvent to process
 		 */
-		public void valueChanged(TreeSelectionEvent e) {
-			editor.showItem();
+		public void valueChanged(ListSelectionEvent e) {
+			if (! e.getValueIsAdjusting())
+				editor.showItem();
 		}
 	}
 
 	/**
-	 * CategorySelectionListener: filter tree view according to selected category.
+	 * CategorySelectionListener: filter list view according to selected category.
 	 */
 	public class CategorySelectionListener implements ActionListener {
 		protected Editor editor;
@@ -1388,7 +1735,7 @@ public class Editor extends Gui {
 		}
 
 		/**
-		 * This method filters the tree view according to selected category.
+		 * This method filters the list view according to selected category.
 		 *
 		 * @param e the ActionEvent to process
 		 */
@@ -1399,7 +1746,7 @@ public class Editor extends Gui {
 
 			if (getRing() == null)
 				return;
-			editor.dynTree.setCategoryFilter(getRing().categoryIdForName(value));
+			editor.itemList.setCategoryFilter(getRing().categoryIdForName(value));
 			editor.showItem();
 		}
 	}
@@ -1507,9 +1854,8 @@ public class Editor extends Gui {
 		 */
 		public void actionPerformed(ActionEvent e) {
 			if(editor.locked == false) {
-				editor.setBtnLock(true, true);
-				editor.toggleButtonsAndFields(false, false);
-				editor.clearItem();
+				editor.session.expire();
+				editor.lockEditor();
 			}
 			else {
 				if(editor.checkPassword() == true) {
@@ -36,7 +36,7 @@ import java.awt.*;
 import java.util.prefs.Preferences;
 
 /**
- * This class setup the gui and the password timeout functions.
+ * This class setup the gui.
  */
 public class Gui {
 	// ----------------------------------------------------------------
@@ -68,7 +68,10 @@ public class Gui {
 
 	// itemListPane
 	protected JComboBox categoryList;
-	protected DynamicTree dynTree;
+	protected JComboBox sortList;
+	protected JTextField searchField;
+	protected JCheckBox searchSecrets;
+	protected ItemList itemList;
 
 	// itemPane
 	protected JComboBox currentCategory;
@@ -85,85 +88,7 @@ public class Gui {
 	protected JButton delItem;
     protected JButton btnLock;
 	protected JCheckBox currentPasswordShow;
-
-	// Password Timeout -----------------------------------------------
-	/**
-	 * This class handles the password timeout.
-	 * It is started by class Editor as a thread.
-	 */
-	protected class PasswordTimeoutWorker implements Runnable {
-		/**
-		 * Time when password timeout started plus user defined password timeout
-		 */
-		private Date endDate = null;
-
-		private Object sleepGate = new Object();
-
-		/**
-		 * Default constructor.
-		 *
-		 * @param editor Reference to class Editor
-		 */
-		public PasswordTimeoutWorker(Editor editor) {
-		}
-
-		/**
-		 * Sets the variable endDate to new timeout.
-		 */
-		public synchronized void restartTimeout() {
-			endDate = new Date(System.currentTimeMillis() +
-				properties.getPasswordTimeout() * 1000);
-
-			synchronized (sleepGate) {
-				sleepGate.notifyAll();
-			}
-		}
-
-		/**
-		 * Sets the variable endDate to null and forces a timeout.
-		 */
-		public synchronized void setTimeout() {
-			endDate = null;
-		}
-
-		/**
-		 * Returns variable endDate.
-		 */
-		public synchronized Date getEndDate() {
-			return endDate;
-		}
-
-		/**
-		 * Timeout thread.
-		 */
-		public void run() {
-			while(true) {
-				if(endDate != null) {
-					long difference = endDate.getTime() - System.currentTimeMillis();
-
-					// timed out
-					if(difference <= 0) {
-						endDate = null;
-					}
-
-					try {
-						Thread.sleep(1000); // sleep 1 s
-					}
-					catch (InterruptedException ignore) {};
-				}
-				else { // timed out
-					try {
-						synchronized (sleepGate) {
-							sleepGate.wait();
-						}
-					}
-					catch (Exception e) {
-						e.printStackTrace();
-					}
-				}
-			}
-		}
-    }
+	protected JLabel saveStatus;
 
 	// ----------------------------------------------------------------
 	// protected ------------------------------------------------------
@@ -250,7 +175,11 @@ public class Gui {
 
 		// Gui Elements
 		categoryList = new JComboBox();
-		dynTree = new DynamicTree(editor);
+		sortList = new JComboBox(SortKey.NAMES);
+		searchField = new JTextField();
+		searchField.setToolTipText("Search the titles");
+		searchSecrets = new JCheckBox("Search users and URLs too", false);
+		itemList = new ItemList(editor);
 
 		currentCategory = new JComboBox();
 		currentTitle = new JTextField();
@@ -264,6 +193,7 @@ public class Gui {
 		newItem = new JButton("New Item");
 		saveItem = new JButton("Save");
 		delItem = new JButton("Delete");
+		saveStatus = new JLabel(" ");
 
 		// Panes
 		JPanel itemListPane = new JPanel();
@@ -295,12 +225,24 @@ public class Gui {
 		itemListPane.add(categoryList);
 
 		c.gridy = 1;
+		gridbag1.setConstraints(sortList, c);
+		itemListPane.add(sortList);
+
+		c.gridy = 2;
+		gridbag1.setConstraints(searchField, c);
+		itemListPane.add(searchField);
+
+		c.gridy = 3;
+		gridbag1.setConstraints(searchSecrets, c);
+		itemListPane.add(searchSecrets);
+
+		c.gridy = 4;
 		c.fill = GridBagConstraints.BOTH;
 		c.weightx = 1.0;
 		c.weighty = 1.0;
 
-		gridbag1.setConstraints(dynTree, c);
-		itemListPane.add(dynTree);
+		gridbag1.setConstraints(itemList, c);
+		itemListPane.add(itemList);
 
 		// Item-Pane -------------------------------------------------
 		GridBagLayout gridbag2 = new GridBagLayout();
@@ -457,6 +399,9 @@ public class Gui {
 		buttonPane.add(btnLock);
 		buttonPane.add(Box.createRigidArea(new Dimension(5,0)));
 		buttonPane.add(currentPasswordShow);
+		buttonPane.add(Box.createHorizontalGlue());
+		buttonPane.add(saveStatus);
+		buttonPane.add(Box.createRigidArea(new Dimension(5,0)));
 
 		// JSplitPane -------------------------------------------------
 		JSplitPane top = new JSplitPane(JSplitPane.VERTICAL_SPLIT, itemPane, buttonPane);
@@ -0,0 +1,264 @@
+/*
+ * @author Dirk Bergstrom
+ *
+ * Keyring Desktop Client - Easy password management on your phone or desktop.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * Adapted from KeyringEditor v1.1
+ * Copyright 2006 Markus Griessnig
+ * http://www.ict.tuwien.ac.at/keyring/
+ * Markus graciously gave his assent to release the modified code under the GPLv3.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.otisbean.keyring.gui;
+
+import java.awt.GridLayout;
+import java.util.List;
+import java.util.Set;
+
+import javax.swing.JList;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.ListSelectionModel;
+
+import org.json.simple.JSONObject;
+
+import com.otisbean.keyring.Item;
+import com.otisbean.keyring.Ring;
+import com.otisbean.keyring.SearchIndex;
+
+/**
+ * This class shows the entries of the Ring as a list, sorted by title or
+ * one of the other orders in SortKey.
+ *
+ * The list is backed by a RingListModel, and has a fixed cell height, so
+ * only the rows on screen are ever measured or drawn however big the Ring
+ * is.  Adding, removing and changing an entry updates just its row.
+ *
+ * While a search is shown, entries that are added or changed are checked
+ * against it, so the list stays true to the search.
+ */
+public class ItemList extends JPanel {
+	private static final long serialVersionUID = 1L;
+
+	// ----------------------------------------------------------------
+	// variables
+	// ----------------------------------------------------------------
+
+	private RingListModel model;
+
+	/**
+	 * A control that displays the entries
+	 */
+	private JList<Item> list;
+
+	/**
+	 * The search being shown, and the index it was run on, or null
+	 */
+	private String query;
+	private SearchIndex searchIndex;
+
+	/**
+	 * Reference to the class Editor
+	 */
+	private Editor editor;
+
+	// ----------------------------------------------------------------
+	// constructor
+	// ----------------------------------------------------------------
+	/**
+	 * Default constructor generates list view.
+	 *
+	 * @param editor Reference to the class Editor
+	 */
+	public ItemList(Editor editor) {
+		super(new GridLayout(1,0));
+
+		this.editor = editor;
+
+		model = new RingListModel();
+		list = new JList<Item>(model);
+		list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		// Fixes the row height, so rows off screen are never measured
+		Item prototype = new Item(null, new JSONObject());
+		prototype.setTitle("Wwwwwwwwwwwwwwwwwwww");
+		list.setPrototypeCellValue(prototype);
+
+		JScrollPane scrollPane = new JScrollPane(list);
+		add(scrollPane);
+	}
+
+	// ----------------------------------------------------------------
+	// public ---------------------------------------------------------
+	// ----------------------------------------------------------------
+
+	/**
+	 * This method selects the entry with the title of the given item, and
+	 * scrolls to it.
+	 *
+	 * @param item Item object
+	 */
+	public void select(Item item) {
+		int row = model.indexOf(item.getTitle());
+		if (row >= 0) {
+			list.setSelectedIndex(row);
+			list.ensureIndexIsVisible(row);
+		}
+	}
+
+	/**
+	 * This method returns variable list.
+	 *
+	 * @return variable list
+	 */
+	public JList<Item> getList() {
+		return list;
+	}
+
+	/**
+	 * This method sets the category-filter and refreshes the list view,
+	 * if the filter changed.
+	 *
+	 * @return True if category changed otherwise false
+	 */
+	public boolean setCategoryFilter(int filterCategory) {
+		return model.setCategoryFilter(filterCategory);
+	}
+
+	/**
+	 * This method sets the category-filter to show all.
+	 */
+	public void clearFilter() {
+		model.setCategoryFilter(-1);
+	}
+
+	/**
+	 * This method shows only the entries matching a search (keeping the
+	 * selection, if it's among them), or all of them.
+	 *
+	 * @param query The search, or null to show all
+	 * @param matches Its results (null to show all)
+	 * @param index The index it was run on
+	 */
+	public void showMatches(String query, Set<Item> matches, SearchIndex index) {
+		if (null == matches) {
+			query = null;
+			index = null;
+		}
+		this.query = query;
+		this.searchIndex = index;
+		Item selected = getSelectedItem();
+		model.setMatches(matches);
+		if (null != selected) {
+			select(selected);
+		}
+	}
+
+	/**
+	 * This method shows the entries in another order, keeping the
+	 * selection.
+	 *
+	 * @param order One of SortKey's orders
+	 */
+	public void setSortOrder(int order) {
+		Item selected = getSelectedItem();
+		if (model.setSortOrder(order) && null != selected) {
+			select(selected);
+		}
+	}
+
+	/**
+	 * This method returns the selected entry.
+	 *
+	 * @return Item, or null if nothing is selected
+	 */
+	public Item getSelectedItem() {
+		int row = list.getSelectedIndex();
+		return row < 0 ? null : model.getItem(row);
+	}
+
+	/**
+	 * This method removes all entries.
+	 */
+	public void clear() {
+		model.clear();
+		showMatches(null, null, null);
+	}
+
+	/**
+	 * This method empties the list and clears the category-filter, ready
+	 * for addItems().
+	 */
+	public void start() {
+		showMatches(null, null, null);
+		model.setCategoryFilter(-1);
+		model.clear();
+	}
+
+	/**
+	 * This method adds entries, which is quickest if they're sorted by
+	 * title (as RingLoader hands them over) and go after those in the list.
+	 *
+	 * @param items Entries to add
+	 */
+	public void addItems(List<Item> items) {
+		model.addAll(items);
+	}
+
+	/**
+	 * This method shows a new entry.
+	 */
+	public void itemAdded(Item item) {
+		checkMatch(item);
+		model.add(item);
+	}
+
+	/**
+	 * This method drops a removed entry.
+	 */
+	public void itemRemoved(String title) {
+		model.remove(title);
+	}
+
+	/**
+	 * This method moves or redraws an entry whose title or category may
+	 * have changed.
+	 *
+	 * @param oldTitle The title it was shown under
+	 */
+	public void itemChanged(Item item, String oldTitle) {
+		checkMatch(item);
+		model.changed(item, oldTitle);
+	}
+
+	/**
+	 * This method fills the list with all the entries of the Ring.
+	 */
+	public void populate() {
+		Ring myRing = editor.getRing();
+		if(myRing == null) {
+			model.clear();
+			return;
+		}
+		model.setItems(myRing.getItems());
+	}
+
+	private void checkMatch(Item item) {
+		if (null != query) {
+			model.setMatch(item, searchIndex.matches(item, query));
+		}
+	}
+}
@@ -0,0 +1,251 @@
+/*
+ * @author Dirk Bergstrom
+ *
+ * Keyring Desktop Client - Easy password management on your phone or desktop.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.otisbean.keyring.gui;
+
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+
+import com.otisbean.keyring.Item;
+import com.otisbean.keyring.Ring;
+import com.otisbean.keyring.SearchIndex;
+
+/**
+ * Runs the Editor's searches in the background, against a SearchIndex of
+ * the current Ring.
+ *
+ * A search is only run once the query has stopped changing for a short
+ * delay, so typing doesn't start a search per keystroke, and only the
+ * results of the latest one are handed over.  The index is built, and the
+ * usernames and urls added to it, on the same single daemon thread, the
+ * latter a chunk at a time so searches can run in between.
+ *
+ * The Listener gets the results on the event thread.
+ *
+ * @author Dirk Bergstrom
+ */
+class ItemSearcher {
+
+	static final long DEFAULT_DELAY = 150;
+
+	/**
+	 * Items whose secrets are indexed between searches
+	 */
+	static final int SECRETS_CHUNK = 200;
+
+	/**
+	 * Told the results of a search, on the event thread.
+	 */
+	interface Listener {
+		/**
+		 * @param matches The matching Items, or null if query is empty.
+		 */
+		void found(String query, Set<Item> matches, SearchIndex index);
+
+		void failed(Exception e);
+	}
+
+	private Listener listener;
+	private long delay;
+	private ScheduledExecutorService executor;
+
+	// Guarded by this
+	private SearchIndex index;
+	private String query = "";
+	/**
+	 * Bumped by every search(), so stale results can be dropped
+	 */
+	private int generation;
+	private ScheduledFuture<?> scheduled;
+	private boolean secretsWanted;
+
+	ItemSearcher(Listener listener, long delay) {
+		this.listener = listener;
+		this.delay = delay;
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Keyring search");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Search ring from now on (or nothing, if it's null), once its index
+	 * is built.  The current query is run again against it.
+	 */
+	synchronized void setRing(final Ring ring) {
+		if (null != index) {
+			index.close();
+			index = null;
+		}
+		secretsWanted = false;
+		cancelScheduled();
+		final int gen = ++generation;
+		if (null == ring) {
+			return;
+		}
+		executor.execute(new Runnable() {
+			public void run() {
+				SearchIndex built = new SearchIndex(ring);
+				synchronized (ItemSearcher.this) {
+					if (gen != generation) {
+						// Moved on meanwhile
+						built.close();
+						return;
+					}
+					index = built;
+					if (secretsWanted) {
+						executor.execute(secretsIndexer(index));
+					}
+					if (query.length() > 0) {
+						schedule(0);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Search for query after the delay, unless another search() comes
+	 * first.  An empty query is answered straight away.
+	 */
+	void search(String newQuery) {
+		SearchIndex idx;
+		synchronized (this) {
+			query = null == newQuery ? "" : newQuery;
+			if (query.length() > 0) {
+				schedule(delay);
+				return;
+			}
+			generation++;
+			cancelScheduled();
+			idx = index;
+		}
+		listener.found("", null, idx);
+	}
+
+	/**
+	 * Add usernames and urls to the index, in the background (once it's
+	 * built).
+	 */
+	synchronized void indexSecrets() {
+		if (secretsWanted) {
+			return;
+		}
+		secretsWanted = true;
+		if (null != index) {
+			executor.execute(secretsIndexer(index));
+		}
+	}
+
+	/**
+	 * Drop usernames and urls from the index (and stop adding them).
+	 */
+	synchronized void wipeSecrets() {
+		secretsWanted = false;
+		if (null != index && index.hasSecrets()) {
+			index.wipeSecrets();
+			// Drop any matches on them
+			if (query.length() > 0) {
+				schedule(0);
+			}
+		}
+	}
+
+	private void schedule(long wait) {
+		cancelScheduled();
+		final int gen = ++generation;
+		final String q = query;
+		final SearchIndex idx = index;
+		if (null == idx) {
+			// Run once the index is built
+			return;
+		}
+		scheduled = executor.schedule(new Runnable() {
+			public void run() {
+				final Set<Item> matches = idx.search(q);
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						if (isLatest(gen)) {
+							listener.found(q, matches, idx);
+						}
+					}
+				});
+			}
+		}, wait, TimeUnit.MILLISECONDS);
+	}
+
+	private void cancelScheduled() {
+		if (null != scheduled) {
+			scheduled.cancel(false);
+			scheduled = null;
+		}
+	}
+
+	private synchronized boolean isLatest(int gen) {
+		return gen == generation;
+	}
+
+	/**
+	 * Indexes a chunk of secrets, then queues itself for the next.
+	 */
+	private Runnable secretsIndexer(final SearchIndex idx) {
+		return new Runnable() {
+			public void run() {
+				boolean done;
+				try {
+					// Holding our monitor, so a wipe can't come in between
+					// checking and indexing, and restart it
+					synchronized (ItemSearcher.this) {
+						if (! secretsWanted || idx != index) {
+							return;
+						}
+						done = idx.indexSecrets(SECRETS_CHUNK);
+						if (! done) {
+							executor.execute(this);
+							return;
+						}
+						// Matches on usernames and urls may be new
+						if (query.length() > 0) {
+							schedule(0);
+						}
+					}
+				} catch (final Exception e) {
+					synchronized (ItemSearcher.this) {
+						secretsWanted = false;
+					}
+					SwingUtilities.invokeLater(new Runnable() {
+						public void run() {
+							listener.failed(e);
+						}
+					});
+				}
+			}
+		};
+	}
+}
@@ -39,6 +39,8 @@ public class PreferenceDialog
 	private JCheckBox confirmDeletion;
 	private JCheckBox deleteEmptyCategories;
 	private JCheckBox allowPasswordCopy;
+	private JCheckBox fastPasswordCheck;
+	private JCheckBox compressDatabase;
 	private JOptionPane optionPane;
 
 	private String btnSave = "Save";
@@ -82,12 +84,22 @@ public class PreferenceDialog
 			prefs.getAllowPasswordCopy());
 		this.allowPasswordCopy.setToolTipText("If set, you will be allowed to copy the curent password to clipboard.");
 
+		this.fastPasswordCheck = new JCheckBox("Fast password check",
+			prefs.getFastPasswordCheck());
+		this.fastPasswordCheck.setToolTipText("If set, saved databases carry a password check in their header, so a wrong password is rejected without decrypting the whole database.");
+
+		this.compressDatabase = new JCheckBox("Compress database",
+			prefs.getCompressDatabase());
+		this.compressDatabase.setToolTipText("If set, databases are compressed before they are encrypted, which makes big ones much smaller to store and upload.  Keyring for webOS can't read compressed databases.");
+
 		Object array[] = { defaultURLString, defaultURL,
 		                   passwordTimeoutString, passwordTimeout,
 				   informAboutSave,
 				   confirmDeletion,
 				   deleteEmptyCategories,
-				   allowPasswordCopy
+				   allowPasswordCopy,
+				   fastPasswordCheck,
+				   compressDatabase
 		};
 		Object options[] = { btnSave, btnAbort };
 		this.optionPane = new JOptionPane(array,
@@ -167,6 +179,8 @@ public class PreferenceDialog
 				prefs.setConfirmDeletion(confirmDeletion.isSelected());
 				prefs.setDeleteEmptyCategories(deleteEmptyCategories.isSelected());
 				prefs.setAllowPasswordCopy(allowPasswordCopy.isSelected());
+				prefs.setFastPasswordCheck(fastPasswordCheck.isSelected());
+				prefs.setCompressDatabase(compressDatabase.isSelected());
 			} else {
 				// cancel
 				cancelled = true;
@@ -91,6 +91,30 @@ public class Prop {
 	public void setAllowPasswordCopy(boolean value) {
 		prefs.putBoolean("AllowPasswordCopy", value);
 	}
+
+	public boolean getFastPasswordCheck() {
+		return prefs.getBoolean("FastPasswordCheck", false);
+	}
+
+	public void setFastPasswordCheck(boolean value) {
+		prefs.putBoolean("FastPasswordCheck", value);
+	}
+
+	public boolean getCompressDatabase() {
+		return prefs.getBoolean("CompressDatabase", false);
+	}
+
+	public void setCompressDatabase(boolean value) {
+		prefs.putBoolean("CompressDatabase", value);
+	}
+
+	public int getSortOrder() {
+		return prefs.getInt("SortOrder", 0);
+	}
+
+	public void setSortOrder(int order) {
+		prefs.putInt("SortOrder", order);
+	}
 	// ----------------------------------------------------------------
 	// constructor
 	// ----------------------------------------------------------------
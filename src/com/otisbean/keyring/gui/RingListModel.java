@@ -0,0 +1,514 @@
+/*
+ * @author Dirk Bergstrom
+ *
+ * Keyring Desktop Client - Easy password management on your phone or desktop.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.otisbean.keyring.gui;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.swing.AbstractListModel;
+
+import com.otisbean.keyring.Item;
+
+/**
+ * The Items of a Ring, in one of several sort orders, as a ListModel.
+ *
+ * All the Items are kept in an index for every order (see SortKey),
+ * alongside the key each was filed under (so an Item can be found again
+ * after it changes).  The rows are the Items, in the current order, that
+ * pass the category filter and are among the search matches; with neither
+ * filter they are that order's index itself.  Adds, removes and changes
+ * are a binary search and an insert or delete in each index, and fire an
+ * event for the one row affected.  Changing a filter, or the order while
+ * filtered, is a single pass over an index.
+ *
+ * Sorting every order as a Ring is loaded would slow the load, so Items
+ * added in bulk go on the end of the indexes of the other orders, which
+ * are sorted the first time they're shown.  From then on they're kept
+ * sorted, and switching to them sorts nothing.
+ *
+ * Must only be used on the event thread.
+ *
+ * @author Dirk Bergstrom
+ */
+@SuppressWarnings("serial")
+class RingListModel extends AbstractListModel<Item> {
+
+	/**
+	 * Every Item, by the title it was filed under, with its keys
+	 */
+	private Map<String, Filed> filed = new HashMap<String, Filed>();
+
+	/**
+	 * Every Item, in each order, indexed by order
+	 */
+	private Index[] indexes = new Index[SortKey.ORDERS];
+
+	private int order = SortKey.TITLE;
+
+	/**
+	 * The Items passing the filters, in the current order (the same Lists
+	 * as its Index when there are no filters)
+	 */
+	private List<SortKey> keys;
+	private List<Item> items;
+
+	/**
+	 * Category-filter (< 0 = show all)
+	 */
+	private int filterCategory = -1;
+
+	/**
+	 * Search results (null = show all)
+	 */
+	private Set<Item> matches;
+
+	RingListModel() {
+		for (int i = 0; i < indexes.length; i++) {
+			indexes[i] = new Index();
+		}
+		keys = indexes[order].keys;
+		items = indexes[order].items;
+	}
+
+	public int getSize() {
+		return items.size();
+	}
+
+	public Item getElementAt(int index) {
+		return items.get(index);
+	}
+
+	Item getItem(int index) {
+		return items.get(index);
+	}
+
+	int getCategoryFilter() {
+		return filterCategory;
+	}
+
+	int getSortOrder() {
+		return order;
+	}
+
+	/**
+	 * @return The row of the Item with the given title, or -1 if there
+	 * isn't one (or it's filtered out).
+	 */
+	int indexOf(String title) {
+		Filed f = filed.get(title);
+		if (null == f) {
+			return -1;
+		}
+		int i = Collections.binarySearch(keys, f.keys[order]);
+		return i < 0 ? -1 : i;
+	}
+
+	/**
+	 * Replace the contents with the given Items.
+	 */
+	void setItems(Collection<Item> newItems) {
+		clear();
+		addAll(new ArrayList<Item>(newItems));
+	}
+
+	/**
+	 * Remove every Item.
+	 */
+	void clear() {
+		int size = items.size();
+		filed.clear();
+		for (Index index : indexes) {
+			index.keys.clear();
+			index.items.clear();
+			index.sorted = true;
+		}
+		if (filtered()) {
+			keys.clear();
+			items.clear();
+		}
+		if (size > 0) {
+			fireIntervalRemoved(this, 0, size - 1);
+		}
+	}
+
+	/**
+	 * Add new Items, in any order; quickest if they're in the current
+	 * order, and go after all those already here.
+	 */
+	void addAll(List<Item> newItems) {
+		Filed[] added = new Filed[newItems.size()];
+		int n = 0;
+		for (Item item : newItems) {
+			if (filed.containsKey(item.getTitle())) {
+				// Replacing an Item, which is rare; do it the slow way
+				add(item);
+				continue;
+			}
+			Filed f = new Filed(item);
+			filed.put(item.getTitle(), f);
+			added[n++] = f;
+		}
+		if (n == 0) {
+			return;
+		}
+		added = Arrays.copyOf(added, n);
+
+		boolean appended = true;
+		for (int o = 0; o < indexes.length; o++) {
+			boolean a = indexes[o].addAll(added, o, o == order);
+			if (o == order) {
+				appended = a;
+			}
+		}
+		if (! appended) {
+			// New rows all over the place
+			refilter();
+			return;
+		}
+		int first = items.size();
+		if (filtered()) {
+			// They're at the end of the index, so they go at the end
+			Index index = indexes[order];
+			for (int i = index.items.size() - n; i < index.items.size(); i++) {
+				Item item = index.items.get(i);
+				if (passes(item)) {
+					keys.add(index.keys.get(i));
+					items.add(item);
+				}
+			}
+		}
+		if (items.size() > first) {
+			fireIntervalAdded(this, first, items.size() - 1);
+		}
+	}
+
+	/**
+	 * Add a new Item in its place, or replace the one with its title.
+	 */
+	void add(Item item) {
+		String title = item.getTitle();
+		if (filed.containsKey(title)) {
+			remove(title);
+		}
+		Filed f = new Filed(item);
+		filed.put(title, f);
+		int row = -1;
+		for (int o = 0; o < indexes.length; o++) {
+			int i = indexes[o].add(f.keys[o], item);
+			if (o == order) {
+				row = i;
+			}
+		}
+		if (! filtered()) {
+			fireIntervalAdded(this, row, row);
+		} else if (passes(item)) {
+			row = insertionPoint(keys, f.keys[order]);
+			keys.add(row, f.keys[order]);
+			items.add(row, item);
+			fireIntervalAdded(this, row, row);
+		}
+	}
+
+	/**
+	 * Remove the Item filed under title, if there is one.
+	 */
+	void remove(String title) {
+		Filed f = filed.remove(title);
+		if (null == f) {
+			return;
+		}
+		int row = -1;
+		for (int o = 0; o < indexes.length; o++) {
+			int i = indexes[o].remove(f.keys[o]);
+			if (o == order) {
+				row = i;
+			}
+		}
+		if (! filtered()) {
+			fireIntervalRemoved(this, row, row);
+		} else {
+			row = Collections.binarySearch(keys, f.keys[order]);
+			if (row >= 0) {
+				keys.remove(row);
+				items.remove(row);
+				fireIntervalRemoved(this, row, row);
+			}
+		}
+	}
+
+	/**
+	 * Refile an Item whose title, category or dates may have changed.
+	 *
+	 * @param oldTitle The title it had when it was added
+	 */
+	void changed(Item item, String oldTitle) {
+		Filed f = filed.get(oldTitle);
+		if (null != f && f.item == item && oldTitle.equals(item.getTitle()) &&
+				Arrays.equals(f.keys, SortKey.keys(item))) {
+			int row = indexOf(oldTitle);
+			if ((row >= 0) == passes(item)) {
+				// Nothing moves, just redraw the row
+				if (row >= 0) {
+					fireContentsChanged(this, row, row);
+				}
+				return;
+			}
+		}
+		remove(oldTitle);
+		add(item);
+	}
+
+	/**
+	 * Filter by category, or not (< 0).
+	 *
+	 * @return True if the filter changed
+	 */
+	boolean setCategoryFilter(int category) {
+		if (category == filterCategory) {
+			return false;
+		}
+		filterCategory = category;
+		refilter();
+		return true;
+	}
+
+	/**
+	 * Show the rows in another order (one of SortKey's).
+	 *
+	 * @return True if the order changed
+	 */
+	boolean setSortOrder(int newOrder) {
+		if (newOrder == order) {
+			return false;
+		}
+		order = newOrder;
+		indexes[order].sort(order);
+		refilter();
+		return true;
+	}
+
+	/**
+	 * Show only the given Items (by identity), or all of them (null).
+	 */
+	void setMatches(Set<Item> newMatches) {
+		if (null == newMatches && null == matches) {
+			return;
+		}
+		matches = newMatches;
+		refilter();
+	}
+
+	/**
+	 * Count item as a search match (or not) from now on.  Call before
+	 * add() or changed().
+	 */
+	void setMatch(Item item, boolean match) {
+		if (null == matches) {
+			return;
+		}
+		if (match) {
+			matches.add(item);
+		} else {
+			matches.remove(item);
+		}
+	}
+
+	/**
+	 * Rebuild the rows after a filter or the order has changed.
+	 */
+	private void refilter() {
+		int size = items.size();
+		Index index = indexes[order];
+		if (! filtered()) {
+			keys = index.keys;
+			items = index.items;
+		} else {
+			keys = new ArrayList<SortKey>();
+			items = new ArrayList<Item>();
+			for (int i = 0; i < index.items.size(); i++) {
+				Item item = index.items.get(i);
+				if (passes(item)) {
+					keys.add(index.keys.get(i));
+					items.add(item);
+				}
+			}
+		}
+		if (size > 0) {
+			fireIntervalRemoved(this, 0, size - 1);
+		}
+		if (items.size() > 0) {
+			fireIntervalAdded(this, 0, items.size() - 1);
+		}
+	}
+
+	private boolean filtered() {
+		return filterCategory >= 0 || null != matches;
+	}
+
+	private boolean passes(Item item) {
+		return (filterCategory < 0 || filterCategory == item.getCategoryId()) &&
+			(null == matches || matches.contains(item));
+	}
+
+	private static int insertionPoint(List<SortKey> sorted, SortKey key) {
+		int i = Collections.binarySearch(sorted, key);
+		return i < 0 ? -(i + 1) : i;
+	}
+
+	private static Comparator<Filed> byKey(final int o) {
+		return new Comparator<Filed>() {
+			public int compare(Filed a, Filed b) {
+				return a.keys[o].compareTo(b.keys[o]);
+			}
+		};
+	}
+
+	/**
+	 * An Item and the keys it was filed under, indexed by order.
+	 */
+	private static class Filed {
+		Item item;
+		SortKey[] keys;
+
+		Filed(Item item) {
+			this.item = item;
+			this.keys = SortKey.keys(item);
+		}
+
+		/**
+		 * Just the key for order o, for sorting.
+		 */
+		Filed(Item item, SortKey key, int o) {
+			this.item = item;
+			this.keys = new SortKey[SortKey.ORDERS];
+			keys[o] = key;
+		}
+	}
+
+	/**
+	 * Every Item, in one order, or in no order at all until sort().
+	 */
+	private static class Index {
+		List<SortKey> keys = new ArrayList<SortKey>();
+		List<Item> items = new ArrayList<Item>();
+		boolean sorted = true;
+
+		/**
+		 * @return Where it went.
+		 */
+		int add(SortKey key, Item item) {
+			int i = sorted ? insertionPoint(keys, key) : keys.size();
+			keys.add(i, key);
+			items.add(i, item);
+			return i;
+		}
+
+		/**
+		 * @return Where it was.
+		 */
+		int remove(SortKey key) {
+			int i;
+			if (sorted) {
+				i = Collections.binarySearch(keys, key);
+			} else {
+				// It's the very key it was filed under
+				for (i = 0; keys.get(i) != key; i++);
+			}
+			keys.remove(i);
+			items.remove(i);
+			return i;
+		}
+
+		/**
+		 * Sort by order o, if not sorted already.
+		 */
+		void sort(int o) {
+			if (sorted) {
+				return;
+			}
+			Filed[] all = new Filed[keys.size()];
+			for (int i = 0; i < all.length; i++) {
+				all[i] = new Filed(items.get(i), keys.get(i), o);
+			}
+			Arrays.sort(all, byKey(o));
+			for (int i = 0; i < all.length; i++) {
+				keys.set(i, all[i].keys[o]);
+				items.set(i, all[i].item);
+			}
+			sorted = true;
+		}
+
+		/**
+		 * Add Items by their keys in order o.  If they're in order, and go
+		 * after everything here, they're appended.  Otherwise they're
+		 * sorted and merged in, making new Lists, if keepSorted; or else
+		 * appended anyway, leaving the Index unsorted.
+		 *
+		 * @return True if they were appended.
+		 */
+		boolean addAll(Filed[] added, final int o, boolean keepSorted) {
+			boolean inOrder = sorted && (keys.isEmpty() ||
+				keys.get(keys.size() - 1).compareTo(added[0].keys[o]) < 0);
+			for (int i = 1; inOrder && i < added.length; i++) {
+				inOrder = added[i - 1].keys[o].compareTo(added[i].keys[o]) < 0;
+			}
+			if (inOrder || ! keepSorted) {
+				for (Filed f : added) {
+					keys.add(f.keys[o]);
+					items.add(f.item);
+				}
+				sorted = inOrder;
+				return true;
+			}
+			sort(o);
+
+			Filed[] ordered = added.clone();
+			Arrays.sort(ordered, byKey(o));
+			List<SortKey> oldKeys = keys;
+			List<Item> oldItems = items;
+			int total = oldKeys.size() + ordered.length;
+			keys = new ArrayList<SortKey>(total);
+			items = new ArrayList<Item>(total);
+			int i = 0;
+			int j = 0;
+			while (i < oldKeys.size() || j < ordered.length) {
+				if (j == ordered.length || (i < oldKeys.size() &&
+						oldKeys.get(i).compareTo(ordered[j].keys[o]) < 0)) {
+					keys.add(oldKeys.get(i));
+					items.add(oldItems.get(i));
+					i++;
+				} else {
+					keys.add(ordered[j].keys[o]);
+					items.add(ordered[j].item);
+					j++;
+				}
+			}
+			return false;
+		}
+	}
+}
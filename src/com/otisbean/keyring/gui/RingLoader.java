@@ -0,0 +1,216 @@
+/*
+ * @author Dirk Bergstrom
+ *
+ * Keyring Desktop Client - Easy password management on your phone or desktop.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.otisbean.keyring.gui;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.swing.SwingUtilities;
+
+import com.otisbean.keyring.Item;
+import com.otisbean.keyring.ProgressListener;
+import com.otisbean.keyring.Ring;
+
+/**
+ * Loads and decrypts a Ring on a background thread, so the event thread
+ * stays free while a big keyring is read.
+ *
+ * Once the Ring is loaded its Items are sorted and handed to the Listener
+ * in batches, each in its own event, so the first of them can be shown
+ * while the rest are still being added.  Progress (bytes read, Items
+ * parsed, Items handed over) can be polled from any thread.
+ *
+ * cancel() interrupts the load; the Listener hears nothing more after it.
+ * The password is wiped once the load is done with it.
+ *
+ * @author Dirk Bergstrom
+ */
+class RingLoader implements Runnable {
+
+	static final int BATCH_SIZE = 500;
+
+	/**
+	 * Told how the load went, on the event thread.
+	 */
+	interface Listener {
+		/**
+		 * The next batch of Items, in title order.
+		 */
+		void itemsLoaded(RingLoader loader, List<Item> items);
+
+		/**
+		 * All the Items have been handed over.
+		 */
+		void loaded(RingLoader loader, Ring ring);
+
+		void badPassword(RingLoader loader);
+
+		void failed(RingLoader loader, Exception e);
+	}
+
+	private Ring ring;
+	private String filename;
+	private char[] password;
+	private Listener listener;
+	private Thread thread;
+
+	// Progress, read on any thread
+	private volatile long bytesRead;
+	private volatile long bytesTotal = -1;
+	private volatile long itemsParsed;
+	private volatile int itemsTotal = -1;
+	private volatile int itemsDone;
+
+	// Only touched on the event thread
+	private boolean cancelled;
+
+	/**
+	 * @param ring A new Ring, set up as it should be for loading.
+	 */
+	RingLoader(Ring ring, String filename, char[] password, Listener listener) {
+		this.ring = ring;
+		this.filename = filename;
+		this.password = password;
+		this.listener = listener;
+	}
+
+	void start() {
+		thread = new Thread(this, "Keyring loader");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop loading.  Must be called on the event thread.
+	 */
+	void cancel() {
+		cancelled = true;
+		thread.interrupt();
+	}
+
+	String getFilename() {
+		return filename;
+	}
+
+	long getBytesRead() {
+		return bytesRead;
+	}
+
+	/**
+	 * @return The size of the file, or -1 if not known.
+	 */
+	long getBytesTotal() {
+		return bytesTotal;
+	}
+
+	long getItemsParsed() {
+		return itemsParsed;
+	}
+
+	/**
+	 * @return How many Items there are, or -1 until the Ring is loaded.
+	 */
+	int getItemsTotal() {
+		return itemsTotal;
+	}
+
+	/**
+	 * @return How many Items have been handed to the Listener.
+	 */
+	int getItemsDone() {
+		return itemsDone;
+	}
+
+	public void run() {
+		ring.setLoadProgressListener(new ProgressListener() {
+			public void progress(long done, long total) {
+				bytesRead = done;
+				bytesTotal = total;
+			}
+		});
+		ring.setItemProgressListener(new ProgressListener() {
+			public void progress(long done, long total) {
+				itemsParsed = done;
+			}
+		});
+		try {
+			boolean valid;
+			try {
+				valid = ring.load(filename, password);
+			} finally {
+				// Erase password from memory
+				Arrays.fill(password, ' ');
+				ring.setLoadProgressListener(null);
+				ring.setItemProgressListener(null);
+			}
+			if (! valid) {
+				post(new Runnable() {
+					public void run() {
+						listener.badPassword(RingLoader.this);
+					}
+				});
+				return;
+			}
+
+			List<Item> items = new ArrayList<Item>(ring.getItems());
+			SortKey.sortByTitle(items);
+			itemsTotal = items.size();
+			for (int i = 0; i < items.size(); i += BATCH_SIZE) {
+				if (Thread.currentThread().isInterrupted()) {
+					return;
+				}
+				final List<Item> batch = items.subList(i,
+						Math.min(i + BATCH_SIZE, items.size()));
+				post(new Runnable() {
+					public void run() {
+						listener.itemsLoaded(RingLoader.this, batch);
+						itemsDone += batch.size();
+					}
+				});
+			}
+			post(new Runnable() {
+				public void run() {
+					listener.loaded(RingLoader.this, ring);
+				}
+			});
+		} catch (final Exception e) {
+			post(new Runnable() {
+				public void run() {
+					listener.failed(RingLoader.this, e);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Run r on the event thread, unless we've been cancelled by then.
+	 */
+	private void post(final Runnable r) {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				if (! cancelled) {
+					r.run();
+				}
+			}
+		});
+	}
+}
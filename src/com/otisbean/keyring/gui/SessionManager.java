@@ -0,0 +1,195 @@
+/*
+ * @author Dirk Bergstrom
+ *
+ * Keyring Desktop Client - Easy password management on your phone or desktop.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.otisbean.keyring.gui;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+
+import com.otisbean.keyring.Ring;
+
+/**
+ * Keeps track of how long the Editor stays unlocked, and locks it again
+ * once the password timeout runs out, or when asked to.
+ *
+ * Each start() schedules the expiry for the end of the timeout, replacing
+ * the one before, so nothing wakes up until it's due.  On expiry the
+ * Listener is told, on the event thread, to clear whatever it shows; and
+ * meanwhile every unlocked Item of the Ring is relocked, in parallel, on
+ * the manager's own daemon thread, so the event thread never waits for
+ * the encryption.
+ *
+ * @author Dirk Bergstrom
+ */
+class SessionManager {
+
+	/**
+	 * Told about the session ending, on the event thread.
+	 */
+	interface Listener {
+		/**
+		 * The session timed out, or was ended by expire().  The Items are
+		 * being relocked in the background.
+		 */
+		void expired();
+
+		/**
+		 * Relocking the Items failed.
+		 */
+		void failed(Exception e);
+	}
+
+	private Listener listener;
+	private ScheduledExecutorService executor;
+
+	// Guarded by this
+	private Ring ring;
+	/**
+	 * When the session runs out, or 0 if it isn't running
+	 */
+	private long endTime;
+	/**
+	 * Bumped by every start or stop, so a stale expiry can tell
+	 */
+	private int generation;
+	private ScheduledFuture<?> scheduled;
+
+	SessionManager(Listener listener) {
+		this.listener = listener;
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Keyring session");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Lock ring's Items on expiry from now on (or nothing, if it's null).
+	 * Any session in progress is stopped, and the old Ring's Items are
+	 * relocked in the background.
+	 */
+	synchronized void setRing(Ring ring) {
+		stop();
+		final Ring old = this.ring;
+		this.ring = ring;
+		if (null != old && old != ring) {
+			executor.execute(new Runnable() {
+				public void run() {
+					relock(old);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Start the session, or restart it if it's running, to end in timeout
+	 * milliseconds.
+	 */
+	synchronized void start(long timeout) {
+		cancelScheduled();
+		final int gen = ++generation;
+		endTime = System.currentTimeMillis() + timeout;
+		scheduled = executor.schedule(new Runnable() {
+			public void run() {
+				expire(gen);
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * End the session without relocking anything, as when the password
+	 * was wrong and nothing was unlocked.
+	 */
+	synchronized void stop() {
+		cancelScheduled();
+		generation++;
+		endTime = 0;
+	}
+
+	/**
+	 * End the session now, as if it had timed out.
+	 */
+	synchronized void expire() {
+		cancelScheduled();
+		final int gen = ++generation;
+		endTime = 0;
+		executor.execute(new Runnable() {
+			public void run() {
+				expire(gen);
+			}
+		});
+	}
+
+	/**
+	 * @return True if the session has been started, and hasn't run out.
+	 */
+	synchronized boolean isActive() {
+		return endTime != 0 && System.currentTimeMillis() < endTime;
+	}
+
+	private void cancelScheduled() {
+		if (null != scheduled) {
+			scheduled.cancel(false);
+			scheduled = null;
+		}
+	}
+
+	/**
+	 * End session gen, unless another has begun meanwhile.
+	 */
+	private void expire(int gen) {
+		Ring r;
+		synchronized (this) {
+			if (gen != generation) {
+				return;
+			}
+			scheduled = null;
+			endTime = 0;
+			r = ring;
+		}
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				listener.expired();
+			}
+		});
+		if (null != r) {
+			relock(r);
+		}
+	}
+
+	private void relock(Ring r) {
+		try {
+			r.relock();
+		} catch (final Exception e) {
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					listener.failed(e);
+				}
+			});
+		}
+	}
+}
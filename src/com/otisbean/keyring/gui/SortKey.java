@@ -0,0 +1,191 @@
+/*
+ * @author Dirk Bergstrom
+ *
+ * Keyring Desktop Client - Easy password management on your phone or desktop.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.otisbean.keyring.gui;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.otisbean.keyring.Item;
+
+/**
+ * Where an Item goes in one of the list's sort orders.
+ *
+ * Titles and category names are compared as the user's locale would have
+ * them, through CollationKeys, which are worked out once per key rather
+ * than once per comparison.  Every order falls back on the title, so no
+ * two Items on a Ring have the same key.  A key is a snapshot: it still
+ * finds the Item it was made for after the Item changes.
+ *
+ * @author Dirk Bergstrom
+ */
+class SortKey implements Comparable<SortKey> {
+
+	static final int TITLE = 0;
+	static final int CREATED = 1;
+	static final int CHANGED = 2;
+	static final int VIEWED = 3;
+	static final int CATEGORY = 4;
+
+	/**
+	 * How many orders there are
+	 */
+	static final int ORDERS = 5;
+
+	/**
+	 * For the sort order combobox, indexed by order
+	 */
+	static final String[] NAMES = {
+		"Sort by title",
+		"Newest first",
+		"Recently changed first",
+		"Recently viewed first",
+		"Sort by category"
+	};
+
+	/**
+	 * Not thread safe, so guarded by itself
+	 */
+	private static final Collator collator = Collator.getInstance();
+
+	/**
+	 * Category names seen so far; there are only ever a few
+	 */
+	private static final Map<String, CollationKey> categoryKeys =
+		new HashMap<String, CollationKey>();
+
+	/**
+	 * Dates go newest first, so they're negated
+	 */
+	private final long number;
+	/**
+	 * The category, or null
+	 */
+	private final CollationKey group;
+	private final CollationKey title;
+	/**
+	 * To tell apart titles the Collator thinks are the same
+	 */
+	private final String rawTitle;
+
+	private SortKey(long number, CollationKey group, CollationKey title,
+			String rawTitle) {
+		this.number = number;
+		this.group = group;
+		this.title = title;
+		this.rawTitle = rawTitle;
+	}
+
+	/**
+	 * @return The keys of item in every order, indexed by order.
+	 */
+	static SortKey[] keys(Item item) {
+		String rawTitle = titleOf(item);
+		CollationKey title = collate(rawTitle);
+		SortKey[] keys = new SortKey[ORDERS];
+		keys[TITLE] = new SortKey(0, null, title, rawTitle);
+		keys[CREATED] = new SortKey(- item.getCreated(), null, title, rawTitle);
+		keys[CHANGED] = new SortKey(- item.getChanged(), null, title, rawTitle);
+		keys[VIEWED] = new SortKey(- item.getViewed(), null, title, rawTitle);
+		keys[CATEGORY] = new SortKey(0, categoryKey(item.getCategory()), title,
+				rawTitle);
+		return keys;
+	}
+
+	/**
+	 * Sort items by title, as the list shows them.
+	 */
+	static void sortByTitle(List<Item> items) {
+		Keyed[] keyed = new Keyed[items.size()];
+		for (int i = 0; i < keyed.length; i++) {
+			Item item = items.get(i);
+			String rawTitle = titleOf(item);
+			keyed[i] = new Keyed(new SortKey(0, null, collate(rawTitle), rawTitle),
+					item);
+		}
+		Arrays.sort(keyed);
+		for (int i = 0; i < keyed.length; i++) {
+			items.set(i, keyed[i].item);
+		}
+	}
+
+	public int compareTo(SortKey other) {
+		if (number != other.number) {
+			return number < other.number ? -1 : 1;
+		}
+		if (null != group) {
+			int c = group.compareTo(other.group);
+			if (c != 0) {
+				return c;
+			}
+		}
+		int c = title.compareTo(other.title);
+		return c != 0 ? c : rawTitle.compareTo(other.rawTitle);
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return other instanceof SortKey && compareTo((SortKey) other) == 0;
+	}
+
+	@Override
+	public int hashCode() {
+		return rawTitle.hashCode() ^ (int) number;
+	}
+
+	private static String titleOf(Item item) {
+		return null == item.getTitle() ? "" : item.getTitle();
+	}
+
+	private static CollationKey collate(String s) {
+		synchronized (collator) {
+			return collator.getCollationKey(null == s ? "" : s);
+		}
+	}
+
+	private static CollationKey categoryKey(String name) {
+		synchronized (categoryKeys) {
+			CollationKey key = categoryKeys.get(name);
+			if (null == key) {
+				key = collate(name);
+				categoryKeys.put(name, key);
+			}
+			return key;
+		}
+	}
+
+	private static class Keyed implements Comparable<Keyed> {
+		SortKey key;
+		Item item;
+
+		Keyed(SortKey key, Item item) {
+			this.key = key;
+			this.item = item;
+		}
+
+		public int compareTo(Keyed other) {
+			return key.compareTo(other.key);
+		}
+	}
+}